@@ -1,7 +1,12 @@
 package com.networking;
 
 import com.networking.server.HttpServer;
+import com.networking.server.ThreadPoolManager;
 import com.networking.server.WebSocketServer;
+import com.networking.session.TcpReplicationTransport;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,26 +19,139 @@ public class Main {
 
   private static final int HTTP_PORT = 8080;
   private static final int WEBSOCKET_PORT = 8081;
+  private static final String WEBSOCKET_PATH = "/ws";
+
+  // Con -Dchat.singlePort=true el chat solo se sirve por upgrade en el
+  // puerto HTTP, con un único listener y un único pool de hilos
+  private static final boolean SINGLE_PORT = Boolean.getBoolean(
+    "chat.singlePort"
+  );
+
+  // Con -Dchat.dataDir=<directorio> el historial de cada sala se guarda en
+  // un log persistente y se recupera al reiniciar, igual que las sesiones
+  // HTTP (en <directorio>/.sessions)
+  private static final String DATA_DIR = System.getProperty("chat.dataDir");
+
+  // Con -Dchat.roomActors=true cada sala difunde sus eventos en serie desde
+  // un buzón propio, con orden total y secuencia por sala
+  private static final boolean ROOM_ACTORS = Boolean.getBoolean(
+    "chat.roomActors"
+  );
+
+  // Con -Dchat.sessionSecret=<secreto> las sesiones HTTP son tokens
+  // firmados que cualquier nodo con el mismo secreto acepta
+  private static final String SESSION_SECRET = System.getProperty(
+    "chat.sessionSecret"
+  );
+
+  // Con -Dchat.replicationPort=<puerto> las sesiones HTTP se replican por
+  // TCP con los nodos de -Dchat.replicationPeers=host:puerto,... en lotes
+  // firmados con -Dchat.replicationSecret=<secreto>, obligatorio. El
+  // puerto escucha solo en loopback salvo que se indique otra dirección
+  // con -Dchat.replicationBind=<dirección>
+  private static final Integer REPLICATION_PORT = Integer.getInteger(
+    "chat.replicationPort"
+  );
+  private static final String REPLICATION_PEERS = System.getProperty(
+    "chat.replicationPeers",
+    ""
+  );
+  private static final String REPLICATION_SECRET = System.getProperty(
+    "chat.replicationSecret"
+  );
+  private static final String REPLICATION_BIND = System.getProperty(
+    "chat.replicationBind"
+  );
 
   public static void main(String[] args) {
     try {
       logger.info("Iniciando Servidor Web Concurrente...");
 
+      HttpServer httpServer;
+      WebSocketServer webSocketServer;
+      // En modo de puerto único el pool es de ambos servidores y se cierra
+      // aquí, una vez detenidos los dos
+      ThreadPoolManager sharedPool = SINGLE_PORT
+        ? new ThreadPoolManager()
+        : null;
+      if (SINGLE_PORT) {
+        httpServer = new HttpServer(HTTP_PORT, sharedPool);
+        webSocketServer = new WebSocketServer(HTTP_PORT, sharedPool);
+      } else {
+        httpServer = new HttpServer(HTTP_PORT);
+        webSocketServer = new WebSocketServer(WEBSOCKET_PORT);
+      }
+      if (ROOM_ACTORS) {
+        webSocketServer.setRoomActorMode(true);
+        logger.info("- Salas en modo actor");
+      }
+      if (DATA_DIR != null) {
+        webSocketServer.setMessageLogDirectory(Paths.get(DATA_DIR));
+        logger.info("- Historial persistente en {}", DATA_DIR);
+        // Los ids de sala no empiezan por '.', así que no colisiona
+        httpServer
+          .getSessionManager()
+          .enablePersistence(Paths.get(DATA_DIR, ".sessions"));
+      }
+      if (SESSION_SECRET != null) {
+        httpServer
+          .getSessionManager()
+          .enableSignedTokens(SESSION_SECRET.getBytes(StandardCharsets.UTF_8));
+      }
+      if (REPLICATION_PORT != null) {
+        if (REPLICATION_SECRET == null) {
+          throw new IllegalStateException(
+            "La replicación necesita -Dchat.replicationSecret"
+          );
+        }
+        TcpReplicationTransport transport = REPLICATION_BIND != null
+          ? new TcpReplicationTransport(
+            new InetSocketAddress(REPLICATION_BIND, REPLICATION_PORT)
+          )
+          : new TcpReplicationTransport(REPLICATION_PORT);
+        for (String peer : REPLICATION_PEERS.split(",")) {
+          int colon = peer.lastIndexOf(':');
+          if (colon > 0) {
+            transport.addPeer(
+              new InetSocketAddress(
+                peer.substring(0, colon).trim(),
+                Integer.parseInt(peer.substring(colon + 1).trim())
+              )
+            );
+          }
+        }
+        httpServer
+          .getSessionManager()
+          .enableReplication(
+            transport,
+            REPLICATION_SECRET.getBytes(StandardCharsets.UTF_8)
+          );
+      }
+      httpServer.enableWebSocketUpgrade(WEBSOCKET_PATH, webSocketServer);
+
       // Iniciar servidor HTTP
-      HttpServer httpServer = new HttpServer(HTTP_PORT);
       Thread httpThread = new Thread(httpServer::start);
       httpThread.setName("HTTP-Server");
       httpThread.start();
 
-      // Iniciar servidor WebSocket para chat
-      WebSocketServer webSocketServer = new WebSocketServer(WEBSOCKET_PORT);
-      Thread wsThread = new Thread(webSocketServer::start);
-      wsThread.setName("WebSocket-Server");
-      wsThread.start();
+      // Iniciar el listener WebSocket dedicado, salvo en modo de puerto único
+      Thread wsThread = null;
+      if (!SINGLE_PORT) {
+        wsThread = new Thread(webSocketServer::start);
+        wsThread.setName("WebSocket-Server");
+        wsThread.start();
+      }
 
       logger.info("Servidores iniciados:");
       logger.info("- Servidor HTTP: http://localhost:{}", HTTP_PORT);
-      logger.info("- Servidor WebSocket: ws://localhost:{}", WEBSOCKET_PORT);
+      logger.info(
+        "- Chat WebSocket: ws://localhost:{}{}",
+        HTTP_PORT,
+        WEBSOCKET_PATH
+      );
+      if (!SINGLE_PORT) {
+        logger.info("- Servidor WebSocket: ws://localhost:{}", WEBSOCKET_PORT);
+      }
       logger.info("Presiona Ctrl+C para detener los servidores");
 
       // Hook para shutdown graceful
@@ -44,13 +162,18 @@ public class Main {
             logger.info("Deteniendo servidores...");
             httpServer.stop();
             webSocketServer.stop();
+            if (sharedPool != null) {
+              sharedPool.shutdown();
+            }
             logger.info("Servidores detenidos exitosamente");
           })
         );
 
       // Mantener el hilo principal vivo
       httpThread.join();
-      wsThread.join();
+      if (wsThread != null) {
+        wsThread.join();
+      }
     } catch (Exception e) {
       logger.error("Error al iniciar los servidores", e);
       System.exit(1);
@@ -1,16 +1,22 @@
 package com.networking.chat;
 
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
 
 /**
- * Representa un mensaje en el chat
+ * Representa un mensaje en el chat.
+ *
+ * Representación compacta pensada para retener muchos mensajes: el id de
+ * 64 bits lleva codificado el instante de creación, el autor se guarda por
+ * sus ids (compartidos con el ChatUser, sin referencia al usuario mutable)
+ * y el contenido se guarda ya en UTF-8, que es como lo escriben los codecs.
  */
 public class ChatMessage {
 
-  private final String id;
-  private final ChatUser user;
-  private final String content;
-  private final LocalDateTime timestamp;
+  private final long id;
+  private final String userId;
+  private final long userNumericId;
+  private final String username;
+  private final byte[] content;
   private final MessageType type;
 
   public enum MessageType {
@@ -24,45 +30,87 @@ public class ChatMessage {
   }
 
   public ChatMessage(ChatUser user, String content, MessageType type) {
-    this.id = generateId();
-    this.user = user;
+    this.id = MessageIdGenerator.getDefault().nextId();
+    this.userId = user != null ? user.getId() : null;
+    this.userNumericId = user != null ? user.getNumericId() : 0;
+    this.username = user != null ? user.getUsername() : null;
+    this.content = content != null
+      ? content.getBytes(StandardCharsets.UTF_8)
+      : new byte[0];
+    this.type = type;
+  }
+
+  /**
+   * Reconstruye un mensaje leído del log persistente. El id numérico del
+   * autor solo es válido dentro del proceso que lo asignó y no se conserva.
+   */
+  ChatMessage(
+    long id,
+    String userId,
+    String username,
+    byte[] content,
+    MessageType type
+  ) {
+    this.id = id;
+    this.userId = userId != null ? userId.intern() : null;
+    this.userNumericId = 0;
+    this.username = username != null ? username.intern() : null;
     this.content = content;
-    this.timestamp = LocalDateTime.now();
     this.type = type;
   }
 
-  public String getId() {
+  public long getId() {
     return id;
   }
 
-  public ChatUser getUser() {
-    return user;
+  /**
+   * Id del autor, o null en mensajes de sistema
+   */
+  public String getUserId() {
+    return userId;
   }
 
+  public long getUserNumericId() {
+    return userNumericId;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  /**
+   * Contenido decodificado; cada llamada crea un String nuevo
+   */
   public String getContent() {
+    return new String(content, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Contenido en UTF-8. El array es compartido y no debe modificarse.
+   */
+  public byte[] getContentBytes() {
     return content;
   }
 
-  public LocalDateTime getTimestamp() {
-    return timestamp;
+  /**
+   * Instante de creación en milisegundos epoch
+   */
+  public long getTimestamp() {
+    return MessageIdGenerator.timestampOf(id);
   }
 
   public MessageType getType() {
     return type;
   }
 
-  private String generateId() {
-    return System.currentTimeMillis() + "-" + System.nanoTime();
-  }
-
   @Override
   public String toString() {
     return String.format(
-      "ChatMessage{id='%s', user=%s, content='%s', timestamp=%s, type=%s}",
+      "ChatMessage{id=%d, user=%s, content='%s', timestamp=%d, type=%s}",
       id,
-      user.getUsername(),
-      content,
-      timestamp,
+      username,
+      getContent(),
+      getTimestamp(),
       type
     );
   }
@@ -1,12 +1,19 @@
 package com.networking.chat;
 
+import com.networking.chat.protocol.ServerEvent;
+import com.networking.util.CachedClock;
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,56 +26,160 @@ public class ChatRoom {
   private static final Logger logger = LoggerFactory.getLogger(ChatRoom.class);
 
   private static final int MAX_MESSAGES = 1000;
+  // Secuencias por milisegundo de reloj al crear la sala: el historial de
+  // una sala recreada empieza por encima del de cualquier instancia previa
+  private static final long SEQUENCES_PER_MILLI = 1000;
+  private static final int DEFAULT_SEARCH_LIMIT = 50;
   private static final int MAX_USERS = 100;
   private static final int CLEANUP_INTERVAL_MINUTES = 5;
   private static final int INACTIVE_USER_TIMEOUT_MINUTES = 30;
+  // Valor de totalUsers en una sala retirada o cerrada: ninguna reserva de
+  // plaza llega a dejarlo positivo
+  private static final int RETIRED = Integer.MIN_VALUE / 2;
 
   private final String roomId;
   private final String roomName;
   private final Map<String, ChatUser> users;
-  private final List<ChatMessage> messages;
+  // Nombre normalizado -> id del usuario que lo reservó
+  private final Map<String, String> usernames;
+  private final MessageHistory messages;
+  private final MessageIndex searchIndex;
+  private final HistoryPageCache historyPages;
+  // Eventos de los últimos mensajes difundidos, por secuencia: la
+  // reproducción tras una reconexión reutiliza su codificación
+  private final AtomicReferenceArray<ServerEvent> recentEvents;
+
+  // Contadores mantenidos en cada alta, baja o transición de estado
+  private final AtomicInteger totalUsers = new AtomicInteger(0);
+  private final AtomicInteger onlineUsers = new AtomicInteger(0);
+
+  // Lista ordenada de usuarios activos, válida mientras no cambie la versión
+  private final AtomicLong membershipVersion = new AtomicLong(0);
+  private volatile ActiveUsersSnapshot activeUsersSnapshot;
+
+  // Destinatarios de los broadcasts de la sala, por id de usuario
+  private final Map<String, RoomSubscriber> subscribers;
+
+  // Modo actor: los eventos de la sala se procesan en serie en el buzón y
+  // reciben un número de secuencia; null en modo directo
+  private final RoomMailbox mailbox;
+  // Solo lo modifica el buzón, que nunca se ejecuta en dos hilos a la vez
+  private long eventSequence = 0;
+
+  // Log persistente del historial; null si la sala solo vive en memoria
+  private volatile MessageLog messageLog;
+
+  // Instante en que la sala quedó vacía (0 mientras tenga usuarios)
+  private volatile long emptySinceMillis = CachedClock.currentTimeMillis();
+
   private final LocalDateTime createdAt;
   private final ScheduledExecutorService cleanupExecutor;
+  private final boolean ownsCleanupExecutor;
+  private final ScheduledFuture<?> cleanupTask;
 
   public ChatRoom() {
     this("default", "Sala Principal");
   }
 
   public ChatRoom(String roomId, String roomName) {
+    this(roomId, roomName, null, null);
+  }
+
+  /**
+   * @param scheduler planificador compartido para la limpieza periódica; si
+   *                  es null la sala crea su propio hilo de limpieza
+   * @param actorExecutor pool donde se procesa el buzón de la sala en modo
+   *                      actor; si es null los eventos se difunden en el
+   *                      hilo que los produce
+   */
+  public ChatRoom(
+    String roomId,
+    String roomName,
+    ScheduledExecutorService scheduler,
+    Executor actorExecutor
+  ) {
     this.roomId = roomId;
+    this.mailbox = actorExecutor != null ? new RoomMailbox(actorExecutor) : null;
     this.roomName = roomName;
     this.users = new ConcurrentHashMap<>();
-    this.messages = new CopyOnWriteArrayList<>();
+    this.usernames = new ConcurrentHashMap<>();
+    this.subscribers = new ConcurrentHashMap<>();
+    this.messages =
+      new MessageHistory(
+        MAX_MESSAGES,
+        CachedClock.currentTimeMillis() * SEQUENCES_PER_MILLI
+      );
+    this.recentEvents = new AtomicReferenceArray<>(MAX_MESSAGES);
+    this.searchIndex = new MessageIndex(MAX_MESSAGES);
+    this.historyPages = new HistoryPageCache(roomId, messages);
     this.createdAt = LocalDateTime.now();
 
     // Executor para tareas de limpieza
+    this.ownsCleanupExecutor = scheduler == null;
     this.cleanupExecutor =
-      Executors.newSingleThreadScheduledExecutor(r -> {
-        Thread t = new Thread(r, "ChatRoom-Cleanup");
-        t.setDaemon(true);
-        return t;
-      });
+      scheduler != null
+        ? scheduler
+        : Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread t = new Thread(r, "ChatRoom-Cleanup");
+          t.setDaemon(true);
+          return t;
+        });
 
     // Programar limpieza periódica
-    cleanupExecutor.scheduleAtFixedRate(
-      this::performCleanup,
-      CLEANUP_INTERVAL_MINUTES,
-      CLEANUP_INTERVAL_MINUTES,
-      TimeUnit.MINUTES
-    );
+    this.cleanupTask =
+      cleanupExecutor.scheduleAtFixedRate(
+        this::performCleanup,
+        CLEANUP_INTERVAL_MINUTES,
+        CLEANUP_INTERVAL_MINUTES,
+        TimeUnit.MINUTES
+      );
 
     logger.info("ChatRoom '{}' creada", roomName);
   }
 
+  /**
+   * Hace persistente el historial de la sala: recarga los mensajes más
+   * recientes del log y a partir de ahora escribe en él cada mensaje.
+   * Debe llamarse antes de que la sala reciba mensajes.
+   */
+  public void attachMessageLog(MessageLog log) throws IOException {
+    for (ChatMessage message : log.readRecent(MAX_MESSAGES)) {
+      messages.append(message);
+      searchIndex.add(message);
+    }
+    this.messageLog = log;
+    logger.info(
+      "Sala '{}': {} mensajes recuperados del log",
+      roomName,
+      messages.size()
+    );
+  }
+
   /**
    * Añade un usuario a la sala
    */
   public boolean addUser(ChatUser user) {
+    return addUser(user, null);
+  }
+
+  /**
+   * Añade un usuario a la sala y lo suscribe a sus broadcasts
+   * @param subscriber destino de los eventos de la sala, o null
+   */
+  public boolean addUser(ChatUser user, RoomSubscriber subscriber) {
     if (user == null) {
       return false;
     }
 
-    if (users.size() >= MAX_USERS) {
+    // Reservar una plaza de forma atómica
+    int reserved = totalUsers.incrementAndGet();
+    if (reserved <= 0) {
+      // Sala retirada: el registro creará otra
+      totalUsers.decrementAndGet();
+      return false;
+    }
+    if (reserved > MAX_USERS) {
+      totalUsers.decrementAndGet();
       logger.warn(
         "No se puede añadir usuario '{}': sala llena",
         user.getUsername()
@@ -76,13 +187,11 @@ public class ChatRoom {
       return false;
     }
 
-    // Verificar si el nombre de usuario ya existe
-    boolean usernameExists = users
-      .values()
-      .stream()
-      .anyMatch(u -> u.getUsername().equalsIgnoreCase(user.getUsername()));
-
-    if (usernameExists) {
+    // Reservar el nombre de forma atómica: de dos joins simultáneos con el
+    // mismo nombre solo uno obtiene la reserva
+    String normalized = normalizeUsername(user.getUsername());
+    if (usernames.putIfAbsent(normalized, user.getId()) != null) {
+      totalUsers.decrementAndGet();
       logger.warn(
         "No se puede añadir usuario '{}': nombre ya existe",
         user.getUsername()
@@ -90,16 +199,35 @@ public class ChatRoom {
       return false;
     }
 
-    users.put(user.getId(), user);
+    if (users.putIfAbsent(user.getId(), user) != null) {
+      usernames.remove(normalized, user.getId());
+      totalUsers.decrementAndGet();
+      logger.warn(
+        "No se puede añadir usuario '{}': id {} ya está en la sala",
+        user.getUsername(),
+        user.getId()
+      );
+      return false;
+    }
+
+    // Un usuario que vuelve a entrar tras salir cuenta de nuevo como activo
+    user.changeOnline(true);
+    onlineUsers.incrementAndGet();
+    if (subscriber != null) {
+      subscribers.put(user.getId(), subscriber);
+    }
+    emptySinceMillis = 0;
+    membershipChanged();
+
     logger.info(
       "Usuario '{}' añadido a la sala '{}' (total: {})",
       user.getUsername(),
       roomName,
-      users.size()
+      totalUsers.get()
     );
 
     // Añadir mensaje de sistema
-    addSystemMessage(user.getUsername() + " se unió al chat");
+    postSystemMessage(user.getUsername() + " se unió al chat");
 
     return true;
   }
@@ -114,22 +242,231 @@ public class ChatRoom {
 
     ChatUser removed = users.remove(user.getId());
     if (removed != null) {
-      removed.setOnline(false);
+      usernames.remove(
+        normalizeUsername(removed.getUsername()),
+        removed.getId()
+      );
+      subscribers.remove(removed.getId());
+      if (totalUsers.decrementAndGet() == 0) {
+        emptySinceMillis = CachedClock.currentTimeMillis();
+      }
+      if (removed.changeOnline(false)) {
+        onlineUsers.decrementAndGet();
+      }
+      membershipChanged();
       logger.info(
         "Usuario '{}' removido de la sala '{}' (total: {})",
         user.getUsername(),
         roomName,
-        users.size()
+        totalUsers.get()
       );
 
       // Añadir mensaje de sistema
-      addSystemMessage(user.getUsername() + " abandonó el chat");
+      postSystemMessage(user.getUsername() + " abandonó el chat");
       return true;
     }
 
     return false;
   }
 
+  /**
+   * Cambia el destino de los eventos de un usuario que sigue en la sala,
+   * sin salir y volver a entrar (por ejemplo al reanudar una conexión)
+   * @param subscriber nuevo destino, o null para dejar de recibir eventos
+   * @return false si el usuario ya no está en la sala
+   */
+  public boolean resubscribe(ChatUser user, RoomSubscriber subscriber) {
+    if (user == null || users.get(user.getId()) != user) {
+      return false;
+    }
+    if (subscriber != null) {
+      subscribers.put(user.getId(), subscriber);
+    } else {
+      subscribers.remove(user.getId());
+    }
+    return true;
+  }
+
+  /**
+   * Indica si un nombre de usuario está en uso, sin distinguir mayúsculas
+   */
+  public boolean isUsernameTaken(String username) {
+    return username != null && usernames.containsKey(normalizeUsername(username));
+  }
+
+  /**
+   * Clave del índice de nombres: equivalente a comparar con equalsIgnoreCase
+   */
+  private static String normalizeUsername(String username) {
+    return username.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Envía un evento a todos los suscriptores de la sala. En modo actor el
+   * evento se encola en el buzón, recibe el siguiente número de secuencia
+   * de la sala y todos los suscriptores lo reciben en el mismo orden.
+   */
+  public void broadcast(ServerEvent event) {
+    if (mailbox == null) {
+      deliverToSubscribers(event);
+    } else {
+      mailbox.submit(() -> {
+        event.assignSequence(++eventSequence);
+        deliverToSubscribers(event);
+      });
+    }
+  }
+
+  /**
+   * Guarda un mensaje de usuario en el historial y lo difunde a la sala. En
+   * modo actor ambos pasos ocurren en el buzón, de modo que el orden del
+   * historial coincide con el orden de entrega.
+   */
+  public void postMessage(ChatMessage message) {
+    if (mailbox == null) {
+      deliverToSubscribers(recordMessage(message));
+    } else {
+      mailbox.submit(() -> {
+        ServerEvent event = recordMessage(message);
+        event.assignSequence(++eventSequence);
+        deliverToSubscribers(event);
+      });
+    }
+  }
+
+  private ServerEvent recordMessage(ChatMessage message) {
+    long sequence = addMessage(message);
+    ServerEvent event = ServerEvent.message(roomId, message, sequence);
+    recentEvents.set((int) (sequence % MAX_MESSAGES), event);
+    return event;
+  }
+
+  /**
+   * Eventos que un cliente se perdió desde su último mensaje visto
+   * @param lastSeenSequence secuencia del último mensaje que recibió
+   * @return eventos de los mensajes posteriores, en orden, o null si parte
+   *         del hueco ya salió del historial (o la secuencia es de otra
+   *         instancia de la sala) y hace falta una instantánea
+   */
+  public List<ServerEvent> getReplay(long lastSeenSequence) {
+    long from = lastSeenSequence + 1;
+    long next = messages.getNextSequence();
+    if (from < messages.getOldestSequence() || from > next) {
+      return null;
+    }
+
+    long[] sequences = new long[(int) (next - from)];
+    List<ChatMessage> missed = messages.getRange(from, next, sequences);
+    List<ServerEvent> events = new ArrayList<>(missed.size());
+    for (int i = 0; i < missed.size(); i++) {
+      long sequence = sequences[i];
+      ServerEvent event = recentEvents.get((int) (sequence % MAX_MESSAGES));
+      if (
+        event == null ||
+        event.getMessageSequence() != sequence ||
+        event.getMessage() != missed.get(i)
+      ) {
+        // Mensajes de sistema, o mensajes cuya difusión sigue en curso
+        event = ServerEvent.message(roomId, missed.get(i), sequence);
+      }
+      events.add(event);
+    }
+    return events;
+  }
+
+  /**
+   * Instantánea del historial reciente para un cliente que se une: la
+   * página en curso y, si tiene pocos mensajes, la anterior completa
+   * @return eventos de historial, del más antiguo al más reciente
+   */
+  public List<ServerEvent> getSnapshot() {
+    HistoryPageCache.HistoryPage newest = historyPages.getPage(
+      HistoryPageCache.NO_CURSOR,
+      HistoryPageCache.PAGE_SIZE
+    );
+    List<ServerEvent> events = new ArrayList<>(2);
+    if (
+      newest.getMessageCount() < HistoryPageCache.PAGE_SIZE / 2 &&
+      newest.getNextBefore() != HistoryPageCache.NO_CURSOR
+    ) {
+      events.add(
+        ServerEvent.history(
+          roomId,
+          historyPages.getPage(
+            newest.getNextBefore(),
+            HistoryPageCache.PAGE_SIZE
+          )
+        )
+      );
+    }
+    events.add(ServerEvent.history(roomId, newest));
+    return events;
+  }
+
+  /**
+   * Indica si la sala procesa sus eventos en un buzón serie
+   */
+  public boolean isActorMode() {
+    return mailbox != null;
+  }
+
+  /**
+   * Buzón de la sala en modo actor, o null en modo directo
+   */
+  public RoomMailbox getMailbox() {
+    return mailbox;
+  }
+
+  private void deliverToSubscribers(ServerEvent event) {
+    for (RoomSubscriber subscriber : subscribers.values()) {
+      subscriber.deliver(event);
+    }
+  }
+
+  /**
+   * Indica si la sala no tiene usuarios
+   */
+  public boolean isEmpty() {
+    return totalUsers.get() <= 0;
+  }
+
+  /**
+   * Retira la sala si lleva vacía desde antes de cutoff. Desde ese momento
+   * addUser la rechaza, así que nadie entra en una sala que se retira.
+   * @return true si la sala queda retirada
+   */
+  public boolean retireIfIdleSince(long cutoff) {
+    long emptySince = emptySinceMillis;
+    if (
+      emptySince == 0 ||
+      emptySince > cutoff ||
+      !totalUsers.compareAndSet(0, RETIRED)
+    ) {
+      return false;
+    }
+    if (emptySinceMillis != emptySince) {
+      // Alguien entró y salió entre la comprobación y la retirada; las
+      // reservas en curso se conservan al deshacerla
+      totalUsers.addAndGet(-RETIRED);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Indica si la sala se retiró o se cerró y ya no admite usuarios
+   */
+  public boolean isRetired() {
+    return totalUsers.get() < 0;
+  }
+
+  /**
+   * Instante (epoch ms) en que la sala quedó vacía, o 0 si tiene usuarios
+   */
+  public long getEmptySinceMillis() {
+    return totalUsers.get() == 0 ? emptySinceMillis : 0;
+  }
+
   /**
    * Obtiene un usuario por ID
    */
@@ -138,51 +475,89 @@ public class ChatRoom {
   }
 
   /**
-   * Obtiene todos los usuarios activos
+   * Obtiene todos los usuarios activos ordenados por nombre. La lista se
+   * reconstruye solo cuando cambia la membresía de la sala.
+   * @return lista inmodificable
    */
   public List<ChatUser> getActiveUsers() {
-    return users
+    long version = membershipVersion.get();
+    ActiveUsersSnapshot snapshot = activeUsersSnapshot;
+    if (snapshot != null && snapshot.version == version) {
+      return snapshot.users;
+    }
+
+    List<ChatUser> active = users
       .values()
       .stream()
       .filter(ChatUser::isOnline)
       .sorted((u1, u2) -> u1.getUsername().compareToIgnoreCase(u2.getUsername())
       )
-      .collect(Collectors.toList());
+      .collect(Collectors.toUnmodifiableList());
+    // Si la membresía cambió durante la construcción, la versión guardada
+    // ya no coincide y la próxima lectura la reconstruye
+    activeUsersSnapshot = new ActiveUsersSnapshot(version, active);
+    return active;
   }
 
   /**
    * Obtiene el número de usuarios activos
    */
   public int getActiveUserCount() {
-    return (int) users.values().stream().filter(ChatUser::isOnline).count();
+    return onlineUsers.get();
+  }
+
+  /**
+   * Invalida la lista cacheada de usuarios activos
+   */
+  private void membershipChanged() {
+    membershipVersion.incrementAndGet();
   }
 
   /**
    * Añade un mensaje a la sala
+   * @return secuencia del mensaje en el historial, o -1 si es null
    */
-  public void addMessage(ChatMessage message) {
+  public long addMessage(ChatMessage message) {
     if (message == null) {
-      return;
+      return -1;
     }
 
-    // Actualizar actividad del usuario
-    if (message.getUser() != null) {
-      message.getUser().updateActivity();
+    // Actualizar actividad del usuario; si estaba marcado como inactivo
+    // vuelve a contar como activo
+    ChatUser author = message.getUserId() != null
+      ? users.get(message.getUserId())
+      : null;
+    // changeOnline(true) actualiza la actividad aunque ya estuviera activo
+    if (author != null && author.changeOnline(true)) {
+      onlineUsers.incrementAndGet();
+      membershipChanged();
     }
 
-    messages.add(message);
-
-    // Mantener solo los últimos N mensajes
-    if (messages.size() > MAX_MESSAGES) {
-      messages.remove(0);
+    // El historial y el índice conservan solo los últimos MAX_MESSAGES
+    long sequence = messages.append(message);
+    searchIndex.add(message);
+
+    MessageLog log = messageLog;
+    if (log != null) {
+      try {
+        log.append(message);
+      } catch (IOException e) {
+        // El mensaje sigue disponible en memoria aunque no sea durable
+        logger.error(
+          "Error escribiendo en el log de la sala '{}'",
+          roomName,
+          e
+        );
+      }
     }
 
     logger.debug(
-      "Mensaje añadido en sala '{}': {} caracteres de {}",
+      "Mensaje añadido en sala '{}': {} bytes de {}",
       roomName,
-      message.getContent().length(),
-      message.getUser() != null ? message.getUser().getUsername() : "sistema"
+      message.getContentBytes().length,
+      message.getUsername() != null ? message.getUsername() : "sistema"
     );
+    return sequence;
   }
 
   /**
@@ -197,54 +572,82 @@ public class ChatRoom {
     addMessage(systemMessage);
   }
 
+  /**
+   * Guarda el mensaje de sistema de una entrada o salida. En modo actor se
+   * guarda desde el buzón, por delante del evento que el llamador difunde
+   * a continuación, así que el historial sigue el orden de entrega.
+   */
+  private void postSystemMessage(String content) {
+    if (mailbox == null) {
+      addSystemMessage(content);
+    } else {
+      mailbox.submit(() -> addSystemMessage(content));
+    }
+  }
+
   /**
    * Obtiene los mensajes recientes
    */
   public List<ChatMessage> getRecentMessages(int limit) {
     if (limit <= 0) {
-      return new ArrayList<>(messages);
+      return messages.snapshot();
     }
 
-    int fromIndex = Math.max(0, messages.size() - limit);
-    return new ArrayList<>(messages.subList(fromIndex, messages.size()));
+    return messages.getRecent(limit);
+  }
+
+  /**
+   * Obtiene una página del historial para la API HTTP
+   * @param before secuencia hasta la que leer (exclusiva), o
+   *               HistoryPageCache.NO_CURSOR para la página más reciente
+   */
+  public HistoryPageCache.HistoryPage getHistoryPage(long before, int limit) {
+    return historyPages.getPage(before, limit);
+  }
+
+  public HistoryPageCache getHistoryPageCache() {
+    return historyPages;
   }
 
   /**
    * Obtiene todos los mensajes
    */
   public List<ChatMessage> getAllMessages() {
-    return new ArrayList<>(messages);
+    return messages.snapshot();
   }
 
   /**
-   * Busca mensajes que contengan un texto específico
+   * Busca los mensajes más recientes que contienen todas las palabras de la
+   * consulta; una palabra terminada en '*' busca por prefijo
    */
   public List<ChatMessage> searchMessages(String query) {
-    if (query == null || query.trim().isEmpty()) {
-      return new ArrayList<>();
-    }
+    return searchMessages(query, DEFAULT_SEARCH_LIMIT, MessageIndex.NO_CURSOR)
+      .messages;
+  }
 
-    String lowerQuery = query.toLowerCase();
-    return messages
-      .stream()
-      .filter(msg -> msg.getContent().toLowerCase().contains(lowerQuery))
-      .collect(Collectors.toList());
+  /**
+   * Busca mensajes con paginación, del más reciente al más antiguo
+   * @param limit resultados por página
+   * @param before cursor de la página anterior, o MessageIndex.NO_CURSOR
+   */
+  public MessageIndex.Page searchMessages(
+    String query,
+    int limit,
+    long before
+  ) {
+    return searchIndex.search(query, limit, before);
   }
 
   /**
    * Obtiene estadísticas de la sala
    */
   public RoomStats getStats() {
-    int totalUsers = users.size();
-    int activeUsers = getActiveUserCount();
-    int totalMessages = messages.size();
-
     return new RoomStats(
       roomId,
       roomName,
-      totalUsers,
-      activeUsers,
-      totalMessages,
+      Math.max(0, totalUsers.get()),
+      onlineUsers.get(),
+      messages.size(),
       createdAt
     );
   }
@@ -254,15 +657,18 @@ public class ChatRoom {
    */
   private void performCleanup() {
     try {
-      LocalDateTime cutoffTime = LocalDateTime
-        .now()
-        .minusMinutes(INACTIVE_USER_TIMEOUT_MINUTES);
+      long cutoffTime =
+        CachedClock.currentTimeMillis() -
+        TimeUnit.MINUTES.toMillis(INACTIVE_USER_TIMEOUT_MINUTES);
 
       // Marcar usuarios inactivos como offline
       int inactiveCount = 0;
       for (ChatUser user : users.values()) {
-        if (user.isOnline() && user.getLastActivity().isBefore(cutoffTime)) {
-          user.setOnline(false);
+        if (
+          user.getLastActivity() < cutoffTime &&
+          user.changeOnline(false)
+        ) {
+          onlineUsers.decrementAndGet();
           inactiveCount++;
           logger.debug(
             "Usuario '{}' marcado como inactivo",
@@ -272,6 +678,7 @@ public class ChatRoom {
       }
 
       if (inactiveCount > 0) {
+        membershipChanged();
         logger.info(
           "Limpieza completada en sala '{}': {} usuarios marcados como inactivos",
           roomName,
@@ -289,18 +696,42 @@ public class ChatRoom {
   public void cleanup() {
     logger.info("Cerrando sala '{}'...", roomName);
 
-    cleanupExecutor.shutdown();
-    try {
-      if (!cleanupExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+    cleanupTask.cancel(false);
+    if (ownsCleanupExecutor) {
+      cleanupExecutor.shutdown();
+      try {
+        if (!cleanupExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+          cleanupExecutor.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
         cleanupExecutor.shutdownNow();
       }
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      cleanupExecutor.shutdownNow();
     }
 
     users.clear();
+    usernames.clear();
+    subscribers.clear();
+    totalUsers.set(RETIRED);
+    onlineUsers.set(0);
+    membershipChanged();
     messages.clear();
+    searchIndex.clear();
+    historyPages.clear();
+    for (int i = 0; i < MAX_MESSAGES; i++) {
+      recentEvents.set(i, null);
+    }
+
+    // El log conserva el historial para cuando la sala vuelva a crearse
+    MessageLog log = messageLog;
+    if (log != null) {
+      messageLog = null;
+      try {
+        log.close();
+      } catch (IOException e) {
+        logger.error("Error cerrando el log de la sala '{}'", roomName, e);
+      }
+    }
 
     logger.info("Sala '{}' cerrada", roomName);
   }
@@ -318,6 +749,21 @@ public class ChatRoom {
     return createdAt;
   }
 
+  /**
+   * Lista ordenada de usuarios activos junto con la versión de membresía
+   * con la que se construyó
+   */
+  private static class ActiveUsersSnapshot {
+
+    final long version;
+    final List<ChatUser> users;
+
+    ActiveUsersSnapshot(long version, List<ChatUser> users) {
+      this.version = version;
+      this.users = users;
+    }
+  }
+
   /**
    * Clase para estadísticas de la sala
    */
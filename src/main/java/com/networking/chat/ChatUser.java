@@ -1,55 +1,85 @@
 package com.networking.chat;
 
-import java.time.LocalDateTime;
+import com.networking.util.CachedClock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Representa un usuario del chat
  */
 public class ChatUser {
 
+  /**
+   * Longitud máxima de un nombre de usuario, en caracteres
+   */
+  public static final int MAX_USERNAME_LENGTH = 64;
+
+  private static final AtomicLong NUMERIC_ID_SEQUENCE = new AtomicLong(0);
+
   private final String id;
+  private final long numericId;
   private final String username;
-  private final LocalDateTime joinedAt;
-  private volatile LocalDateTime lastActivity;
-  private volatile boolean online;
+  // Instantes en milisegundos epoch
+  private final long joinedAt;
+  private volatile long lastActivity;
+  private final AtomicBoolean online = new AtomicBoolean(true);
 
   public ChatUser(String id, String username) {
-    this.id = id;
-    this.username = username;
-    this.joinedAt = LocalDateTime.now();
-    this.lastActivity = LocalDateTime.now();
-    this.online = true;
+    // Los mensajes comparten estas cadenas en lugar de copiarlas
+    this.id = id != null ? id.intern() : null;
+    this.numericId = NUMERIC_ID_SEQUENCE.incrementAndGet();
+    this.username = username != null ? username.intern() : null;
+    this.joinedAt = CachedClock.currentTimeMillis();
+    this.lastActivity = joinedAt;
   }
 
   public String getId() {
     return id;
   }
 
+  /**
+   * Identificador numérico compacto, único dentro del proceso, usado por
+   * los protocolos binarios
+   */
+  public long getNumericId() {
+    return numericId;
+  }
+
   public String getUsername() {
     return username;
   }
 
-  public LocalDateTime getJoinedAt() {
+  public long getJoinedAt() {
     return joinedAt;
   }
 
-  public LocalDateTime getLastActivity() {
+  public long getLastActivity() {
     return lastActivity;
   }
 
   public void updateActivity() {
-    this.lastActivity = LocalDateTime.now();
+    this.lastActivity = CachedClock.currentTimeMillis();
   }
 
   public boolean isOnline() {
-    return online;
+    return online.get();
   }
 
   public void setOnline(boolean online) {
-    this.online = online;
+    changeOnline(online);
+  }
+
+  /**
+   * Cambia el estado de conexión de forma atómica
+   * @return true si el estado cambió; permite a la sala ajustar sus
+   *         contadores una sola vez por transición
+   */
+  public boolean changeOnline(boolean online) {
+    boolean changed = this.online.compareAndSet(!online, online);
     if (online) {
       updateActivity();
     }
+    return changed;
   }
 
   @Override
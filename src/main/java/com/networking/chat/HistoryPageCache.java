@@ -0,0 +1,247 @@
+package com.networking.chat;
+
+import com.networking.chat.protocol.ChatProtocols;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Páginas del historial de una sala listas para servir por HTTP.
+ *
+ * El historial se divide en páginas fijas de PAGE_SIZE mensajes según la
+ * secuencia de cada mensaje: la página k cubre [k*PAGE_SIZE,
+ * (k+1)*PAGE_SIZE). Una página completa ya no cambia, así que se serializa
+ * una sola vez y se guarda junto con su ETag; las peticiones repetidas o
+ * concurrentes de esa página comparten el mismo array de bytes. La página
+ * más reciente, que todavía se está llenando, se construye en cada
+ * petición.
+ */
+public class HistoryPageCache {
+
+  public static final int PAGE_SIZE = 50;
+  public static final int MAX_LIMIT = 200;
+  // Sin cursor: se pide la página más reciente
+  public static final long NO_CURSOR = -1;
+
+  private final String roomId;
+  private final MessageHistory history;
+  private final Map<Long, HistoryPage> pages = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public HistoryPageCache(String roomId, MessageHistory history) {
+    this.roomId = roomId;
+    this.history = history;
+  }
+
+  /**
+   * Obtiene una página del historial
+   * @param before secuencia (exclusiva) hasta la que leer, o NO_CURSOR
+   *               para la página más reciente
+   * @param limit mensajes por página; solo las páginas de PAGE_SIZE
+   *              alineadas se cachean
+   */
+  public HistoryPage getPage(long before, int limit) {
+    limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+    long total = history.getNextSequence();
+    long oldest = history.getOldestSequence();
+
+    long end;
+    long start;
+    if (before == NO_CURSOR) {
+      // Página en curso: desde el último límite de página hasta el final
+      end = total;
+      start = limit == PAGE_SIZE
+        ? ((Math.max(end, 1) - 1) / PAGE_SIZE) * PAGE_SIZE
+        : end - limit;
+    } else {
+      end = Math.min(before, total);
+      start = end - limit;
+    }
+    start = Math.max(start, oldest);
+    end = Math.max(end, start);
+
+    boolean complete =
+      limit == PAGE_SIZE && end - start == PAGE_SIZE && end % PAGE_SIZE == 0;
+    if (!complete) {
+      misses.increment();
+      return buildPage(start, end, oldest);
+    }
+
+    long pageNumber = end / PAGE_SIZE - 1;
+    HistoryPage page = pages.get(pageNumber);
+    if (page != null) {
+      hits.increment();
+      return page;
+    }
+
+    misses.increment();
+    HistoryPage built = buildPage(start, end, oldest);
+    if (built.getMessageCount() != PAGE_SIZE) {
+      // Algún mensaje aún no se ha publicado o ya salió del historial
+      return built;
+    }
+    built.serialize();
+    HistoryPage existing = pages.putIfAbsent(pageNumber, built);
+    evictBefore(oldest / PAGE_SIZE);
+    return existing != null ? existing : built;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Número de páginas serializadas en caché
+   */
+  public int getCachedPageCount() {
+    return pages.size();
+  }
+
+  public void clear() {
+    pages.clear();
+  }
+
+  private HistoryPage buildPage(long start, long end, long oldest) {
+    long[] sequences = new long[(int) (end - start)];
+    List<ChatMessage> messages = history.getRange(start, end, sequences);
+    long nextBefore = start > oldest ? start : NO_CURSOR;
+    return new HistoryPage(roomId, start, end, messages, sequences, nextBefore);
+  }
+
+  /**
+   * Retira las páginas cuyos mensajes ya salieron del historial
+   */
+  private void evictBefore(long firstRetainedPage) {
+    pages.keySet().removeIf(pageNumber -> pageNumber < firstRetainedPage);
+  }
+
+  /**
+   * Página del historial con su ETag. El cuerpo JSON se genera al pedirlo
+   * y, en las páginas cacheadas, una sola vez.
+   */
+  public static class HistoryPage {
+
+    private final String roomId;
+    private final List<ChatMessage> messages;
+    // Secuencia de cada mensaje, en las primeras messages.size() posiciones
+    private final long[] sequences;
+    private final long nextBefore;
+    private final String etag;
+    private volatile byte[] body;
+
+    /**
+     * @param start primera secuencia pedida, tras aplicar cursor y límite
+     * @param end secuencia final (exclusiva) pedida
+     */
+    HistoryPage(
+      String roomId,
+      long start,
+      long end,
+      List<ChatMessage> messages,
+      long[] sequences,
+      long nextBefore
+    ) {
+      this.roomId = roomId;
+      this.messages = messages;
+      this.sequences = sequences;
+      this.nextBefore = nextBefore;
+      this.etag = computeEtag(roomId, start, end, messages, nextBefore);
+    }
+
+    /**
+     * ETag fuerte de la página: la sala, el rango de secuencias al que se
+     * resolvieron el cursor y el límite, los ids (únicos) del primer y
+     * último mensaje y el cursor de la página anterior. Se puede comparar
+     * sin serializar la página y no coincide entre salas ni entre cursores
+     * que devuelvan páginas distintas.
+     */
+    public String getEtag() {
+      return etag;
+    }
+
+    /**
+     * Documento JSON de la página. El array es compartido y no debe
+     * modificarse.
+     */
+    public byte[] getBody() {
+      byte[] current = body;
+      return current != null ? current : serialize();
+    }
+
+    public List<ChatMessage> getMessages() {
+      return messages;
+    }
+
+    public int getMessageCount() {
+      return messages.size();
+    }
+
+    /**
+     * Secuencia del mensaje en la posición index de la página
+     */
+    public long getSequence(int index) {
+      return sequences[index];
+    }
+
+    /**
+     * Secuencia a usar como before para la página anterior, o NO_CURSOR
+     * si no hay mensajes más antiguos
+     */
+    public long getNextBefore() {
+      return nextBefore;
+    }
+
+    byte[] serialize() {
+      try {
+        byte[] encoded = ChatProtocols.JSON.encodeHistoryPage(
+          roomId,
+          messages,
+          sequences,
+          nextBefore
+        );
+        body = encoded;
+        return encoded;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private static String computeEtag(
+      String roomId,
+      long start,
+      long end,
+      List<ChatMessage> messages,
+      long nextBefore
+    ) {
+      // El id de sala puede llevar letras no ASCII; la cabecera, no
+      StringBuilder etag = new StringBuilder("\"")
+        .append(URLEncoder.encode(roomId, StandardCharsets.UTF_8))
+        .append(':')
+        .append(start)
+        .append('-')
+        .append(end)
+        .append(':')
+        .append(nextBefore)
+        .append(':')
+        .append(messages.size());
+      if (!messages.isEmpty()) {
+        etag
+          .append(':')
+          .append(Long.toHexString(messages.get(0).getId()))
+          .append('-')
+          .append(Long.toHexString(messages.get(messages.size() - 1).getId()));
+      }
+      return etag.append('"').toString();
+    }
+  }
+}
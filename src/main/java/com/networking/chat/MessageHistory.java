@@ -0,0 +1,212 @@
+package com.networking.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Historial de mensajes de capacidad fija sobre un buffer circular sin locks.
+ *
+ * Cada mensaje recibe un número de secuencia creciente al reservar su
+ * posición; la ranura guarda el mensaje junto con su secuencia, de modo que
+ * un lector distingue una ranura vigente de una ya sobrescrita o todavía no
+ * publicada. Añadir es O(1) y leer los últimos k mensajes es O(k), sin
+ * copiar el historial completo.
+ */
+public class MessageHistory {
+
+  private final int capacity;
+  private final AtomicReferenceArray<Slot> slots;
+  // Secuencia del primer mensaje
+  private final long initialSequence;
+
+  // Siguiente secuencia a reservar
+  private final AtomicLong nextSequence;
+  // Secuencia a partir de la cual se retienen mensajes tras el último
+  // clear(); las anteriores ya no se devuelven aunque sigan en una ranura
+  private volatile long clearedSequence;
+
+  public MessageHistory(int capacity) {
+    this(capacity, 0);
+  }
+
+  /**
+   * @param initialSequence secuencia del primer mensaje. Una sala que
+   *                        arranca su historial por encima de cualquier
+   *                        secuencia usada antes permite a los clientes
+   *                        distinguir sus mensajes de los de una sala
+   *                        anterior con el mismo id.
+   */
+  public MessageHistory(int capacity, long initialSequence) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException(
+        "La capacidad del historial debe ser positiva"
+      );
+    }
+    this.capacity = capacity;
+    this.slots = new AtomicReferenceArray<>(capacity);
+    this.initialSequence = initialSequence;
+    this.nextSequence = new AtomicLong(initialSequence);
+    this.clearedSequence = initialSequence;
+  }
+
+  /**
+   * Añade un mensaje, desplazando el más antiguo si el historial está lleno
+   * @return secuencia asignada al mensaje
+   */
+  public long append(ChatMessage message) {
+    long sequence = nextSequence.getAndIncrement();
+    int index = indexOf(sequence);
+    Slot slot = new Slot(sequence, message);
+
+    while (true) {
+      Slot current = slots.get(index);
+      // Un escritor más rápido ya ocupó la ranura con un mensaje posterior:
+      // este mensaje habría sido desplazado igualmente
+      if (current != null && current.sequence > sequence) {
+        return sequence;
+      }
+      if (slots.compareAndSet(index, current, slot)) {
+        return sequence;
+      }
+    }
+  }
+
+  /**
+   * Obtiene los últimos mensajes en orden de llegada. Los mensajes cuya
+   * escritura sigue en curso en otro hilo no se incluyen.
+   * @param limit número máximo de mensajes
+   */
+  public List<ChatMessage> getRecent(int limit) {
+    long end = nextSequence.get();
+    long start = Math.max(oldestRetained(end), end - Math.min(limit, capacity));
+    List<ChatMessage> result = new ArrayList<>((int) (end - start));
+
+    for (long sequence = start; sequence < end; sequence++) {
+      Slot slot = slots.get(indexOf(sequence));
+      if (slot != null && slot.sequence == sequence) {
+        result.add(slot.message);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Obtiene los mensajes retenidos con secuencia en [fromSequence,
+   * toSequence), en orden de llegada
+   */
+  public List<ChatMessage> getRange(long fromSequence, long toSequence) {
+    return getRange(fromSequence, toSequence, null);
+  }
+
+  /**
+   * Como getRange(long, long), guardando además la secuencia de cada
+   * mensaje devuelto
+   * @param sequences destino de las secuencias, con sitio para
+   *                  toSequence - fromSequence valores, o null
+   */
+  public List<ChatMessage> getRange(
+    long fromSequence,
+    long toSequence,
+    long[] sequences
+  ) {
+    long next = nextSequence.get();
+    long end = Math.min(toSequence, next);
+    long start = Math.max(fromSequence, oldestRetained(next));
+    List<ChatMessage> result = new ArrayList<>((int) Math.max(0, end - start));
+
+    for (long sequence = start; sequence < end; sequence++) {
+      Slot slot = slots.get(indexOf(sequence));
+      if (slot != null && slot.sequence == sequence) {
+        if (sequences != null) {
+          sequences[result.size()] = sequence;
+        }
+        result.add(slot.message);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Secuencia del mensaje más antiguo retenido
+   */
+  public long getOldestSequence() {
+    return oldestRetained(nextSequence.get());
+  }
+
+  /**
+   * Secuencia que recibirá el próximo mensaje
+   */
+  public long getNextSequence() {
+    return nextSequence.get();
+  }
+
+  /**
+   * Obtiene una copia de todos los mensajes retenidos
+   */
+  public List<ChatMessage> snapshot() {
+    return getRecent(capacity);
+  }
+
+  /**
+   * Número de mensajes retenidos, sin contar los anteriores al último
+   * clear()
+   */
+  public int size() {
+    long next = nextSequence.get();
+    return (int) (next - oldestRetained(next));
+  }
+
+  /**
+   * Total de mensajes añadidos desde la creación del historial. Es
+   * acumulado: incluye los que ya se desplazaron o se vaciaron con clear()
+   */
+  public long getTotalAppended() {
+    return nextSequence.get() - initialSequence;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Vacía el historial. Las secuencias no se reinician: el siguiente
+   * mensaje recibe la que le tocaba y getOldestSequence() pasa a ser esa.
+   */
+  public void clear() {
+    clearedSequence = nextSequence.get();
+    for (int i = 0; i < capacity; i++) {
+      slots.set(i, null);
+    }
+  }
+
+  /**
+   * Secuencia del mensaje más antiguo retenido cuando la siguiente a
+   * reservar es next
+   */
+  private long oldestRetained(long next) {
+    return Math.max(
+      clearedSequence,
+      Math.max(initialSequence, next - capacity)
+    );
+  }
+
+  private int indexOf(long sequence) {
+    return (int) (sequence % capacity);
+  }
+
+  /**
+   * Ranura inmutable: mensaje y secuencia se publican juntos
+   */
+  private static class Slot {
+
+    final long sequence;
+    final ChatMessage message;
+
+    Slot(long sequence, ChatMessage message) {
+      this.sequence = sequence;
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.networking.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generador de ids de mensaje de 64 bits, únicos y monótonos.
+ *
+ * Formato: 41 bits de milisegundos desde EPOCH_MILLIS, 10 bits de nodo y
+ * 12 bits de secuencia dentro del milisegundo. Timestamp y secuencia se
+ * reservan juntos con un CAS, así que dos hilos nunca obtienen el mismo id
+ * y cada id es mayor que el anterior aunque el reloj retroceda: si se agota
+ * la secuencia de un milisegundo, o el reloj va hacia atrás, los ids
+ * siguientes toman prestado el milisegundo siguiente.
+ */
+public final class MessageIdGenerator {
+
+  // 2024-01-01T00:00:00Z
+  public static final long EPOCH_MILLIS = 1704067200000L;
+
+  private static final int NODE_BITS = 10;
+  private static final int SEQUENCE_BITS = 12;
+  private static final long MAX_NODE = (1L << NODE_BITS) - 1;
+  private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+  // Nodo configurable con -Dchat.nodeId=N para despliegues con varias
+  // instancias
+  private static final MessageIdGenerator DEFAULT = new MessageIdGenerator(
+    Long.getLong("chat.nodeId", 0L)
+  );
+
+  private final long node;
+  // Último (milisegundo << SEQUENCE_BITS | secuencia) reservado
+  private final AtomicLong lastState = new AtomicLong(0);
+
+  public MessageIdGenerator(long node) {
+    if (node < 0 || node > MAX_NODE) {
+      throw new IllegalArgumentException(
+        "El id de nodo debe estar entre 0 y " + MAX_NODE
+      );
+    }
+    this.node = node;
+  }
+
+  public static MessageIdGenerator getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Genera el siguiente id
+   */
+  public long nextId() {
+    long now = (System.currentTimeMillis() - EPOCH_MILLIS) << SEQUENCE_BITS;
+    while (true) {
+      long last = lastState.get();
+      long next = Math.max(now, last + 1);
+      if (lastState.compareAndSet(last, next)) {
+        long millis = next >>> SEQUENCE_BITS;
+        return (
+          (millis << (NODE_BITS + SEQUENCE_BITS)) |
+          (node << SEQUENCE_BITS) |
+          (next & SEQUENCE_MASK)
+        );
+      }
+    }
+  }
+
+  /**
+   * Instante de creación codificado en un id, en milisegundos epoch
+   */
+  public static long timestampOf(long id) {
+    return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH_MILLIS;
+  }
+
+  /**
+   * Nodo que generó un id
+   */
+  public static int nodeOf(long id) {
+    return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE);
+  }
+}
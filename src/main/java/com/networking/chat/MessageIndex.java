@@ -0,0 +1,393 @@
+package com.networking.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Índice invertido de los mensajes retenidos en el historial de una sala.
+ *
+ * Cada mensaje se divide en tokens (secuencias de letras y dígitos en
+ * minúsculas) y su posición se añade a la lista de apariciones de cada
+ * token. El índice retiene como mucho la misma cantidad de mensajes que el
+ * historial: al añadir el mensaje N+capacidad se retiran del índice los
+ * tokens del mensaje N. Las listas de apariciones están ordenadas, así que
+ * una búsqueda recorre solo las apariciones de sus términos, del mensaje
+ * más reciente al más antiguo, sin tocar el resto del historial.
+ *
+ * Sintaxis de consulta: términos separados por espacios que deben aparecer
+ * todos; un término terminado en '*' busca por prefijo.
+ */
+public class MessageIndex {
+
+  public static final long NO_CURSOR = Long.MAX_VALUE;
+
+  private final int capacity;
+  private final Entry[] entries;
+  // Token -> posiciones ascendentes de los mensajes que lo contienen
+  private final NavigableMap<String, Postings> postings = new TreeMap<>();
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private long nextPosition = 0;
+
+  public MessageIndex(int capacity) {
+    this.capacity = capacity;
+    this.entries = new Entry[capacity];
+  }
+
+  /**
+   * Indexa un mensaje, retirando el más antiguo si se supera la capacidad
+   */
+  public void add(ChatMessage message) {
+    String[] tokens = tokenize(message.getContent());
+
+    lock.writeLock().lock();
+    try {
+      long position = nextPosition++;
+      int slot = (int) (position % capacity);
+
+      Entry evicted = entries[slot];
+      if (evicted != null) {
+        for (String token : evicted.tokens) {
+          Postings list = postings.get(token);
+          // La posición retirada es siempre la más antigua de la lista
+          list.removeFirst();
+          if (list.isEmpty()) {
+            postings.remove(token);
+          }
+        }
+      }
+
+      entries[slot] = new Entry(position, message, tokens);
+      for (String token : tokens) {
+        postings.computeIfAbsent(token, t -> new Postings()).add(position);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Busca mensajes que contengan todos los términos de la consulta
+   * @param query términos separados por espacios; "abc*" busca por prefijo
+   * @param limit número máximo de resultados
+   * @param before cursor devuelto por la página anterior, o NO_CURSOR
+   * @return página de resultados del más reciente al más antiguo
+   */
+  public Page search(String query, int limit, long before) {
+    List<Term> terms = parseQuery(query);
+    if (terms.isEmpty() || limit <= 0) {
+      return new Page(new ArrayList<>(), NO_CURSOR);
+    }
+
+    lock.readLock().lock();
+    try {
+      // Recorrer el término más selectivo y comprobar el resto en cada
+      // candidato
+      Term driver = terms.get(0);
+      int driverSize = Integer.MAX_VALUE;
+      for (Term term : terms) {
+        int size = countPositions(term);
+        if (size < driverSize) {
+          driver = term;
+          driverSize = size;
+        }
+      }
+      PositionList candidates = positionsOf(driver);
+
+      List<ChatMessage> results = new ArrayList<>(Math.min(limit, 64));
+      long lastPosition = NO_CURSOR;
+      long cursor = NO_CURSOR;
+      for (int i = lowerBound(candidates, before) - 1; i >= 0; i--) {
+        long position = candidates.get(i);
+        Entry entry = entries[(int) (position % capacity)];
+        if (
+          entry == null ||
+          entry.position != position ||
+          !matchesAll(entry, terms, driver)
+        ) {
+          continue;
+        }
+        if (results.size() == limit) {
+          // Queda al menos un resultado más antiguo
+          cursor = lastPosition;
+          break;
+        }
+        results.add(entry.message);
+        lastPosition = position;
+      }
+      return new Page(results, cursor);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Número de tokens distintos indexados
+   */
+  public int getTokenCount() {
+    lock.readLock().lock();
+    try {
+      return postings.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      Arrays.fill(entries, null);
+      postings.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private int countPositions(Term term) {
+    if (!term.prefix) {
+      Postings list = postings.get(term.token);
+      return list != null ? list.size() : 0;
+    }
+    int total = 0;
+    for (Postings list : prefixMatches(term).values()) {
+      total += list.size();
+    }
+    return total;
+  }
+
+  private PositionList positionsOf(Term term) {
+    if (!term.prefix) {
+      Postings list = postings.get(term.token);
+      return list != null ? list : Postings.EMPTY;
+    }
+
+    // Prefijo: unir las apariciones de todos los tokens que empiezan así
+    Map<String, Postings> matching = prefixMatches(term);
+    int total = 0;
+    for (Postings list : matching.values()) {
+      total += list.size();
+    }
+    long[] positions = new long[total];
+    int offset = 0;
+    for (Postings list : matching.values()) {
+      offset = list.copyTo(positions, offset);
+    }
+    Arrays.sort(positions);
+    return new ArrayPositions(positions);
+  }
+
+  private Map<String, Postings> prefixMatches(Term term) {
+    return postings.subMap(
+      term.token,
+      true,
+      term.token + Character.MAX_VALUE,
+      false
+    );
+  }
+
+  private static boolean matchesAll(Entry entry, List<Term> terms, Term skip) {
+    for (Term term : terms) {
+      if (term != skip && !entry.contains(term)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Primer índice de la lista con valor mayor o igual que key
+   */
+  private static int lowerBound(PositionList sorted, long key) {
+    int low = 0;
+    int high = sorted.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sorted.get(mid) < key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private static List<Term> parseQuery(String query) {
+    List<Term> terms = new ArrayList<>();
+    if (query == null) {
+      return terms;
+    }
+    for (String word : query.trim().split("\\s+")) {
+      boolean prefix = word.endsWith("*");
+      String[] tokens = tokenize(prefix ? word.substring(0, word.length() - 1) : word);
+      for (int i = 0; i < tokens.length; i++) {
+        // Solo el último token de un término con '*' es prefijo
+        terms.add(new Term(tokens[i], prefix && i == tokens.length - 1));
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * Divide un texto en tokens distintos de letras y dígitos en minúsculas
+   */
+  static String[] tokenize(String text) {
+    if (text == null || text.isEmpty()) {
+      return new String[0];
+    }
+    Set<String> tokens = new LinkedHashSet<>();
+    StringBuilder current = new StringBuilder();
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (Character.isLetterOrDigit(c)) {
+        current.append(Character.toLowerCase(c));
+      } else if (current.length() > 0) {
+        tokens.add(current.toString());
+        current.setLength(0);
+      }
+    }
+    if (current.length() > 0) {
+      tokens.add(current.toString());
+    }
+    return tokens.toArray(new String[0]);
+  }
+
+  /**
+   * Página de resultados de una búsqueda
+   */
+  public static class Page {
+
+    public final List<ChatMessage> messages;
+    // Cursor para pedir la página siguiente, o NO_CURSOR si no hay más
+    public final long nextCursor;
+
+    public Page(List<ChatMessage> messages, long nextCursor) {
+      this.messages = messages;
+      this.nextCursor = nextCursor;
+    }
+
+    public boolean hasMore() {
+      return nextCursor != NO_CURSOR;
+    }
+  }
+
+  private static class Term {
+
+    final String token;
+    final boolean prefix;
+
+    Term(String token, boolean prefix) {
+      this.token = token;
+      this.prefix = prefix;
+    }
+  }
+
+  /**
+   * Mensaje indexado con su posición y sus tokens
+   */
+  private static class Entry {
+
+    final long position;
+    final ChatMessage message;
+    final String[] tokens;
+
+    Entry(long position, ChatMessage message, String[] tokens) {
+      this.position = position;
+      this.message = message;
+      this.tokens = tokens;
+    }
+
+    boolean contains(Term term) {
+      for (String token : tokens) {
+        if (term.prefix ? token.startsWith(term.token) : token.equals(term.token)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Lista ordenada de posiciones con acceso por índice
+   */
+  private interface PositionList {
+    int size();
+
+    long get(int index);
+  }
+
+  private static class ArrayPositions implements PositionList {
+
+    private final long[] positions;
+
+    ArrayPositions(long[] positions) {
+      this.positions = positions;
+    }
+
+    @Override
+    public int size() {
+      return positions.length;
+    }
+
+    @Override
+    public long get(int index) {
+      return positions[index];
+    }
+  }
+
+  /**
+   * Cola de posiciones ascendentes sin boxing
+   */
+  private static class Postings implements PositionList {
+
+    static final Postings EMPTY = new Postings();
+
+    private long[] values = new long[4];
+    private int head = 0;
+    private int size = 0;
+
+    void add(long position) {
+      if (size == values.length) {
+        long[] grown = new long[values.length * 2];
+        for (int i = 0; i < size; i++) {
+          grown[i] = values[(head + i) % values.length];
+        }
+        values = grown;
+        head = 0;
+      }
+      values[(head + size) % values.length] = position;
+      size++;
+    }
+
+    void removeFirst() {
+      head = (head + 1) % values.length;
+      size--;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public long get(int index) {
+      return values[(head + index) % values.length];
+    }
+
+    int copyTo(long[] target, int offset) {
+      for (int i = 0; i < size; i++) {
+        target[offset++] = values[(head + i) % values.length];
+      }
+      return offset;
+    }
+  }
+}
@@ -0,0 +1,757 @@
+package com.networking.chat;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Log de mensajes persistente, de solo escritura al final, repartido en
+ * segmentos.
+ *
+ * Cada mensaje recibe un offset consecutivo. Los segmentos se llaman como
+ * el offset de su primer mensaje ({@code 00000000000000000042.log}); al
+ * superar el tamaño máximo el segmento activo se sella y se abre otro, y
+ * los segmentos más antiguos se borran según la política de retención.
+ * Cada segmento mantiene un índice disperso (una entrada cada
+ * INDEX_INTERVAL_BYTES) que se guarda en un fichero .index al sellarlo,
+ * de modo que una lectura por offset salta directamente cerca del registro
+ * sin recorrer el segmento desde el principio.
+ *
+ * Formato de registro: longitud (int), CRC32 del cuerpo (int) y cuerpo con
+ * id, tipo, userId, username y contenido UTF-8, cada texto precedido de su
+ * longitud (int, -1 si es null). Los registros de versiones anteriores,
+ * con las longitudes de userId y username como short, no llevan el bit
+ * INT_LENGTHS en el tipo y se siguen leyendo. Al abrir el log se recorre
+ * el segmento activo y se trunca cualquier registro incompleto, corrupto o
+ * que no se puede decodificar; al leer, un registro sellado que no se
+ * puede decodificar se salta.
+ *
+ * Durabilidad según FsyncPolicy:
+ * - NEVER: se confía en el page cache del sistema operativo.
+ * - ALWAYS: un fsync por mensaje.
+ * - GROUP: commit en grupo. Cada escritor espera a que un fsync cubra su
+ *   mensaje; mientras un fsync está en curso, los mensajes que llegan se
+ *   acumulan y el siguiente fsync los confirma todos a la vez.
+ */
+public class MessageLog {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+    MessageLog.class
+  );
+
+  public enum FsyncPolicy {
+    NEVER,
+    GROUP,
+    ALWAYS,
+  }
+
+  private static final String LOG_SUFFIX = ".log";
+  private static final String INDEX_SUFFIX = ".index";
+  private static final int HEADER_BYTES = 8;
+  // Bit del byte de tipo que marca las longitudes de texto como int
+  private static final int INT_LENGTHS = 0x80;
+  private static final int INDEX_INTERVAL_BYTES = 4096;
+  private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+  private static final long DEFAULT_SEGMENT_BYTES = 16L * 1024 * 1024;
+  private static final long DEFAULT_RETENTION_BYTES = 256L * 1024 * 1024;
+  private static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(
+    7
+  );
+
+  private final Path directory;
+  private long segmentBytes = DEFAULT_SEGMENT_BYTES;
+  private long retentionBytes = DEFAULT_RETENTION_BYTES;
+  private long retentionMillis = DEFAULT_RETENTION_MILLIS;
+  private FsyncPolicy fsyncPolicy = FsyncPolicy.GROUP;
+
+  // Segmentos por offset base; el último es el activo
+  private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private volatile Segment active;
+  private volatile long nextOffset = 0;
+  private volatile boolean open = false;
+
+  // Estado del commit en grupo
+  private final ReentrantLock syncLock = new ReentrantLock();
+  private final Condition syncDone = syncLock.newCondition();
+  private boolean syncInProgress = false;
+  // Offsets menores que este ya están en disco
+  private long durableOffset = 0;
+  private long syncCount = 0;
+
+  public MessageLog(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Tamaño a partir del cual se sella el segmento activo
+   */
+  public void setSegmentBytes(long segmentBytes) {
+    this.segmentBytes = segmentBytes;
+  }
+
+  /**
+   * Límites de retención: se borran los segmentos sellados más antiguos
+   * mientras el log supere maxBytes o mientras tengan más de maxAge
+   */
+  public void setRetention(long maxBytes, long maxAge, TimeUnit unit) {
+    this.retentionBytes = maxBytes;
+    this.retentionMillis = unit.toMillis(maxAge);
+  }
+
+  public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+    this.fsyncPolicy = fsyncPolicy;
+  }
+
+  /**
+   * Abre el log, recuperando los segmentos existentes
+   */
+  public void open() throws IOException {
+    Files.createDirectories(directory);
+
+    List<Long> baseOffsets = new ArrayList<>();
+    try (
+      DirectoryStream<Path> files = Files.newDirectoryStream(
+        directory,
+        "*" + LOG_SUFFIX
+      )
+    ) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          baseOffsets.add(
+            Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()))
+          );
+        } catch (NumberFormatException e) {
+          logger.warn("Ignorando fichero desconocido en el log: {}", file);
+        }
+      }
+    }
+    baseOffsets.sort(null);
+
+    for (int i = 0; i < baseOffsets.size(); i++) {
+      boolean last = i == baseOffsets.size() - 1;
+      Segment segment = new Segment(directory, baseOffsets.get(i));
+      if (last || !segment.loadIndex()) {
+        // El segmento activo se recorre siempre para descartar una posible
+        // escritura a medias
+        segment.recover();
+      }
+      segments.put(segment.baseOffset, segment);
+    }
+
+    if (segments.isEmpty()) {
+      active = new Segment(directory, 0);
+      segments.put(0L, active);
+    } else {
+      active = segments.lastEntry().getValue();
+    }
+    active.openForAppend();
+    nextOffset = active.baseOffset + active.count;
+    durableOffset = nextOffset;
+    open = true;
+
+    applyRetention();
+    logger.info(
+      "Log de mensajes abierto en {} - Segmentos: {}, offsets {}..{}",
+      directory,
+      segments.size(),
+      getFirstOffset(),
+      nextOffset
+    );
+  }
+
+  /**
+   * Añade un mensaje al final del log
+   * @return offset asignado al mensaje
+   */
+  public long append(ChatMessage message) throws IOException {
+    ByteBuffer record = encode(message);
+    long offset;
+
+    writeLock.lock();
+    try {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      if (
+        active.count > 0 && active.size + record.remaining() > segmentBytes
+      ) {
+        roll();
+      }
+      offset = nextOffset;
+      active.write(offset, record);
+      nextOffset = offset + 1;
+      if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+        active.channel.force(false);
+        markDurable(offset + 1);
+      }
+    } finally {
+      writeLock.unlock();
+    }
+
+    if (fsyncPolicy == FsyncPolicy.GROUP) {
+      awaitDurable(offset + 1);
+    }
+    return offset;
+  }
+
+  /**
+   * Lee mensajes a partir de un offset. Si el offset ya salió por
+   * retención se empieza por el mensaje más antiguo disponible.
+   * @param maxMessages número máximo de mensajes
+   */
+  public List<ChatMessage> read(long fromOffset, int maxMessages)
+    throws IOException {
+    List<ChatMessage> result = new ArrayList<>();
+    long end = nextOffset;
+    Map.Entry<Long, Segment> start = segments.floorEntry(fromOffset);
+    Long key = start != null ? start.getKey() : segments.firstKey();
+
+    for (
+      Map.Entry<Long, Segment> entry = segments.ceilingEntry(key);
+      entry != null && result.size() < maxMessages;
+      entry = segments.higherEntry(entry.getKey())
+    ) {
+      try {
+        entry.getValue().read(fromOffset, end, maxMessages, result);
+      } catch (NoSuchFileException e) {
+        // Segmento borrado por retención durante la lectura
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Lee los últimos mensajes en orden de llegada
+   */
+  public List<ChatMessage> readRecent(int limit) throws IOException {
+    long from = Math.max(getFirstOffset(), nextOffset - limit);
+    return read(from, limit);
+  }
+
+  /**
+   * Offset del mensaje más antiguo retenido
+   */
+  public long getFirstOffset() {
+    Map.Entry<Long, Segment> first = segments.firstEntry();
+    return first != null ? first.getKey() : 0;
+  }
+
+  /**
+   * Offset que recibirá el próximo mensaje
+   */
+  public long getNextOffset() {
+    return nextOffset;
+  }
+
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Número de fsync ejecutados; con commit en grupo es menor que el número
+   * de mensajes
+   */
+  public long getSyncCount() {
+    syncLock.lock();
+    try {
+      return syncCount;
+    } finally {
+      syncLock.unlock();
+    }
+  }
+
+  /**
+   * Fuerza a disco lo escrito, sella el índice del segmento activo y
+   * cierra el log
+   */
+  public void close() throws IOException {
+    writeLock.lock();
+    try {
+      if (!open) {
+        return;
+      }
+      open = false;
+      active.seal();
+      markDurable(nextOffset);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Sella el segmento activo y abre uno nuevo. Se llama con writeLock.
+   */
+  private void roll() throws IOException {
+    active.seal();
+    markDurable(nextOffset);
+
+    Segment next = new Segment(directory, nextOffset);
+    next.openForAppend();
+    segments.put(next.baseOffset, next);
+    active = next;
+    applyRetention();
+  }
+
+  /**
+   * Borra los segmentos sellados que exceden la retención
+   */
+  private void applyRetention() {
+    long totalBytes = 0;
+    for (Segment segment : segments.values()) {
+      totalBytes += segment.size;
+    }
+    long cutoff = System.currentTimeMillis() - retentionMillis;
+
+    for (Segment segment : segments.values()) {
+      if (segment == active) {
+        break;
+      }
+      if (totalBytes <= retentionBytes && segment.lastModified() >= cutoff) {
+        break;
+      }
+      segments.remove(segment.baseOffset);
+      totalBytes -= segment.size;
+      segment.delete();
+      logger.debug(
+        "Segmento {} retirado por retención del log {}",
+        segment.baseOffset,
+        directory
+      );
+    }
+  }
+
+  /**
+   * Espera a que un fsync cubra los offsets menores que target. Si no hay
+   * ninguno en curso este hilo lo ejecuta para todos los pendientes.
+   */
+  private void awaitDurable(long target) throws IOException {
+    syncLock.lock();
+    try {
+      while (durableOffset < target) {
+        if (syncInProgress) {
+          syncDone.awaitUninterruptibly();
+          continue;
+        }
+        syncInProgress = true;
+        // Todo lo escrito hasta aquí queda cubierto por este fsync: lo
+        // anterior al segmento activo ya se forzó al sellarlo
+        long covered = nextOffset;
+        Segment segment = active;
+        syncLock.unlock();
+        boolean synced = false;
+        try {
+          segment.channel.force(false);
+          synced = true;
+        } catch (ClosedChannelException e) {
+          // El segmento se selló mientras tanto y el sellado ya lo forzó
+          synced = true;
+        } finally {
+          syncLock.lock();
+          syncInProgress = false;
+          if (synced) {
+            durableOffset = Math.max(durableOffset, covered);
+            syncCount++;
+          }
+          syncDone.signalAll();
+        }
+      }
+    } finally {
+      syncLock.unlock();
+    }
+  }
+
+  private void markDurable(long offset) {
+    syncLock.lock();
+    try {
+      durableOffset = Math.max(durableOffset, offset);
+      syncCount++;
+      syncDone.signalAll();
+    } finally {
+      syncLock.unlock();
+    }
+  }
+
+  private static ByteBuffer encode(ChatMessage message) {
+    byte[] userId = utf8(message.getUserId());
+    byte[] username = utf8(message.getUsername());
+    byte[] content = message.getContentBytes();
+    int bodyLength =
+      8 +
+      1 +
+      4 +
+      lengthOf(userId) +
+      4 +
+      lengthOf(username) +
+      4 +
+      content.length;
+
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + bodyLength);
+    buffer.putInt(bodyLength);
+    buffer.putInt(0);
+    buffer.putLong(message.getId());
+    buffer.put((byte) (message.getType().ordinal() | INT_LENGTHS));
+    putBytes(buffer, userId);
+    putBytes(buffer, username);
+    buffer.putInt(content.length);
+    buffer.put(content);
+
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), HEADER_BYTES, bodyLength);
+    buffer.putInt(4, (int) crc.getValue());
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Decodifica el cuerpo de un registro
+   * @return el mensaje, o null si el cuerpo no es un mensaje válido
+   */
+  private static ChatMessage decode(ByteBuffer body) {
+    try {
+      long id = body.getLong();
+      int typeByte = body.get() & 0xFF;
+      boolean intLengths = (typeByte & INT_LENGTHS) != 0;
+      int ordinal = typeByte & ~INT_LENGTHS;
+      ChatMessage.MessageType type = ChatMessage.MessageType.values()[ordinal];
+      String userId = intLengths ? getString(body) : getShortString(body);
+      String username = intLengths ? getString(body) : getShortString(body);
+      int contentLength = body.getInt();
+      if (contentLength < 0 || contentLength != body.remaining()) {
+        return null;
+      }
+      byte[] content = new byte[contentLength];
+      body.get(content);
+      return new ChatMessage(id, userId, username, content, type);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      return null;
+    }
+  }
+
+  private static byte[] utf8(String value) {
+    return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+  }
+
+  private static int lengthOf(byte[] bytes) {
+    return bytes != null ? bytes.length : 0;
+  }
+
+  private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+    if (bytes == null) {
+      buffer.putInt(-1);
+      return;
+    }
+    buffer.putInt(bytes.length);
+    buffer.put(bytes);
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    return readString(buffer, buffer.getInt());
+  }
+
+  /**
+   * Texto con la longitud como short, en registros del formato anterior
+   */
+  private static String getShortString(ByteBuffer buffer) {
+    return readString(buffer, buffer.getShort());
+  }
+
+  private static String readString(ByteBuffer buffer, int length) {
+    if (length < 0) {
+      return null;
+    }
+    if (length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    String value = new String(
+      buffer.array(),
+      buffer.arrayOffset() + buffer.position(),
+      length,
+      StandardCharsets.UTF_8
+    );
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  /**
+   * Fichero de segmento con su índice disperso en memoria
+   */
+  private static class Segment {
+
+    final long baseOffset;
+    final Path logPath;
+    final Path indexPath;
+    FileChannel channel;
+    // Bytes y mensajes válidos; se publican tras escribir cada registro
+    volatile long size = 0;
+    volatile int count = 0;
+
+    // Índice disperso: offset -> posición en el fichero
+    private long[] indexOffsets = new long[16];
+    private long[] indexPositions = new long[16];
+    private volatile int indexSize = 0;
+    private long lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+
+    Segment(Path directory, long baseOffset) {
+      this.baseOffset = baseOffset;
+      String name = String.format("%020d", baseOffset);
+      this.logPath = directory.resolve(name + LOG_SUFFIX);
+      this.indexPath = directory.resolve(name + INDEX_SUFFIX);
+    }
+
+    void openForAppend() throws IOException {
+      channel =
+        FileChannel.open(
+          logPath,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE
+        );
+      channel.truncate(size);
+      channel.position(size);
+    }
+
+    void write(long offset, ByteBuffer record) throws IOException {
+      int length = record.remaining();
+      maybeIndex(offset, size);
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+      size += length;
+      count++;
+    }
+
+    /**
+     * Fuerza el segmento a disco, guarda su índice y cierra el fichero
+     */
+    void seal() throws IOException {
+      channel.force(false);
+      channel.close();
+      ByteBuffer index = ByteBuffer.allocate(indexSize * 16);
+      for (int i = 0; i < indexSize; i++) {
+        index.putLong(indexOffsets[i]);
+        index.putLong(indexPositions[i]);
+      }
+      Files.write(indexPath, index.array());
+    }
+
+    /**
+     * Carga el índice guardado al sellar el segmento
+     * @return false si no existe y hay que reconstruirlo
+     */
+    boolean loadIndex() throws IOException {
+      if (!Files.exists(indexPath)) {
+        return false;
+      }
+      ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+      while (index.remaining() >= 16) {
+        addIndexEntry(index.getLong(), index.getLong());
+      }
+      size = Files.size(logPath);
+      // El número de mensajes de un segmento sellado solo se usa en el
+      // segmento activo
+      return true;
+    }
+
+    /**
+     * Recorre el segmento validando cada registro y reconstruye el índice.
+     * Trunca la cola a partir del primer registro incompleto o corrupto.
+     */
+    void recover() throws IOException {
+      try (
+        FileChannel reader = FileChannel.open(
+          logPath,
+          StandardOpenOption.READ,
+          StandardOpenOption.WRITE
+        )
+      ) {
+        long fileSize = reader.size();
+        long position = 0;
+        int records = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        CRC32 crc = new CRC32();
+
+        while (position + HEADER_BYTES <= fileSize) {
+          header.clear();
+          readFully(reader, header, position);
+          header.flip();
+          int length = header.getInt();
+          int checksum = header.getInt();
+          if (
+            length <= 0 ||
+            length > MAX_RECORD_BYTES ||
+            position + HEADER_BYTES + length > fileSize
+          ) {
+            break;
+          }
+          ByteBuffer body = ByteBuffer.allocate(length);
+          readFully(reader, body, position + HEADER_BYTES);
+          crc.reset();
+          crc.update(body.array(), 0, length);
+          if ((int) crc.getValue() != checksum) {
+            break;
+          }
+          // Un registro íntegro que no se puede decodificar también es
+          // cola corrupta: leerlo después fallaría igual
+          body.flip();
+          if (decode(body) == null) {
+            break;
+          }
+          maybeIndex(baseOffset + records, position);
+          position += HEADER_BYTES + length;
+          records++;
+        }
+
+        if (position < fileSize) {
+          logger.warn(
+            "Truncando {} bytes inválidos al final de {}",
+            fileSize - position,
+            logPath
+          );
+          reader.truncate(position);
+          reader.force(true);
+        }
+        size = position;
+        count = records;
+      }
+    }
+
+    /**
+     * Añade a result los mensajes con offset en [from, end)
+     */
+    void read(long from, long end, int maxMessages, List<ChatMessage> result)
+      throws IOException {
+      long limit = size;
+      int slot = floorIndex(from);
+      long offset = slot >= 0 ? indexOffsets[slot] : baseOffset;
+      long position = slot >= 0 ? indexPositions[slot] : 0;
+
+      try (FileChannel reader = FileChannel.open(logPath, StandardOpenOption.READ)) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (
+          position + HEADER_BYTES <= limit &&
+          offset < end &&
+          result.size() < maxMessages
+        ) {
+          header.clear();
+          readFully(reader, header, position);
+          header.flip();
+          int length = header.getInt();
+          header.getInt();
+          if (offset >= from) {
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(reader, body, position + HEADER_BYTES);
+            body.flip();
+            ChatMessage message = decode(body);
+            if (message != null) {
+              result.add(message);
+            } else {
+              logger.warn(
+                "Registro ilegible en el offset {} de {}; se omite",
+                offset,
+                logPath
+              );
+            }
+          }
+          position += HEADER_BYTES + length;
+          offset++;
+        }
+      }
+    }
+
+    long lastModified() {
+      try {
+        return Files.getLastModifiedTime(logPath).toMillis();
+      } catch (IOException e) {
+        return 0;
+      }
+    }
+
+    void delete() {
+      try {
+        if (channel != null && channel.isOpen()) {
+          channel.close();
+        }
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+      } catch (IOException e) {
+        logger.warn("No se pudo borrar el segmento {}", logPath, e);
+      }
+    }
+
+    private void maybeIndex(long offset, long position) {
+      if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+        addIndexEntry(offset, position);
+      }
+    }
+
+    private void addIndexEntry(long offset, long position) {
+      int n = indexSize;
+      if (n == indexOffsets.length) {
+        // Los lectores pueden estar usando los arrays anteriores: se
+        // publican copias completas antes de incrementar indexSize
+        long[] offsets = Arrays.copyOf(indexOffsets, n * 2);
+        long[] positions = Arrays.copyOf(indexPositions, n * 2);
+        indexOffsets = offsets;
+        indexPositions = positions;
+      }
+      indexOffsets[n] = offset;
+      indexPositions[n] = position;
+      lastIndexedPosition = position;
+      indexSize = n + 1;
+    }
+
+    /**
+     * Última entrada del índice con offset menor o igual que target
+     */
+    private int floorIndex(long target) {
+      int n = indexSize;
+      long[] offsets = indexOffsets;
+      int low = 0;
+      int high = n - 1;
+      int found = -1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (offsets[mid] <= target) {
+          found = mid;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return found;
+    }
+
+    private static void readFully(
+      FileChannel reader,
+      ByteBuffer buffer,
+      long position
+    ) throws IOException {
+      while (buffer.hasRemaining()) {
+        int read = reader.read(buffer, position + buffer.position());
+        if (read < 0) {
+          throw new IOException("Fin de fichero inesperado en el log");
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package com.networking.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buzón de eventos de una sala procesado por un único ejecutor lógico.
+ *
+ * Los eventos se encolan desde cualquier hilo y se ejecutan de uno en uno,
+ * en orden de llegada, sobre un pool compartido por todas las salas: como
+ * mucho hay una tarea de vaciado en curso por buzón. Cada tarea procesa un
+ * lote acotado y, si quedan eventos, se vuelve a planificar para no
+ * acaparar un hilo del pool frente a otras salas.
+ */
+public class RoomMailbox {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+    RoomMailbox.class
+  );
+
+  private static final int DEFAULT_MAX_BATCH = 64;
+
+  private final Executor executor;
+  private final int maxBatch;
+  private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  private final LongAdder processedEvents = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+
+  public RoomMailbox(Executor executor) {
+    this(executor, DEFAULT_MAX_BATCH);
+  }
+
+  /**
+   * @param executor pool compartido donde se vacían los buzones
+   * @param maxBatch eventos procesados como máximo por cada vaciado
+   */
+  public RoomMailbox(Executor executor, int maxBatch) {
+    this.executor = executor;
+    this.maxBatch = maxBatch;
+  }
+
+  /**
+   * Encola un evento para ejecutarlo después de todos los ya encolados
+   */
+  public void submit(Runnable event) {
+    queue.add(event);
+    scheduleDrain();
+  }
+
+  /**
+   * Número de eventos pendientes
+   */
+  public int getPendingCount() {
+    return queue.size();
+  }
+
+  public long getProcessedEventCount() {
+    return processedEvents.sum();
+  }
+
+  /**
+   * Eventos procesados por vaciado del buzón
+   */
+  public double getAverageBatchSize() {
+    long count = batches.sum();
+    return count == 0 ? 0 : (double) processedEvents.sum() / count;
+  }
+
+  private void scheduleDrain() {
+    if (scheduled.compareAndSet(false, true)) {
+      executor.execute(this::drain);
+    }
+  }
+
+  private void drain() {
+    int processed = 0;
+    try {
+      Runnable event;
+      while (processed < maxBatch && (event = queue.poll()) != null) {
+        try {
+          event.run();
+        } catch (Exception e) {
+          logger.error("Error procesando evento de sala", e);
+        }
+        processed++;
+      }
+    } finally {
+      processedEvents.add(processed);
+      batches.increment();
+      scheduled.set(false);
+      // Un productor pudo encolar tras el último poll y ver el buzón
+      // todavía planificado
+      if (!queue.isEmpty()) {
+        scheduleDrain();
+      }
+    }
+  }
+}
@@ -0,0 +1,446 @@
+package com.networking.chat;
+
+import com.networking.util.CachedClock;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registro de salas de chat repartido en shards.
+ *
+ * Las salas se crean al primer join y se retiran cuando llevan vacías más
+ * del tiempo de inactividad configurado; la sala principal nunca se retira.
+ * Una sala retirada rechaza nuevos usuarios (ChatRoom.retireIfIdleSince),
+ * así que un join que llega a la vez que la retirada crea una sala nueva
+ * en lugar de entrar en la que se cierra. Abrir o cerrar el log de una
+ * sala se hace fuera de las operaciones del mapa, con un lock por id de
+ * sala: la E/S de una sala no bloquea a las demás de su shard. Todas las
+ * salas comparten un único hilo de mantenimiento.
+ *
+ * En modo actor cada sala creada procesa sus eventos en un buzón serie;
+ * los buzones de todas las salas comparten un pool con un hilo por núcleo.
+ */
+public class RoomRegistry {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+    RoomRegistry.class
+  );
+
+  public static final String DEFAULT_ROOM_ID = "default";
+  private static final String DEFAULT_ROOM_NAME = "Sala Principal";
+  private static final int MAX_ROOM_ID_LENGTH = 64;
+  private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(
+    5
+  );
+
+  private final Shard[] shards;
+  private final int shardMask;
+  private final long idleTimeoutMillis;
+  private final ScheduledExecutorService maintenanceExecutor;
+  private final AtomicLong createdRooms = new AtomicLong(0);
+  private final AtomicLong retiredRooms = new AtomicLong(0);
+
+  // Pool de los buzones de sala; null mientras el modo actor esté apagado
+  private volatile ExecutorService actorExecutor;
+
+  // Directorio de los logs persistentes, uno por sala; null si el historial
+  // solo vive en memoria
+  private volatile Path messageLogDirectory;
+
+  // Shard que revisará la próxima pasada de mantenimiento
+  private int nextShardToSweep = 0;
+
+  public RoomRegistry() {
+    this(
+      Runtime.getRuntime().availableProcessors() * 2,
+      DEFAULT_IDLE_TIMEOUT_MILLIS,
+      TimeUnit.MILLISECONDS
+    );
+  }
+
+  /**
+   * @param shardCount número de shards, redondeado a potencia de dos
+   * @param idleTimeout tiempo que una sala vacía se conserva antes de
+   *                    retirarla
+   * @param unit unidad del tiempo de inactividad
+   */
+  public RoomRegistry(int shardCount, long idleTimeout, TimeUnit unit) {
+    int size = shardCount <= 1 ? 1 : Integer.highestOneBit(shardCount - 1) << 1;
+    this.shards = new Shard[size];
+    for (int i = 0; i < size; i++) {
+      shards[i] = new Shard();
+    }
+    this.shardMask = size - 1;
+    this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+
+    this.maintenanceExecutor =
+      Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "RoomRegistry-Maintenance");
+        t.setDaemon(true);
+        return t;
+      });
+
+    // Cada pasada revisa un shard, de modo que todos se recorren una vez
+    // por periodo de inactividad
+    long sweepInterval = Math.max(10, idleTimeoutMillis / size);
+    maintenanceExecutor.scheduleAtFixedRate(
+      this::sweepNextShard,
+      sweepInterval,
+      sweepInterval,
+      TimeUnit.MILLISECONDS
+    );
+
+    // La sala principal existe siempre
+    shardFor(DEFAULT_ROOM_ID).rooms.put(
+      DEFAULT_ROOM_ID,
+      createRoom(DEFAULT_ROOM_ID)
+    );
+
+    logger.info(
+      "RoomRegistry inicializado - Shards: {}, retirada tras {} ms vacía",
+      size,
+      idleTimeoutMillis
+    );
+  }
+
+  /**
+   * Activa el modo actor para las salas que se creen a partir de ahora,
+   * incluida la sala principal mientras siga vacía. Debe llamarse antes
+   * del primer join.
+   */
+  public void setActorMode(boolean enabled) {
+    if (updateActorExecutor(enabled)) {
+      reopenDefaultRoom();
+    }
+  }
+
+  /**
+   * @return true si el modo actor cambió
+   */
+  private synchronized boolean updateActorExecutor(boolean enabled) {
+    if (enabled && actorExecutor == null) {
+      actorExecutor =
+        Executors.newFixedThreadPool(
+          Runtime.getRuntime().availableProcessors(),
+          r -> {
+            Thread t = new Thread(r, "RoomRegistry-Actor");
+            t.setDaemon(true);
+            return t;
+          }
+        );
+      return true;
+    }
+    if (!enabled && actorExecutor != null) {
+      actorExecutor.shutdown();
+      actorExecutor = null;
+      return true;
+    }
+    return false;
+  }
+
+  public boolean isActorMode() {
+    return actorExecutor != null;
+  }
+
+  /**
+   * Activa el historial persistente: cada sala escribe sus mensajes en un
+   * log propio bajo este directorio y, al crearse, recupera los más
+   * recientes. Debe llamarse antes del primer join.
+   */
+  public void setMessageLogDirectory(Path directory) {
+    this.messageLogDirectory = directory;
+    reopenDefaultRoom();
+  }
+
+  /**
+   * Normaliza el id de sala recibido de un cliente
+   * @return id válido, o null si no es aceptable
+   */
+  public static String normalizeRoomId(String roomId) {
+    if (roomId == null) {
+      return DEFAULT_ROOM_ID;
+    }
+    String trimmed = roomId.trim();
+    if (trimmed.isEmpty()) {
+      return DEFAULT_ROOM_ID;
+    }
+    if (trimmed.length() > MAX_ROOM_ID_LENGTH) {
+      return null;
+    }
+    // Con persistencia el id es también un nombre de directorio
+    if (trimmed.charAt(0) == '.') {
+      return null;
+    }
+    for (int i = 0; i < trimmed.length(); i++) {
+      char c = trimmed.charAt(i);
+      if (!Character.isLetterOrDigit(c) && c != '-' && c != '_' && c != '.') {
+        return null;
+      }
+    }
+    return trimmed;
+  }
+
+  /**
+   * Añade un usuario a una sala, creándola si no existe
+   * @param roomId id de sala ya normalizado
+   * @param subscriber destino de los broadcasts de la sala
+   * @return sala a la que se unió el usuario, o null si la sala lo rechazó
+   */
+  public ChatRoom join(String roomId, ChatUser user, RoomSubscriber subscriber) {
+    Shard shard = shardFor(roomId);
+    while (true) {
+      ChatRoom room = shard.rooms.get(roomId);
+      if (room == null) {
+        room = openRoom(shard, roomId);
+      }
+      if (room.addUser(user, subscriber)) {
+        return room;
+      }
+      if (!room.isRetired()) {
+        return null;
+      }
+      // Se está retirando: en cuanto salga del mapa se abre otra
+      Thread.onSpinWait();
+    }
+  }
+
+  /**
+   * Saca a un usuario de su sala. La sala vacía se retira más tarde.
+   */
+  public boolean leave(ChatRoom room, ChatUser user) {
+    return room.removeUser(user);
+  }
+
+  /**
+   * Obtiene una sala existente
+   */
+  public ChatRoom getRoom(String roomId) {
+    return shardFor(roomId).rooms.get(roomId);
+  }
+
+  /**
+   * Número de salas vivas
+   */
+  public int getRoomCount() {
+    int count = 0;
+    for (Shard shard : shards) {
+      count += shard.rooms.size();
+    }
+    return count;
+  }
+
+  public long getCreatedRoomCount() {
+    return createdRooms.get();
+  }
+
+  public long getRetiredRoomCount() {
+    return retiredRooms.get();
+  }
+
+  /**
+   * Retira todas las salas que llevan vacías más del tiempo de inactividad
+   * @return número de salas retiradas
+   */
+  public int retireIdleRooms() {
+    int retired = 0;
+    long now = CachedClock.currentTimeMillis();
+    for (Shard shard : shards) {
+      retired += retireIdleRooms(shard, now);
+    }
+    return retired;
+  }
+
+  /**
+   * Cierra todas las salas y el hilo de mantenimiento
+   */
+  public void shutdown() {
+    maintenanceExecutor.shutdownNow();
+    updateActorExecutor(false);
+    for (Shard shard : shards) {
+      shard.rooms.values().forEach(ChatRoom::cleanup);
+      shard.rooms.clear();
+    }
+  }
+
+  private void sweepNextShard() {
+    try {
+      Shard shard = shards[nextShardToSweep];
+      nextShardToSweep = (nextShardToSweep + 1) & shardMask;
+      retireIdleRooms(shard, CachedClock.currentTimeMillis());
+    } catch (Exception e) {
+      logger.error("Error retirando salas inactivas", e);
+    }
+  }
+
+  private int retireIdleRooms(Shard shard, long now) {
+    long cutoff = now - idleTimeoutMillis;
+    int retired = 0;
+
+    for (Map.Entry<String, ChatRoom> entry : shard.rooms.entrySet()) {
+      String roomId = entry.getKey();
+      ChatRoom room = entry.getValue();
+      if (DEFAULT_ROOM_ID.equals(roomId) || !room.retireIfIdleSince(cutoff)) {
+        continue;
+      }
+      // Cerrar el log antes de que un join pueda volver a abrirlo
+      withRoomLock(
+        shard,
+        roomId,
+        () -> {
+          shard.rooms.remove(roomId, room);
+          room.cleanup();
+          return null;
+        }
+      );
+      retired++;
+    }
+
+    retiredRooms.addAndGet(retired);
+    return retired;
+  }
+
+  /**
+   * Sustituye la sala principal, creada en el constructor, por una que use
+   * la configuración actual. Solo se hace mientras nadie haya entrado: se
+   * retira como cualquier sala vacía y un join concurrente espera a la
+   * nueva.
+   */
+  private void reopenDefaultRoom() {
+    Shard shard = shardFor(DEFAULT_ROOM_ID);
+    withRoomLock(
+      shard,
+      DEFAULT_ROOM_ID,
+      () -> {
+        ChatRoom current = shard.rooms.get(DEFAULT_ROOM_ID);
+        if (current == null) {
+          return null;
+        }
+        if (!current.retireIfIdleSince(Long.MAX_VALUE)) {
+          logger.warn(
+            "La sala principal ya tiene usuarios; conserva su configuración"
+          );
+          return null;
+        }
+        current.cleanup();
+        retiredRooms.incrementAndGet();
+        shard.rooms.put(DEFAULT_ROOM_ID, createRoom(DEFAULT_ROOM_ID));
+        return null;
+      }
+    );
+  }
+
+  /**
+   * Crea una sala y la publica en su shard si no existe ya. La creación,
+   * que puede abrir y releer su log, ocurre fuera de las operaciones del
+   * mapa.
+   */
+  private ChatRoom openRoom(Shard shard, String roomId) {
+    return withRoomLock(
+      shard,
+      roomId,
+      () -> {
+        ChatRoom room = shard.rooms.get(roomId);
+        if (room == null) {
+          room = createRoom(roomId);
+          shard.rooms.put(roomId, room);
+        }
+        return room;
+      }
+    );
+  }
+
+  /**
+   * Ejecuta action con el lock del id de sala, que excluye la apertura y
+   * el cierre de la misma sala sin afectar a las demás. El lock se retira
+   * del mapa al terminar; quien esperaba en uno retirado lo vuelve a pedir.
+   */
+  private static <T> T withRoomLock(
+    Shard shard,
+    String roomId,
+    Supplier<T> action
+  ) {
+    while (true) {
+      ReentrantLock lock = shard.roomLocks.computeIfAbsent(
+        roomId,
+        id -> new ReentrantLock()
+      );
+      lock.lock();
+      try {
+        if (shard.roomLocks.get(roomId) != lock) {
+          continue;
+        }
+        try {
+          return action.get();
+        } finally {
+          shard.roomLocks.remove(roomId, lock);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private ChatRoom createRoom(String roomId) {
+    createdRooms.incrementAndGet();
+    String roomName = DEFAULT_ROOM_ID.equals(roomId)
+      ? DEFAULT_ROOM_NAME
+      : "Sala " + roomId;
+    ChatRoom room = new ChatRoom(
+      roomId,
+      roomName,
+      maintenanceExecutor,
+      actorExecutor
+    );
+
+    Path directory = messageLogDirectory;
+    if (directory != null) {
+      MessageLog log = new MessageLog(directory.resolve(roomId));
+      try {
+        log.open();
+        room.attachMessageLog(log);
+      } catch (IOException | RuntimeException e) {
+        // La sala funciona igualmente, con el historial solo en memoria
+        closeQuietly(log);
+        logger.error(
+          "No se pudo abrir el log de la sala '{}'; historial no persistente",
+          roomId,
+          e
+        );
+      }
+    }
+    return room;
+  }
+
+  private static void closeQuietly(MessageLog log) {
+    try {
+      log.close();
+    } catch (IOException | RuntimeException e) {
+      logger.debug("Error cerrando un log sin adjuntar", e);
+    }
+  }
+
+  private Shard shardFor(String roomId) {
+    int hash = roomId.hashCode();
+    return shards[(hash ^ (hash >>> 16)) & shardMask];
+  }
+
+  /**
+   * Porción del registro con su propio mapa de salas
+   */
+  private static class Shard {
+
+    final ConcurrentHashMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    // Locks de apertura y cierre por id de sala, solo mientras se usan
+    final ConcurrentHashMap<String, ReentrantLock> roomLocks = new ConcurrentHashMap<>();
+  }
+}
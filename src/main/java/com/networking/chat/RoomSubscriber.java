@@ -0,0 +1,17 @@
+package com.networking.chat;
+
+import com.networking.chat.protocol.ServerEvent;
+
+/**
+ * Destino de los eventos que una sala difunde a sus usuarios, normalmente
+ * la conexión del cliente
+ */
+public interface RoomSubscriber {
+  /**
+   * Entrega un evento de la sala. No debe lanzar excepciones: los errores
+   * de envío los gestiona el propio suscriptor. En modo actor se invoca
+   * desde el hilo del buzón de la sala, así que tampoco debe bloquearse
+   * esperando al cliente.
+   */
+  void deliver(ServerEvent event);
+}
@@ -0,0 +1,266 @@
+package com.networking.chat.protocol;
+
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.networking.chat.ChatMessage;
+import com.networking.chat.ChatUser;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Codec del sub-protocolo binario "chat.binary.v1", pensado para bots y
+ * clientes nativos de alto volumen.
+ *
+ * Cada frame empieza con un byte de tipo seguido de sus campos en orden fijo.
+ * Los enteros se codifican como varint sin signo (LEB128) y las cadenas como
+ * un varint de longitud seguido de los bytes UTF-8.
+ *
+ * <pre>
+ * Cliente a servidor
+ *   0x01 JOIN          roomId, username
+ *   0x02 MESSAGE       roomId, content
+ * Servidor a cliente
+ *   0x11 MESSAGE       roomId, userId, timestamp (epoch ms), content
+ *   0x12 USER_JOINED   roomId, userId, username
+ *   0x13 USER_LEFT     roomId, userId
+ *   0x14 NOTIFICATION  roomId, text
+ *   0x15 ROSTER        roomId, count, (userId, username) * count
+ * </pre>
+ *
+ * En salas en modo actor los frames MESSAGE, USER_JOINED, USER_LEFT y
+ * NOTIFICATION terminan con un varint más: la secuencia del evento en la
+ * sala. El cliente lo detecta porque quedan bytes tras el último campo.
+ *
+ * La sala 0 es la sala principal; cualquier otro id N corresponde a la sala
+ * cuyo id textual es "N".
+ */
+public class BinaryChatCodec implements ChatCodec {
+
+  public static final String SUBPROTOCOL = "chat.binary.v1";
+
+  public static final int CLIENT_JOIN = 0x01;
+  public static final int CLIENT_MESSAGE = 0x02;
+  public static final int SERVER_MESSAGE = 0x11;
+  public static final int SERVER_USER_JOINED = 0x12;
+  public static final int SERVER_USER_LEFT = 0x13;
+  public static final int SERVER_NOTIFICATION = 0x14;
+  public static final int SERVER_ROSTER = 0x15;
+
+  private static final String DEFAULT_ROOM_ID = "default";
+  private static final int MAX_VARINT_BYTES = 10;
+  private static final int INITIAL_BUFFER_SIZE = 128;
+
+  // Buffer de salida reutilizable por hilo
+  private static final ThreadLocal<ByteArrayBuilder> OUTPUT_BUFFER = ThreadLocal.withInitial(() ->
+    new ByteArrayBuilder(INITIAL_BUFFER_SIZE)
+  );
+
+  @Override
+  public int getId() {
+    return 1;
+  }
+
+  @Override
+  public String getSubprotocol() {
+    return SUBPROTOCOL;
+  }
+
+  @Override
+  public int getOpcode() {
+    return 0x2;
+  }
+
+  @Override
+  public ClientCommand decode(byte[] data, int offset, int length)
+    throws IOException {
+    Reader reader = new Reader(data, offset, offset + length);
+    int type = reader.readByte();
+
+    switch (type) {
+      case CLIENT_JOIN:
+        {
+          String roomId = toRoomId(reader.readVarint());
+          String username = reader.readString();
+          return new ClientCommand(
+            ClientCommand.Type.JOIN,
+            roomId,
+            username,
+            null
+          );
+        }
+      case CLIENT_MESSAGE:
+        {
+          String roomId = toRoomId(reader.readVarint());
+          String content = reader.readString();
+          return new ClientCommand(
+            ClientCommand.Type.MESSAGE,
+            roomId,
+            null,
+            content
+          );
+        }
+      default:
+        return new ClientCommand(ClientCommand.Type.UNKNOWN, null, null);
+    }
+  }
+
+  @Override
+  public byte[] encode(ServerEvent event) throws IOException {
+    ByteArrayBuilder out = OUTPUT_BUFFER.get();
+    out.reset();
+
+    long roomId = toWireRoomId(event.getRoomId());
+    switch (event.getType()) {
+      case MESSAGE:
+        {
+          ChatMessage message = event.getMessage();
+          out.append(SERVER_MESSAGE);
+          writeVarint(out, roomId);
+          writeVarint(out, message.getUserNumericId());
+          writeVarint(out, message.getTimestamp());
+          writeBytes(out, message.getContentBytes());
+          break;
+        }
+      case USER_JOINED:
+        out.append(SERVER_USER_JOINED);
+        writeVarint(out, roomId);
+        writeVarint(out, userId(event.getUser()));
+        writeString(out, event.getUser().getUsername());
+        break;
+      case USER_LEFT:
+        out.append(SERVER_USER_LEFT);
+        writeVarint(out, roomId);
+        writeVarint(out, userId(event.getUser()));
+        break;
+      case NOTIFICATION:
+        out.append(SERVER_NOTIFICATION);
+        writeVarint(out, roomId);
+        writeString(out, event.getText());
+        break;
+      case ROSTER:
+        {
+          List<ChatUser> users = event.getUsers();
+          out.append(SERVER_ROSTER);
+          writeVarint(out, roomId);
+          writeVarint(out, users.size());
+          for (ChatUser user : users) {
+            writeVarint(out, user.getNumericId());
+            writeString(out, user.getUsername());
+          }
+          break;
+        }
+      default:
+        return null;
+    }
+
+    long eventSequence = event.getSequence();
+    if (eventSequence > 0) {
+      writeVarint(out, eventSequence);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Convierte un id de sala del protocolo binario a su id textual
+   */
+  public static String toRoomId(long wireRoomId) {
+    return wireRoomId == 0 ? null : Long.toString(wireRoomId);
+  }
+
+  /**
+   * Convierte un id de sala textual al id numérico del protocolo binario.
+   * Las salas con id no numérico no son direccionables y se envían como 0.
+   */
+  public static long toWireRoomId(String roomId) {
+    if (roomId == null || DEFAULT_ROOM_ID.equals(roomId)) {
+      return 0;
+    }
+    try {
+      long value = Long.parseLong(roomId);
+      return value > 0 ? value : 0;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static long userId(ChatUser user) {
+    return user != null ? user.getNumericId() : 0;
+  }
+
+  /**
+   * Escribe un entero sin signo como varint LEB128
+   */
+  static void writeVarint(ByteArrayBuilder out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.append((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.append((int) value);
+  }
+
+  static void writeString(ByteArrayBuilder out, String value) {
+    writeBytes(
+      out,
+      value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0]
+    );
+  }
+
+  /**
+   * Escribe bytes ya codificados en UTF-8 precedidos de su longitud
+   */
+  static void writeBytes(ByteArrayBuilder out, byte[] bytes) {
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Cursor de lectura sobre el payload de un frame binario
+   */
+  private static class Reader {
+
+    private final byte[] data;
+    private final int end;
+    private int position;
+
+    Reader(byte[] data, int offset, int end) {
+      this.data = data;
+      this.position = offset;
+      this.end = end;
+    }
+
+    int readByte() throws IOException {
+      if (position >= end) {
+        throw new IOException("Frame binario truncado");
+      }
+      return data[position++] & 0xFF;
+    }
+
+    long readVarint() throws IOException {
+      long value = 0;
+      for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+        int b = readByte();
+        value |= (long) (b & 0x7F) << (7 * i);
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Varint demasiado largo");
+    }
+
+    String readString() throws IOException {
+      long length = readVarint();
+      // Un varint de 10 bytes puede dar una longitud negativa
+      if (length < 0 || length > end - position) {
+        throw new IOException("Longitud de cadena fuera del frame: " + length);
+      }
+      String value = new String(
+        data,
+        position,
+        (int) length,
+        StandardCharsets.UTF_8
+      );
+      position += (int) length;
+      return value;
+    }
+  }
+}
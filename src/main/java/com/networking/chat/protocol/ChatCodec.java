@@ -0,0 +1,35 @@
+package com.networking.chat.protocol;
+
+import java.io.IOException;
+
+/**
+ * Codec de un sub-protocolo de chat negociado vía Sec-WebSocket-Protocol
+ */
+public interface ChatCodec {
+  /**
+   * Índice del codec, usado para cachear la codificación de cada evento
+   */
+  int getId();
+
+  /**
+   * Nombre del sub-protocolo anunciado en el handshake
+   */
+  String getSubprotocol();
+
+  /**
+   * Opcode de los frames que produce este codec (0x1 texto, 0x2 binario)
+   */
+  int getOpcode();
+
+  /**
+   * Decodifica un comando de cliente desde el payload de un frame
+   */
+  ClientCommand decode(byte[] data, int offset, int length)
+    throws IOException;
+
+  /**
+   * Codifica un evento del servidor, o devuelve null si el protocolo no
+   * necesita transmitirlo
+   */
+  byte[] encode(ServerEvent event) throws IOException;
+}
@@ -0,0 +1,49 @@
+package com.networking.chat.protocol;
+
+/**
+ * Registro de los sub-protocolos de chat soportados y su negociación
+ */
+public final class ChatProtocols {
+
+  public static final int CODEC_COUNT = 2;
+
+  public static final JsonChatCodec JSON = new JsonChatCodec();
+  public static final BinaryChatCodec BINARY = new BinaryChatCodec();
+
+  private static final ChatCodec[] CODECS = { JSON, BINARY };
+
+  private ChatProtocols() {}
+
+  /**
+   * Busca un codec por el nombre de su sub-protocolo
+   * @return codec o null si no está soportado
+   */
+  public static ChatCodec forSubprotocol(String name) {
+    for (ChatCodec codec : CODECS) {
+      if (codec.getSubprotocol().equalsIgnoreCase(name)) {
+        return codec;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Elige el primer sub-protocolo soportado de la lista ofrecida por el
+   * cliente, respetando su orden de preferencia
+   * @param offered valor del header Sec-WebSocket-Protocol (puede ser null)
+   * @return codec elegido o null si ninguno de los ofrecidos está soportado
+   */
+  public static ChatCodec negotiate(String offered) {
+    if (offered == null) {
+      return null;
+    }
+
+    for (String candidate : offered.split(",")) {
+      ChatCodec codec = forSubprotocol(candidate.trim());
+      if (codec != null) {
+        return codec;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,85 @@
+package com.networking.chat.protocol;
+
+/**
+ * Comando tipado enviado por un cliente de chat
+ */
+public class ClientCommand {
+
+  public enum Type {
+    JOIN,
+    MESSAGE,
+    UNKNOWN,
+  }
+
+  private final Type type;
+  private final String roomId;
+  private final String username;
+  private final String content;
+  // Secuencia del último mensaje visto al reconectar (-1 si no hay)
+  private final long lastSeenSequence;
+
+  public ClientCommand(Type type, String username, String content) {
+    this(type, null, username, content);
+  }
+
+  public ClientCommand(
+    Type type,
+    String roomId,
+    String username,
+    String content
+  ) {
+    this(type, roomId, username, content, -1);
+  }
+
+  public ClientCommand(
+    Type type,
+    String roomId,
+    String username,
+    String content,
+    long lastSeenSequence
+  ) {
+    this.type = type;
+    this.roomId = roomId;
+    this.username = username;
+    this.content = content;
+    this.lastSeenSequence = lastSeenSequence;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Sala destino del comando, o null para la sala principal
+   */
+  public String getRoomId() {
+    return roomId;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public String getContent() {
+    return content;
+  }
+
+  /**
+   * Secuencia del último mensaje que el cliente recibió antes de
+   * reconectar, o -1 si se une por primera vez
+   */
+  public long getLastSeenSequence() {
+    return lastSeenSequence;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+      "ClientCommand{type=%s, roomId='%s', username='%s', content='%s'}",
+      type,
+      roomId,
+      username,
+      content
+    );
+  }
+}
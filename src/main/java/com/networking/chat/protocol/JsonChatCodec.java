@@ -0,0 +1,307 @@
+package com.networking.chat.protocol;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.networking.chat.ChatMessage;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Codec del protocolo de chat JSON basado en la API de streaming de Jackson.
+ * Parsea directamente desde los bytes del frame y escribe sobre buffers
+ * reutilizables por hilo, sin regex ni formateo de cadenas intermedio.
+ * Es el protocolo por defecto cuando el cliente no negocia ninguno.
+ */
+public class JsonChatCodec implements ChatCodec {
+
+  public static final String SUBPROTOCOL = "chat.json.v1";
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory()
+    .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+    .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+  private static final int INITIAL_BUFFER_SIZE = 256;
+
+  // Buffer de salida reutilizable por hilo
+  private static final ThreadLocal<ByteArrayBuilder> OUTPUT_BUFFER = ThreadLocal.withInitial(() ->
+    new ByteArrayBuilder(INITIAL_BUFFER_SIZE)
+  );
+
+  @Override
+  public int getId() {
+    return 0;
+  }
+
+  @Override
+  public String getSubprotocol() {
+    return SUBPROTOCOL;
+  }
+
+  @Override
+  public int getOpcode() {
+    return 0x1;
+  }
+
+  /**
+   * Decodifica un comando de cliente desde el payload de un frame
+   * @param data bytes UTF-8 del frame
+   * @param offset inicio del documento JSON
+   * @param length longitud del documento JSON
+   * @return comando decodificado
+   * @throws IOException si el documento no es un objeto JSON válido
+   */
+  @Override
+  public ClientCommand decode(byte[] data, int offset, int length)
+    throws IOException {
+    ClientCommand.Type type = ClientCommand.Type.UNKNOWN;
+    String roomId = null;
+    String username = null;
+    String content = null;
+    long lastSeenSequence = -1;
+
+    try (JsonParser parser = JSON_FACTORY.createParser(data, offset, length)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException(parser, "Se esperaba un objeto JSON");
+      }
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+
+        if (
+          token == JsonToken.VALUE_NUMBER_INT && "lastSeenSeq".equals(field)
+        ) {
+          lastSeenSequence = parser.getLongValue();
+          continue;
+        }
+        if (token != JsonToken.VALUE_STRING) {
+          // Valores no textuales se ignoran (incluidos objetos y arrays)
+          parser.skipChildren();
+          continue;
+        }
+
+        switch (field) {
+          case "type":
+            type = parseType(parser.getText());
+            break;
+          case "room":
+            roomId = parser.getText();
+            break;
+          case "username":
+            username = parser.getText();
+            break;
+          case "content":
+            content = parser.getText();
+            break;
+          default:
+            break;
+        }
+      }
+    }
+
+    return new ClientCommand(
+      type,
+      roomId,
+      username,
+      content,
+      lastSeenSequence
+    );
+  }
+
+  /**
+   * Decodifica un comando de cliente desde un payload completo
+   */
+  public ClientCommand decode(byte[] data) throws IOException {
+    return decode(data, 0, data.length);
+  }
+
+  @Override
+  public byte[] encode(ServerEvent event) throws IOException {
+    long eventSequence = event.getSequence();
+    switch (event.getType()) {
+      case MESSAGE:
+        return encodeMessage(
+          event.getMessage(),
+          event.getMessageSequence(),
+          eventSequence
+        );
+      case USER_JOINED:
+        return encodeNotification(
+          event.getUser().getUsername() + " se unió al chat",
+          eventSequence
+        );
+      case USER_LEFT:
+        return encodeNotification(
+          event.getUser().getUsername() + " abandonó el chat",
+          eventSequence
+        );
+      case NOTIFICATION:
+        return encodeNotification(event.getText(), eventSequence);
+      case HISTORY:
+        // Las páginas completas ya están serializadas en la caché de la sala
+        return event.getHistoryPage().getBody();
+      default:
+        // Los clientes JSON identifican autores por nombre; no usan roster
+        return null;
+    }
+  }
+
+  /**
+   * Codifica un mensaje de chat para enviarlo a los clientes
+   * @param message mensaje a codificar
+   * @return documento JSON en UTF-8
+   */
+  public byte[] encodeMessage(ChatMessage message) throws IOException {
+    return encodeMessage(message, -1);
+  }
+
+  /**
+   * Codifica un mensaje de chat con su secuencia en el historial de la
+   * sala. Los mensajes de sistema se envían como notificación.
+   * @param sequence secuencia del mensaje, o negativo si no tiene
+   */
+  public byte[] encodeMessage(ChatMessage message, long sequence)
+    throws IOException {
+    return encodeMessage(message, sequence, 0);
+  }
+
+  /**
+   * Codifica un mensaje de chat con su secuencia en el historial y, en
+   * salas en modo actor, su posición en el orden de eventos de la sala
+   * @param eventSequence secuencia del evento ("eventSeq"), o 0 si no tiene
+   */
+  public byte[] encodeMessage(
+    ChatMessage message,
+    long sequence,
+    long eventSequence
+  ) throws IOException {
+    ByteArrayBuilder buffer = OUTPUT_BUFFER.get();
+    buffer.reset();
+
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer)) {
+      generator.writeStartObject();
+      if (message.getType() == ChatMessage.MessageType.TEXT) {
+        generator.writeStringField("type", "message");
+        writeMessageFields(generator, message);
+      } else {
+        generator.writeStringField("type", "notification");
+        generator.writeStringField("message", message.getContent());
+      }
+      if (sequence >= 0) {
+        generator.writeNumberField("seq", sequence);
+      }
+      if (eventSequence > 0) {
+        generator.writeNumberField("eventSeq", eventSequence);
+      }
+      generator.writeEndObject();
+    }
+
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Codifica una página del historial de una sala
+   * @param messages mensajes en orden de llegada
+   * @param sequences secuencia de cada mensaje
+   * @param nextBefore cursor de la página anterior, o negativo si no hay
+   * @return documento JSON en UTF-8
+   */
+  public byte[] encodeHistoryPage(
+    String roomId,
+    List<ChatMessage> messages,
+    long[] sequences,
+    long nextBefore
+  ) throws IOException {
+    ByteArrayBuilder buffer = OUTPUT_BUFFER.get();
+    buffer.reset();
+
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer)) {
+      generator.writeStartObject();
+      generator.writeStringField("type", "history");
+      generator.writeStringField("room", roomId);
+      generator.writeArrayFieldStart("messages");
+      for (int i = 0; i < messages.size(); i++) {
+        ChatMessage message = messages.get(i);
+        generator.writeStartObject();
+        generator.writeStringField(
+          "type",
+          message.getType().name().toLowerCase(Locale.ROOT)
+        );
+        generator.writeNumberField("seq", sequences[i]);
+        writeMessageFields(generator, message);
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+      if (nextBefore >= 0) {
+        generator.writeNumberField("nextBefore", nextBefore);
+      } else {
+        generator.writeNullField("nextBefore");
+      }
+      generator.writeEndObject();
+    }
+
+    return buffer.toByteArray();
+  }
+
+  private static void writeMessageFields(
+    JsonGenerator generator,
+    ChatMessage message
+  ) throws IOException {
+    // Los ids ocupan 64 bits: como número perderían precisión en JavaScript
+    generator.writeStringField("id", Long.toString(message.getId()));
+    generator.writeStringField("username", message.getUsername());
+    // El contenido ya está en UTF-8: el generador solo lo escapa
+    byte[] content = message.getContentBytes();
+    generator.writeFieldName("content");
+    generator.writeUTF8String(content, 0, content.length);
+    generator.writeNumberField("timestamp", message.getTimestamp());
+  }
+
+  /**
+   * Codifica una notificación del sistema
+   * @param text texto de la notificación
+   * @return documento JSON en UTF-8
+   */
+  public byte[] encodeNotification(String text) throws IOException {
+    return encodeNotification(text, 0);
+  }
+
+  /**
+   * Codifica una notificación con su posición en el orden de eventos de la
+   * sala
+   * @param eventSequence secuencia del evento ("eventSeq"), o 0 si no tiene
+   */
+  public byte[] encodeNotification(String text, long eventSequence)
+    throws IOException {
+    ByteArrayBuilder buffer = OUTPUT_BUFFER.get();
+    buffer.reset();
+
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer)) {
+      generator.writeStartObject();
+      generator.writeStringField("type", "notification");
+      generator.writeStringField("message", text);
+      if (eventSequence > 0) {
+        generator.writeNumberField("eventSeq", eventSequence);
+      }
+      generator.writeEndObject();
+    }
+
+    return buffer.toByteArray();
+  }
+
+  private static ClientCommand.Type parseType(String type) {
+    switch (type) {
+      case "join":
+        return ClientCommand.Type.JOIN;
+      case "message":
+        return ClientCommand.Type.MESSAGE;
+      default:
+        return ClientCommand.Type.UNKNOWN;
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package com.networking.chat.protocol;
+
+import com.networking.chat.ChatMessage;
+import com.networking.chat.ChatUser;
+import com.networking.chat.HistoryPageCache;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Evento emitido por el servidor hacia los clientes de una sala.
+ * Cada evento se codifica como mucho una vez por protocolo: el resultado
+ * se cachea y se comparte entre todos los destinatarios del broadcast.
+ */
+public class ServerEvent {
+
+  public enum Type {
+    MESSAGE,
+    USER_JOINED,
+    USER_LEFT,
+    NOTIFICATION,
+    ROSTER,
+    HISTORY,
+  }
+
+  private static final byte[] NOT_ENCODED = new byte[0];
+
+  private final Type type;
+  private final String roomId;
+  private final ChatMessage message;
+  private final ChatUser user;
+  private final String text;
+  private final List<ChatUser> users;
+  // Secuencia del mensaje en el historial de la sala (-1 si no tiene)
+  private final long messageSequence;
+  private final HistoryPageCache.HistoryPage historyPage;
+  // Payload por codec; se publica con compareAndSet para que quien lo lea
+  // vea el array completo
+  private final AtomicReferenceArray<byte[]> encoded;
+  // Posición del evento en el orden total de su sala (0 = sin secuenciar)
+  private volatile long sequence;
+
+  private ServerEvent(
+    Type type,
+    String roomId,
+    ChatMessage message,
+    ChatUser user,
+    String text,
+    List<ChatUser> users,
+    long messageSequence,
+    HistoryPageCache.HistoryPage historyPage
+  ) {
+    this.type = type;
+    this.roomId = roomId;
+    this.message = message;
+    this.user = user;
+    this.text = text;
+    this.users = users;
+    this.messageSequence = messageSequence;
+    this.historyPage = historyPage;
+    this.encoded = new AtomicReferenceArray<>(ChatProtocols.CODEC_COUNT);
+  }
+
+  public static ServerEvent message(String roomId, ChatMessage message) {
+    return message(roomId, message, -1);
+  }
+
+  /**
+   * Mensaje de chat con su secuencia en el historial de la sala, que el
+   * cliente devuelve al reconectar para recibir solo lo que se perdió
+   */
+  public static ServerEvent message(
+    String roomId,
+    ChatMessage message,
+    long messageSequence
+  ) {
+    return new ServerEvent(
+      Type.MESSAGE,
+      roomId,
+      message,
+      null,
+      null,
+      null,
+      messageSequence,
+      null
+    );
+  }
+
+  public static ServerEvent userJoined(String roomId, ChatUser user) {
+    return new ServerEvent(
+      Type.USER_JOINED,
+      roomId,
+      null,
+      user,
+      null,
+      null,
+      -1,
+      null
+    );
+  }
+
+  public static ServerEvent userLeft(String roomId, ChatUser user) {
+    return new ServerEvent(
+      Type.USER_LEFT,
+      roomId,
+      null,
+      user,
+      null,
+      null,
+      -1,
+      null
+    );
+  }
+
+  public static ServerEvent notification(String roomId, String text) {
+    return new ServerEvent(
+      Type.NOTIFICATION,
+      roomId,
+      null,
+      null,
+      text,
+      null,
+      -1,
+      null
+    );
+  }
+
+  /**
+   * Página del historial enviada como instantánea al unirse a la sala
+   */
+  public static ServerEvent history(
+    String roomId,
+    HistoryPageCache.HistoryPage page
+  ) {
+    return new ServerEvent(
+      Type.HISTORY,
+      roomId,
+      null,
+      null,
+      null,
+      null,
+      -1,
+      page
+    );
+  }
+
+  /**
+   * Lista de usuarios presentes en la sala, enviada solo al usuario que se
+   * une para que los protocolos con ids numéricos puedan resolver autores
+   */
+  public static ServerEvent roster(String roomId, List<ChatUser> users) {
+    return new ServerEvent(
+      Type.ROSTER,
+      roomId,
+      null,
+      null,
+      null,
+      Collections.unmodifiableList(users),
+      -1,
+      null
+    );
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getRoomId() {
+    return roomId;
+  }
+
+  public ChatMessage getMessage() {
+    return message;
+  }
+
+  public ChatUser getUser() {
+    return user;
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  public List<ChatUser> getUsers() {
+    return users;
+  }
+
+  /**
+   * Secuencia del mensaje en el historial de la sala, o -1
+   */
+  public long getMessageSequence() {
+    return messageSequence;
+  }
+
+  public HistoryPageCache.HistoryPage getHistoryPage() {
+    return historyPage;
+  }
+
+  /**
+   * Número de secuencia asignado por la sala en modo actor, o 0
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Asigna la posición del evento en el orden de su sala. Lo hace la sala
+   * una sola vez, antes de entregar el evento.
+   */
+  public void assignSequence(long sequence) {
+    this.sequence = sequence;
+  }
+
+  /**
+   * Devuelve el payload de este evento para un codec, codificándolo solo la
+   * primera vez. Dos hilos pueden codificar en paralelo el mismo evento;
+   * se queda el primer resultado publicado y todos devuelven ese.
+   * @return payload codificado, o null si el codec no transmite este evento
+   */
+  public byte[] encodedWith(ChatCodec codec) throws IOException {
+    int slot = codec.getId();
+    byte[] payload = encoded.get(slot);
+    if (payload == null) {
+      payload = codec.encode(this);
+      if (payload == null) {
+        payload = NOT_ENCODED;
+      }
+      if (!encoded.compareAndSet(slot, null, payload)) {
+        payload = encoded.get(slot);
+      }
+    }
+    return payload == NOT_ENCODED ? null : payload;
+  }
+}
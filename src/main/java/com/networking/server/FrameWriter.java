@@ -0,0 +1,414 @@
+package com.networking.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Escritor de frames WebSocket sobre el stream de un socket.
+ *
+ * Cada frame se serializa con su cabecera en un único buffer, de modo que
+ * se envía con una sola escritura en lugar de cabecera + payload. En modo
+ * de coalescencia, los frames encolados dentro de una ventana corta (o hasta
+ * un límite de bytes) se agrupan y se envían juntos en una sola escritura.
+ * El planificador solo marca el final de la ventana: el flush diferido se
+ * escribe en el pool de escrituras, así que un cliente lento no bloquea
+ * los temporizadores compartidos. Con writeFrameAsync el frame se encola
+ * sin esperar al socket y se escribe desde el pool de escrituras; si el
+ * cliente acumula demasiados bytes sin leerlos, el escritor falla. Cada
+ * escritor tiene como mucho una tarea en el pool de escrituras, que vacía
+ * lo que se vaya encolando mientras escribe, así que un cliente que deja
+ * de leer ocupa un solo hilo.
+ */
+public class FrameWriter {
+
+  private static final int INITIAL_BATCH_CAPACITY = 4096;
+  private static final int MAX_PAYLOAD_LENGTH = 65535;
+  // Bytes encolados sin escribir a partir de los cuales writeFrameAsync
+  // da al cliente por perdido
+  private static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+  private final OutputStream out;
+  private final ThreadPoolManager scheduler;
+  private final long windowNanos;
+  private final int maxBatchBytes;
+  private final Stats stats;
+  private final Consumer<IOException> failureHandler;
+
+  // Lote pendiente, protegido por pendingLock
+  private final Object pendingLock = new Object();
+  private byte[] pending = new byte[INITIAL_BATCH_CAPACITY];
+  private int pendingLength = 0;
+  private int pendingFrames = 0;
+  private boolean flushScheduled = false;
+  // Hay una tarea de este escritor encolada o escribiendo en el pool
+  private boolean drainQueued = false;
+
+  // Buffer que se está escribiendo, protegido por el monitor de out
+  private byte[] writing = new byte[INITIAL_BATCH_CAPACITY];
+
+  /**
+   * Crea un escritor sin coalescencia: cada frame se escribe de inmediato
+   */
+  public FrameWriter(OutputStream out, Stats stats) {
+    this(out, null, 0, TimeUnit.NANOSECONDS, 0, stats, null);
+  }
+
+  /**
+   * @param out stream del socket
+   * @param scheduler planificador compartido para los flush diferidos y
+   *                  pool en el que se escriben
+   * @param window ventana de agrupación; 0 desactiva la coalescencia
+   * @param unit unidad de la ventana
+   * @param maxBatchBytes bytes pendientes a partir de los cuales se
+   *                      escribe sin esperar a que termine la ventana
+   * @param stats contadores compartidos de frames y escrituras
+   * @param failureHandler se invoca si falla un flush diferido
+   */
+  public FrameWriter(
+    OutputStream out,
+    ThreadPoolManager scheduler,
+    long window,
+    TimeUnit unit,
+    int maxBatchBytes,
+    Stats stats,
+    Consumer<IOException> failureHandler
+  ) {
+    this.out = out;
+    this.scheduler = scheduler;
+    this.windowNanos = scheduler != null ? unit.toNanos(window) : 0;
+    this.maxBatchBytes = maxBatchBytes;
+    this.stats = stats;
+    this.failureHandler = failureHandler;
+  }
+
+  /**
+   * Indica si este escritor agrupa frames
+   */
+  public boolean isCoalescing() {
+    return windowNanos > 0;
+  }
+
+  /**
+   * Encola o escribe un frame de datos
+   */
+  public void writeFrame(int opcode, byte[] payload) throws IOException {
+    checkPayloadLength(payload);
+    if (!isCoalescing()) {
+      boolean queued;
+      synchronized (pendingLock) {
+        // Detrás de los frames encolados con writeFrameAsync
+        queued = pendingLength > 0;
+        if (queued) {
+          appendFrame(opcode, payload);
+        }
+      }
+      if (queued) {
+        flush();
+      } else {
+        writeNow(opcode, payload);
+      }
+      return;
+    }
+
+    boolean flushNow;
+    boolean scheduleFlush = false;
+    synchronized (pendingLock) {
+      appendFrame(opcode, payload);
+      flushNow = pendingLength >= maxBatchBytes;
+      if (!flushNow && !flushScheduled) {
+        flushScheduled = true;
+        scheduleFlush = true;
+      }
+    }
+
+    if (flushNow) {
+      flush();
+    } else if (scheduleFlush) {
+      scheduler.schedule(this::requestDrain, windowNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Encola un frame de datos sin bloquearse en el socket: lo escribe el
+   * pool de escrituras, junto con los que se encolen mientras tanto, sin
+   * esperar a la ventana. Sin planificador escribe en el hilo actual.
+   * @throws IOException si el frame es demasiado grande o el cliente ya
+   *                     tiene demasiados bytes pendientes de leer
+   */
+  public void writeFrameAsync(int opcode, byte[] payload) throws IOException {
+    checkPayloadLength(payload);
+    if (scheduler == null) {
+      writeNow(opcode, payload);
+      return;
+    }
+
+    synchronized (pendingLock) {
+      if (pendingLength + payload.length > MAX_PENDING_BYTES) {
+        throw new IOException("Cola de salida llena: el cliente no lee");
+      }
+      appendFrame(opcode, payload);
+    }
+    requestDrain();
+  }
+
+  /**
+   * Escribe varios frames de datos seguidos con una sola escritura al
+   * socket, sin esperar a la ventana de agrupación
+   */
+  public void writeFrames(int opcode, List<byte[]> payloads)
+    throws IOException {
+    if (payloads.isEmpty()) {
+      return;
+    }
+    for (byte[] payload : payloads) {
+      checkPayloadLength(payload);
+    }
+
+    if (isCoalescing()) {
+      // Detrás de los frames ya pendientes, para no alterar el orden
+      synchronized (pendingLock) {
+        for (byte[] payload : payloads) {
+          appendFrame(opcode, payload);
+        }
+      }
+      flush();
+      return;
+    }
+
+    boolean queued;
+    synchronized (pendingLock) {
+      // Detrás de los frames encolados con writeFrameAsync
+      queued = pendingLength > 0;
+      if (queued) {
+        for (byte[] payload : payloads) {
+          appendFrame(opcode, payload);
+        }
+      }
+    }
+    if (queued) {
+      flush();
+      return;
+    }
+
+    int batchLength = 0;
+    for (byte[] payload : payloads) {
+      batchLength += headerLength(payload.length) + payload.length;
+    }
+    byte[] batch = new byte[batchLength];
+    int offset = 0;
+    for (byte[] payload : payloads) {
+      offset = writeHeader(batch, offset, opcode, payload.length);
+      System.arraycopy(payload, 0, batch, offset, payload.length);
+      offset += payload.length;
+    }
+
+    synchronized (out) {
+      out.write(batch);
+      out.flush();
+      stats.socketWrites.increment();
+      stats.framesWritten.add(payloads.size());
+    }
+  }
+
+  /**
+   * Escribe un frame de control (ping, pong, close) sin esperar a la
+   * ventana, después de los frames de datos ya encolados
+   */
+  public void writeControlFrame(int opcode, byte[] payload)
+    throws IOException {
+    checkPayloadLength(payload);
+    // También los encolados con writeFrameAsync
+    flush();
+    writeNow(opcode, payload);
+  }
+
+  /**
+   * Como writeControlFrame, pero encola el frame detrás de los pendientes y
+   * lo escribe desde el pool de escrituras, para que el hilo que lo pide
+   * (un temporizador) nunca se bloquee en el socket. Si el escritor ya
+   * tiene una tarea en el pool, esa misma lo escribe. Sin planificador
+   * escribe en el hilo actual. Los fallos llegan al failureHandler.
+   */
+  public void writeControlFrameAsync(int opcode, byte[] payload) {
+    try {
+      if (scheduler == null) {
+        writeControlFrame(opcode, payload);
+        return;
+      }
+      checkPayloadLength(payload);
+      synchronized (pendingLock) {
+        appendFrame(opcode, payload);
+      }
+      requestDrain();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Escribe de una vez todos los frames pendientes
+   */
+  public void flush() throws IOException {
+    synchronized (out) {
+      int length;
+      int frames;
+      synchronized (pendingLock) {
+        flushScheduled = false;
+        if (pendingLength == 0) {
+          return;
+        }
+        // Intercambiar buffers: los productores siguen encolando en el otro
+        byte[] batch = pending;
+        pending = writing;
+        writing = batch;
+        length = pendingLength;
+        frames = pendingFrames;
+        pendingLength = 0;
+        pendingFrames = 0;
+      }
+
+      out.write(writing, 0, length);
+      out.flush();
+      stats.socketWrites.increment();
+      stats.framesWritten.add(frames);
+    }
+  }
+
+  /**
+   * Lanza una tarea que vacía los frames pendientes en el pool de
+   * escrituras, salvo que ya haya una en marcha
+   */
+  private void requestDrain() {
+    synchronized (pendingLock) {
+      if (drainQueued) {
+        return;
+      }
+      drainQueued = true;
+    }
+    if (!scheduler.executeWrite(this::drain)) {
+      synchronized (pendingLock) {
+        drainQueued = false;
+      }
+      fail(new IOException("Pool de escrituras saturado"));
+    }
+  }
+
+  /**
+   * Escribe hasta que no queden frames pendientes, incluidos los que se
+   * encolen mientras tanto
+   */
+  private void drain() {
+    try {
+      while (true) {
+        flush();
+        synchronized (pendingLock) {
+          if (pendingLength == 0) {
+            drainQueued = false;
+            return;
+          }
+        }
+      }
+    } catch (IOException e) {
+      synchronized (pendingLock) {
+        drainQueued = false;
+      }
+      fail(e);
+    }
+  }
+
+  private void fail(IOException e) {
+    if (failureHandler != null) {
+      failureHandler.accept(e);
+    }
+  }
+
+  private void writeNow(int opcode, byte[] payload) throws IOException {
+    byte[] frame = new byte[headerLength(payload.length) + payload.length];
+    int offset = writeHeader(frame, 0, opcode, payload.length);
+    System.arraycopy(payload, 0, frame, offset, payload.length);
+
+    synchronized (out) {
+      out.write(frame);
+      out.flush();
+      stats.socketWrites.increment();
+      stats.framesWritten.increment();
+    }
+  }
+
+  private void appendFrame(int opcode, byte[] payload) {
+    int frameLength = headerLength(payload.length) + payload.length;
+    if (pendingLength + frameLength > pending.length) {
+      byte[] grown = new byte[Math.max(
+        pending.length * 2,
+        pendingLength + frameLength
+      )];
+      System.arraycopy(pending, 0, grown, 0, pendingLength);
+      pending = grown;
+    }
+
+    int offset = writeHeader(pending, pendingLength, opcode, payload.length);
+    System.arraycopy(payload, 0, pending, offset, payload.length);
+    pendingLength = offset + payload.length;
+    pendingFrames++;
+  }
+
+  private static void checkPayloadLength(byte[] payload) throws IOException {
+    if (payload.length > MAX_PAYLOAD_LENGTH) {
+      throw new IOException("Payload demasiado grande");
+    }
+  }
+
+  private static int headerLength(int payloadLength) {
+    return payloadLength < 126 ? 2 : 4;
+  }
+
+  /**
+   * Escribe la cabecera de un frame sin máscara (servidor a cliente)
+   * @return posición donde empieza el payload
+   */
+  private static int writeHeader(
+    byte[] buffer,
+    int offset,
+    int opcode,
+    int payloadLength
+  ) {
+    buffer[offset++] = (byte) (0x80 | opcode); // FIN=1 + opcode
+    if (payloadLength < 126) {
+      buffer[offset++] = (byte) payloadLength;
+    } else {
+      buffer[offset++] = (byte) 126;
+      buffer[offset++] = (byte) (payloadLength >> 8);
+      buffer[offset++] = (byte) payloadLength;
+    }
+    return offset;
+  }
+
+  /**
+   * Contadores de escritura compartidos por las conexiones de un servidor
+   */
+  public static class Stats {
+
+    final LongAdder framesWritten = new LongAdder();
+    final LongAdder socketWrites = new LongAdder();
+
+    public long getFramesWritten() {
+      return framesWritten.sum();
+    }
+
+    public long getSocketWrites() {
+      return socketWrites.sum();
+    }
+
+    /**
+     * Escrituras al socket por frame enviado
+     */
+    public double getWritesPerFrame() {
+      long frames = framesWritten.sum();
+      return frames == 0 ? 0 : (double) socketWrites.sum() / frames;
+    }
+  }
+}
@@ -1,12 +1,20 @@
 package com.networking.server;
 
+import com.networking.chat.ChatRoom;
+import com.networking.chat.HistoryPageCache;
+import com.networking.chat.RoomRegistry;
+import com.networking.chat.protocol.ChatProtocols;
+import com.networking.session.CookieHandler;
 import com.networking.session.SessionManager;
+import com.networking.session.SessionReplicator;
+import com.networking.session.SessionStore;
+import com.networking.util.CachedClock;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -24,15 +32,30 @@ public class HttpServer {
 
   private final int port;
   private final ThreadPoolManager threadPool;
+  // Solo se cierra al detener el servidor el pool que creó él mismo
+  private final boolean ownsThreadPool;
   private final SessionManager sessionManager;
   private final AtomicBoolean running = new AtomicBoolean(false);
   private final AtomicLong requestCounter = new AtomicLong(0);
   private ServerSocket serverSocket;
 
+  // Upgrade a WebSocket en el mismo puerto (desactivado si es null)
+  private volatile WebSocketServer webSocketServer;
+  private volatile String webSocketPath;
+
   // Configuración
   private static final String WEB_ROOT = "src/main/resources/web";
   private static final String DEFAULT_FILE = "index.html";
   private static final int SOCKET_TIMEOUT = 30000; // 30 segundos
+  private static final String ROOMS_API_PREFIX = "/api/rooms/";
+  private static final String MESSAGES_SUFFIX = "/messages";
+  private static final String CRLF = "\r\n";
+  private static final int RESPONSE_HEADER_BYTES = 256;
+  private static final byte[] SERVER_HEADER =
+    "Server: ConcurrentWebServer/1.0\r\n".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] DATE_HEADER = "Date: ".getBytes(
+      StandardCharsets.US_ASCII
+    );
 
   // MIME types
   private static final Map<String, String> MIME_TYPES = Map.of(
@@ -55,11 +78,49 @@ public class HttpServer {
   );
 
   public HttpServer(int port) {
+    this(port, new ThreadPoolManager(), true);
+  }
+
+  /**
+   * Crea el servidor sobre un pool de hilos existente, compartido con el
+   * motor WebSocket cuando ambos protocolos usan el mismo puerto. Detener
+   * el servidor no cierra el pool: lo cierra quien lo creó.
+   */
+  public HttpServer(int port, ThreadPoolManager threadPool) {
+    this(port, threadPool, false);
+  }
+
+  private HttpServer(
+    int port,
+    ThreadPoolManager threadPool,
+    boolean ownsThreadPool
+  ) {
     this.port = port;
-    this.threadPool = new ThreadPoolManager();
+    this.threadPool = threadPool;
+    this.ownsThreadPool = ownsThreadPool;
     this.sessionManager = new SessionManager();
   }
 
+  /**
+   * Acepta el upgrade a WebSocket en la ruta indicada y entrega la conexión
+   * al motor WebSocket sin cerrarla. El motor liga sus conexiones a las
+   * sesiones HTTP de este servidor. Debe llamarse antes de start().
+   * @param path ruta del endpoint WebSocket, por ejemplo "/ws"
+   * @param server motor WebSocket que atiende las conexiones
+   */
+  public void enableWebSocketUpgrade(String path, WebSocketServer server) {
+    this.webSocketPath = path;
+    this.webSocketServer = server;
+    server.setSessionManager(sessionManager);
+  }
+
+  /**
+   * Gestor de las sesiones HTTP, por ejemplo para ajustar su capacidad
+   */
+  public SessionManager getSessionManager() {
+    return sessionManager;
+  }
+
   /**
    * Inicia el servidor HTTP
    */
@@ -67,8 +128,18 @@ public class HttpServer {
     try {
       serverSocket = new ServerSocket(port);
       running.set(true);
+      if (webSocketServer != null) {
+        webSocketServer.activate();
+      }
 
       logger.info("Servidor HTTP iniciado en puerto {}", port);
+      if (webSocketServer != null) {
+        logger.info(
+          "Upgrade WebSocket habilitado en ws://localhost:{}{}",
+          port,
+          webSocketPath
+        );
+      }
 
       while (running.get()) {
         try {
@@ -128,7 +199,13 @@ public class HttpServer {
       // Parsear request HTTP
       HttpRequest request = parseHttpRequest(in);
 
-      if (request != null) {
+      if (request != null && isWebSocketUpgrade(request)) {
+        // La conexión pasa al motor WebSocket y se atiende en este mismo
+        // hilo hasta que se cierra. El cliente no envía frames antes del
+        // 101, así que el BufferedReader no ha consumido bytes de más.
+        logger.debug("Request #{} promovido a WebSocket", requestId);
+        webSocketServer.handleUpgrade(clientSocket, request.headers);
+      } else if (request != null) {
         // Procesar request y generar response
         HttpResponse response = processRequest(request);
 
@@ -214,6 +291,24 @@ public class HttpServer {
     return new HttpRequest(method, path, version, headers, body);
   }
 
+  /**
+   * Indica si el request pide el upgrade a WebSocket en la ruta configurada
+   */
+  private boolean isWebSocketUpgrade(HttpRequest request) {
+    if (webSocketServer == null || !"GET".equals(request.method)) {
+      return false;
+    }
+    String path = request.path;
+    int queryIndex = path.indexOf('?');
+    if (queryIndex >= 0) {
+      path = path.substring(0, queryIndex);
+    }
+    return (
+      path.equals(webSocketPath) &&
+      WebSocketServer.isUpgradeRequest(request.headers)
+    );
+  }
+
   /**
    * Procesa un request HTTP y genera la response
    */
@@ -231,6 +326,9 @@ public class HttpServer {
         case "/api/stats":
           return handleStatsApi();
         default:
+          if (request.path.startsWith(ROOMS_API_PREFIX)) {
+            return handleRoomHistoryApi(request);
+          }
           if (request.path.startsWith("/")) {
             return serveStaticFile(request.path.substring(1));
           }
@@ -278,21 +376,68 @@ public class HttpServer {
   }
 
   /**
-   * Maneja el API de sesiones
+   * Sesión del request según su cookie JSESSIONID. Se resuelve la primera
+   * vez que un handler la pide y se guarda en el request; los requests que
+   * no la usan no leen la cookie ni tocan el almacén de sesiones.
+   * @return la sesión válida, o null si no hay cookie o ya no es válida
+   */
+  private SessionManager.SessionData resolveSession(HttpRequest request) {
+    if (!request.sessionResolved) {
+      String sessionId = CookieHandler.findCookie(
+        request.headers.get("cookie"),
+        CookieHandler.SESSION_COOKIE
+      );
+      request.session =
+        sessionId != null ? sessionManager.getSessionData(sessionId) : null;
+      request.sessionResolved = true;
+    }
+    return request.session;
+  }
+
+  /**
+   * Maneja el API de sesiones: GET devuelve la sesión de la cookie y POST
+   * la reutiliza si sigue siendo válida o crea una nueva
    */
   private HttpResponse handleSessionApi(HttpRequest request) {
-    if ("POST".equals(request.method)) {
+    SessionManager.SessionData session = resolveSession(request);
+    if ("GET".equals(request.method)) {
+      if (session == null) {
+        return new HttpResponse(404, "Not Found", "text/plain", "Sin sesión");
+      }
+      return new HttpResponse(
+        200,
+        "OK",
+        "application/json",
+        sessionJson(session.getSessionId(), false)
+      );
+    } else if ("POST".equals(request.method)) {
+      if (session != null) {
+        return new HttpResponse(
+          200,
+          "OK",
+          "application/json",
+          sessionJson(session.getSessionId(), false)
+        );
+      }
+
       // Crear nueva sesión
       String sessionId = sessionManager.createSession();
-      String response = "{\"sessionId\":\"" + sessionId + "\"}";
-
       Map<String, String> headers = new HashMap<>();
       headers.put(
         "Set-Cookie",
-        "JSESSIONID=" + sessionId + "; HttpOnly; Path=/"
+        CookieHandler.createSessionCookie(
+          CookieHandler.SESSION_COOKIE,
+          sessionId
+        )
       );
 
-      return new HttpResponse(200, "OK", "application/json", response, headers);
+      return new HttpResponse(
+        200,
+        "OK",
+        "application/json",
+        sessionJson(sessionId, true),
+        headers
+      );
     } else {
       return new HttpResponse(
         405,
@@ -303,71 +448,194 @@ public class HttpServer {
     }
   }
 
+  private static String sessionJson(String sessionId, boolean created) {
+    return (
+      "{\"sessionId\":\"" + sessionId + "\",\"created\":" + created + "}"
+    );
+  }
+
+  /**
+   * Maneja GET /api/rooms/{id}/messages?before=N&limit=N. Las páginas
+   * completas salen de la caché de la sala ya serializadas; con
+   * If-None-Match se responde 304 sin cuerpo.
+   */
+  private HttpResponse handleRoomHistoryApi(HttpRequest request)
+    throws IOException {
+    String path = request.path;
+    String query = null;
+    int queryIndex = path.indexOf('?');
+    if (queryIndex >= 0) {
+      query = path.substring(queryIndex + 1);
+      path = path.substring(0, queryIndex);
+    }
+    if (
+      webSocketServer == null ||
+      !path.endsWith(MESSAGES_SUFFIX) ||
+      path.length() <= ROOMS_API_PREFIX.length() + MESSAGES_SUFFIX.length()
+    ) {
+      return new HttpResponse(
+        404,
+        "Not Found",
+        "text/plain",
+        "404 - Página no encontrada"
+      );
+    }
+    if (!"GET".equals(request.method)) {
+      return new HttpResponse(
+        405,
+        "Method Not Allowed",
+        "text/plain",
+        "Método no permitido"
+      );
+    }
+
+    String roomId = RoomRegistry.normalizeRoomId(
+      URLDecoder.decode(
+        path.substring(
+          ROOMS_API_PREFIX.length(),
+          path.length() - MESSAGES_SUFFIX.length()
+        ),
+        StandardCharsets.UTF_8
+      )
+    );
+    long before = HistoryPageCache.NO_CURSOR;
+    int limit = HistoryPageCache.PAGE_SIZE;
+    try {
+      if (query != null) {
+        for (String param : query.split("&")) {
+          if (param.startsWith("before=") && param.length() > 7) {
+            before = Long.parseLong(param.substring(7));
+          } else if (param.startsWith("limit=") && param.length() > 6) {
+            limit = Integer.parseInt(param.substring(6));
+          }
+        }
+      }
+    } catch (NumberFormatException e) {
+      roomId = null;
+    }
+    if (roomId == null || before < HistoryPageCache.NO_CURSOR || limit <= 0) {
+      return new HttpResponse(
+        400,
+        "Bad Request",
+        "text/plain",
+        "400 - Parámetros inválidos"
+      );
+    }
+
+    ChatRoom room = webSocketServer.getRoomRegistry().getRoom(roomId);
+    if (room == null) {
+      // Una sala que no existe no tiene historial
+      byte[] empty = ChatProtocols.JSON.encodeHistoryPage(
+        roomId,
+        Collections.emptyList(),
+        new long[0],
+        HistoryPageCache.NO_CURSOR
+      );
+      return new HttpResponse(200, "OK", "application/json", empty);
+    }
+
+    HistoryPageCache.HistoryPage page = room.getHistoryPage(before, limit);
+    Map<String, String> headers = new HashMap<>();
+    headers.put("ETag", page.getEtag());
+    headers.put("Cache-Control", "no-cache");
+    if (page.getEtag().equals(request.headers.get("if-none-match"))) {
+      return new HttpResponse(
+        304,
+        "Not Modified",
+        "application/json",
+        null,
+        headers
+      );
+    }
+    return new HttpResponse(
+      200,
+      "OK",
+      "application/json",
+      page.getBody(),
+      headers
+    );
+  }
+
   /**
    * Maneja el API de estadísticas
    */
   private HttpResponse handleStatsApi() {
     ThreadPoolManager.ThreadPoolStats stats = threadPool.getStats();
+    SessionStore.Stats sessionStats = sessionManager.getStoreStats();
+    // -1 sin replicación o antes del primer lote recibido
+    SessionReplicator.Stats replication = sessionManager.getReplicationStats();
     String response = String.format(
       "{\"activeThreads\":%d,\"poolSize\":%d,\"queueSize\":%d," +
-      "\"completedTasks\":%d,\"totalRequests\":%d}",
+      "\"completedTasks\":%d,\"totalRequests\":%d," +
+      "\"sessions\":%d,\"sessionBytes\":%d,\"sessionEvictions\":%d," +
+      "\"sessionsExpired\":%d,\"sessionReplicationLagMillis\":%d}",
       stats.activeCount,
       stats.poolSize,
       stats.queueSize,
       stats.completedTaskCount,
-      requestCounter.get()
+      requestCounter.get(),
+      sessionStats.size,
+      sessionStats.estimatedBytes,
+      sessionStats.evictions,
+      sessionManager.getExpiredSessionCount(),
+      replication != null ? replication.lastLagMillis : -1
     );
 
     return new HttpResponse(200, "OK", "application/json", response);
   }
 
   /**
-   * Envía una response HTTP
+   * Envía una response HTTP: cabeceras y cuerpo se escriben con una sola
+   * llamada al socket
    */
   private void sendResponse(OutputStream out, HttpResponse response)
     throws IOException {
-    PrintWriter writer = new PrintWriter(out, true);
+    byte[] body = null;
+    if (response.content instanceof String) {
+      body = ((String) response.content).getBytes(StandardCharsets.UTF_8);
+    } else if (response.content instanceof byte[]) {
+      body = (byte[]) response.content;
+    }
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+      RESPONSE_HEADER_BYTES + (body != null ? body.length : 0)
+    );
 
     // Status line
-    writer.println(
-      "HTTP/1.1 " + response.statusCode + " " + response.statusText
+    writeAscii(
+      buffer,
+      "HTTP/1.1 " + response.statusCode + " " + response.statusText + CRLF
     );
 
     // Headers por defecto
-    writer.println("Content-Type: " + response.contentType);
-    writer.println("Server: ConcurrentWebServer/1.0");
-    writer.println(
-      "Date: " +
-      new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US)
-        .format(new Date())
-    );
+    writeAscii(buffer, "Content-Type: " + response.contentType + CRLF);
+    buffer.write(SERVER_HEADER);
+    buffer.write(DATE_HEADER);
+    buffer.write(CachedClock.httpDateBytes());
+    writeAscii(buffer, CRLF);
 
     // Headers adicionales
     if (response.headers != null) {
       for (Map.Entry<String, String> header : response.headers.entrySet()) {
-        writer.println(header.getKey() + ": " + header.getValue());
+        writeAscii(buffer, header.getKey() + ": " + header.getValue() + CRLF);
       }
     }
 
-    if (response.content != null) {
-      if (response.content instanceof String) {
-        String content = (String) response.content;
-        writer.println("Content-Length: " + content.getBytes().length);
-        writer.println(); // Línea vacía
-        writer.print(content);
-      } else if (response.content instanceof byte[]) {
-        byte[] content = (byte[]) response.content;
-        writer.println("Content-Length: " + content.length);
-        writer.println(); // Línea vacía
-        writer.flush();
-        out.write(content);
-      }
-    } else {
-      writer.println("Content-Length: 0");
-      writer.println(); // Línea vacía
+    writeAscii(
+      buffer,
+      "Content-Length: " + (body != null ? body.length : 0) + CRLF + CRLF
+    );
+    if (body != null) {
+      buffer.write(body);
     }
 
-    writer.flush();
+    buffer.writeTo(out);
+    out.flush();
+  }
+
+  private static void writeAscii(ByteArrayOutputStream buffer, String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+    buffer.write(bytes, 0, bytes.length);
   }
 
   /**
@@ -403,7 +671,9 @@ public class HttpServer {
    * Limpia recursos
    */
   private void cleanup() {
-    threadPool.shutdown();
+    if (ownsThreadPool) {
+      threadPool.shutdown();
+    }
     sessionManager.cleanup();
   }
 
@@ -417,6 +687,9 @@ public class HttpServer {
     final String version;
     final Map<String, String> headers;
     final String body;
+    // Sesión resuelta bajo demanda por resolveSession
+    boolean sessionResolved;
+    SessionManager.SessionData session;
 
     HttpRequest(
       String method,
@@ -18,9 +18,16 @@ public class ThreadPoolManager {
   private static final int MAX_POOL_SIZE = 50;
   private static final long KEEP_ALIVE_TIME = 60L;
   private static final int QUEUE_CAPACITY = 100;
+  // Escrituras a sockets: cada conexión ocupa como mucho un hilo, y las
+  // que no caben ni en los hilos ni en la cola se rechazan
+  private static final int MAX_WRITE_THREADS = 32;
+  private static final int WRITE_QUEUE_CAPACITY = 1000;
 
   private final ThreadPoolExecutor executor;
   private final ScheduledExecutorService scheduledExecutor;
+  // Escrituras diferidas a sockets: una escritura bloqueada por un cliente
+  // lento ocupa solo su propio hilo, no los del planificador
+  private final ThreadPoolExecutor writeExecutor;
   private final AtomicInteger taskCounter = new AtomicInteger(0);
 
   public ThreadPoolManager() {
@@ -43,6 +50,17 @@ public class ThreadPoolManager {
     // Pool para tareas programadas (limpieza, métricas, etc.)
     this.scheduledExecutor =
       Executors.newScheduledThreadPool(2, new CustomThreadFactory("Scheduler"));
+    this.writeExecutor =
+      new ThreadPoolExecutor(
+        MAX_WRITE_THREADS,
+        MAX_WRITE_THREADS,
+        KEEP_ALIVE_TIME,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(WRITE_QUEUE_CAPACITY),
+        new CustomThreadFactory("SocketWriter"),
+        new ThreadPoolExecutor.AbortPolicy()
+      );
+    this.writeExecutor.allowCoreThreadTimeOut(true);
 
     // Habilitar métricas del pool
     this.executor.allowCoreThreadTimeOut(true);
@@ -116,6 +134,23 @@ public class ThreadPoolManager {
     );
   }
 
+  /**
+   * Ejecuta una escritura a un socket fuera del hilo que la pide. Las
+   * tareas programadas con schedule() que escriben deben delegar aquí la
+   * escritura para no bloquear el planificador.
+   * @return false si el pool de escrituras está saturado o cerrado y la
+   *         tarea no se ejecutará
+   */
+  public boolean executeWrite(Runnable task) {
+    try {
+      writeExecutor.execute(task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      logger.warn("Escritura rechazada: pool de escrituras saturado o cerrado");
+      return false;
+    }
+  }
+
   /**
    * Obtiene estadísticas del pool de hilos
    */
@@ -148,6 +183,7 @@ public class ThreadPoolManager {
 
     executor.shutdown();
     scheduledExecutor.shutdown();
+    writeExecutor.shutdown();
 
     try {
       if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
@@ -159,11 +195,16 @@ public class ThreadPoolManager {
         scheduledExecutor.shutdownNow();
       }
 
+      if (!writeExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+        writeExecutor.shutdownNow();
+      }
+
       logger.info("ThreadPoolManager cerrado exitosamente");
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       executor.shutdownNow();
       scheduledExecutor.shutdownNow();
+      writeExecutor.shutdownNow();
       logger.error("Shutdown interrumpido", e);
     }
   }
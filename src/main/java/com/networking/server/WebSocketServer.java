@@ -1,18 +1,37 @@
 package com.networking.server;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.networking.chat.ChatMessage;
 import com.networking.chat.ChatRoom;
 import com.networking.chat.ChatUser;
+import com.networking.chat.HistoryPageCache;
+import com.networking.chat.RoomRegistry;
+import com.networking.chat.RoomSubscriber;
+import com.networking.chat.protocol.ChatCodec;
+import com.networking.chat.protocol.ChatProtocols;
+import com.networking.chat.protocol.ClientCommand;
+import com.networking.chat.protocol.ServerEvent;
+import com.networking.session.CookieHandler;
+import com.networking.session.SessionManager;
+import com.networking.util.CachedClock;
 import java.io.*;
 import java.net.*;
-import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,23 +46,157 @@ public class WebSocketServer {
 
   private final int port;
   private final ThreadPoolManager threadPool;
-  private final ChatRoom chatRoom;
+  // Solo se cierra al detener el servidor el pool que creó él mismo
+  private final boolean ownsThreadPool;
+  private final RoomRegistry roomRegistry;
   private final AtomicBoolean running = new AtomicBoolean(false);
   private final AtomicLong connectionCounter = new AtomicLong(0);
-  private final ConcurrentHashMap<String, WebSocketConnection> connections = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Long, WebSocketConnection> openConnections = new ConcurrentHashMap<>();
+  private final AtomicLong evictedConnections = new AtomicLong(0);
+  // Joins puestos al día reproduciendo solo el hueco, o con una instantánea
+  private final AtomicLong replayedJoins = new AtomicLong(0);
+  private final AtomicLong snapshotJoins = new AtomicLong(0);
+  // Joins que reanudaron el usuario de chat de su sesión HTTP
+  private final AtomicLong resumedJoins = new AtomicLong(0);
+  private final AtomicLong sessionBoundConnections = new AtomicLong(0);
+  // Usuario de chat de cada sesión HTTP ligada, por id de sesión
+  private final ConcurrentHashMap<String, SessionPresence> presences = new ConcurrentHashMap<>();
   private ServerSocket serverSocket;
+  private ScheduledFuture<?> heartbeatTask;
+
+  // Heartbeats: el servidor envía un ping tras este tiempo sin tráfico
+  // entrante y expulsa la conexión si no llega respuesta antes del plazo
+  private static final long DEFAULT_PING_INTERVAL_MILLIS = 15000;
+  private static final long DEFAULT_PONG_TIMEOUT_MILLIS = 10000;
+  private static final int MIN_SOCKET_TIMEOUT_MILLIS = 30000;
+  private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+  private volatile long pingIntervalMillis = DEFAULT_PING_INTERVAL_MILLIS;
+  private volatile long pongTimeoutMillis = DEFAULT_PONG_TIMEOUT_MILLIS;
+
+  // Coalescencia de escrituras: desactivada por defecto (ventana 0)
+  private static final int DEFAULT_COALESCE_MAX_BYTES = 16 * 1024;
+
+  // Sesiones HTTP: sin gestor las conexiones no se ligan a ninguna sesión
+  private static final long DEFAULT_RESUME_GRACE_MILLIS = 30000;
+
+  private volatile SessionManager sessionManager;
+  private volatile long resumeGraceMillis = DEFAULT_RESUME_GRACE_MILLIS;
+
+  private volatile long coalesceWindowNanos = 0;
+  private volatile int coalesceMaxBytes = DEFAULT_COALESCE_MAX_BYTES;
+  private final FrameWriter.Stats writeStats = new FrameWriter.Stats();
 
   // WebSocket Magic String para handshake
   private static final String WEBSOCKET_MAGIC_STRING =
     "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
-  private static final Pattern WEBSOCKET_KEY_PATTERN = Pattern.compile(
-    "Sec-WebSocket-Key: (.+)"
-  );
+  // Límite del request de handshake leído por el listener propio
+  private static final int MAX_HANDSHAKE_BYTES = 8192;
+  private static final byte[] BAD_REQUEST_RESPONSE =
+    "HTTP/1.1 400 Bad Request\r\nConnection: close\r\nContent-Length: 0\r\n\r\n".getBytes(
+        StandardCharsets.US_ASCII
+      );
 
   public WebSocketServer(int port) {
+    this(port, new ThreadPoolManager(), true);
+  }
+
+  /**
+   * Crea el servidor sobre un pool de hilos existente, por ejemplo el del
+   * HttpServer cuando ambos protocolos comparten puerto. Detener el
+   * servidor no cierra el pool: lo cierra quien lo creó.
+   */
+  public WebSocketServer(int port, ThreadPoolManager threadPool) {
+    this(port, threadPool, false);
+  }
+
+  private WebSocketServer(
+    int port,
+    ThreadPoolManager threadPool,
+    boolean ownsThreadPool
+  ) {
     this.port = port;
-    this.threadPool = new ThreadPoolManager();
-    this.chatRoom = new ChatRoom();
+    this.threadPool = threadPool;
+    this.ownsThreadPool = ownsThreadPool;
+    this.roomRegistry = new RoomRegistry();
+  }
+
+  /**
+   * Configura los heartbeats del servidor. Debe llamarse antes de start().
+   * @param pingInterval tiempo sin tráfico entrante tras el que se envía un ping
+   * @param pongTimeout plazo para recibir el pong antes de expulsar la conexión
+   * @param unit unidad de ambos valores
+   */
+  public void setHeartbeat(long pingInterval, long pongTimeout, TimeUnit unit) {
+    if (pingInterval <= 0 || pongTimeout <= 0) {
+      throw new IllegalArgumentException(
+        "Los intervalos de heartbeat deben ser positivos"
+      );
+    }
+    this.pingIntervalMillis = unit.toMillis(pingInterval);
+    this.pongTimeoutMillis = unit.toMillis(pongTimeout);
+  }
+
+  /**
+   * Liga cada conexión a la sesión HTTP de la cookie JSESSIONID de su
+   * handshake. Las conexiones sin cookie o con una sesión no válida siguen
+   * funcionando sin sesión. Debe llamarse antes de start().
+   */
+  public void setSessionManager(SessionManager sessionManager) {
+    this.sessionManager = sessionManager;
+  }
+
+  /**
+   * Configura el plazo de gracia de las conexiones ligadas a una sesión:
+   * al desconectarse, su usuario sigue en la sala sin recibir eventos y,
+   * si la sesión vuelve a unirse a la misma sala con el mismo nombre dentro
+   * del plazo, se reanuda sin notificaciones de salida ni de entrada.
+   * Debe llamarse antes de start().
+   * @param grace plazo de gracia; 0 saca al usuario al desconectarse
+   */
+  public void setResumeGracePeriod(long grace, TimeUnit unit) {
+    if (grace < 0) {
+      throw new IllegalArgumentException(
+        "El plazo de gracia no puede ser negativo"
+      );
+    }
+    this.resumeGraceMillis = unit.toMillis(grace);
+  }
+
+  /**
+   * Activa la coalescencia de escrituras: los frames que se encolan para una
+   * conexión dentro de la ventana se envían juntos en una sola escritura.
+   * Debe llamarse antes de start().
+   * @param window ventana de agrupación; 0 desactiva la coalescencia
+   * @param unit unidad de la ventana
+   * @param maxBatchBytes bytes pendientes que fuerzan el envío inmediato
+   */
+  public void setWriteCoalescing(long window, TimeUnit unit, int maxBatchBytes) {
+    if (window < 0 || maxBatchBytes <= 0) {
+      throw new IllegalArgumentException(
+        "Parámetros de coalescencia inválidos"
+      );
+    }
+    this.coalesceWindowNanos = unit.toNanos(window);
+    this.coalesceMaxBytes = maxBatchBytes;
+  }
+
+  /**
+   * Activa el modo actor de las salas: cada sala difunde sus eventos
+   * (mensajes, entradas y salidas) en serie desde su buzón, con orden total
+   * y números de secuencia por sala.
+   * Debe llamarse antes de start().
+   */
+  public void setRoomActorMode(boolean enabled) {
+    roomRegistry.setActorMode(enabled);
+  }
+
+  /**
+   * Guarda el historial de cada sala en un log persistente bajo este
+   * directorio. Debe llamarse antes de start().
+   */
+  public void setMessageLogDirectory(Path directory) {
+    roomRegistry.setMessageLogDirectory(directory);
   }
 
   /**
@@ -52,14 +205,13 @@ public class WebSocketServer {
   public void start() {
     try {
       serverSocket = new ServerSocket(port);
-      running.set(true);
+      activate();
 
       logger.info("Servidor WebSocket iniciado en puerto {}", port);
 
       while (running.get()) {
         try {
           Socket clientSocket = serverSocket.accept();
-          clientSocket.setSoTimeout(30000); // 30 segundos timeout
 
           // Procesar la conexión WebSocket en el pool de hilos
           threadPool.execute(() -> handleWebSocketConnection(clientSocket));
@@ -78,6 +230,17 @@ public class WebSocketServer {
     }
   }
 
+  /**
+   * Pone en marcha el motor WebSocket (heartbeats) sin abrir un listener
+   * propio. Las conexiones llegan entonces mediante handleUpgrade() desde el
+   * HttpServer, que comparte puerto e hilos con el chat.
+   */
+  public void activate() {
+    if (running.compareAndSet(false, true)) {
+      startHeartbeat();
+    }
+  }
+
   /**
    * Detiene el servidor WebSocket
    */
@@ -85,9 +248,14 @@ public class WebSocketServer {
     logger.info("Deteniendo servidor WebSocket...");
     running.set(false);
 
+    if (heartbeatTask != null) {
+      heartbeatTask.cancel(false);
+    }
+
     // Cerrar todas las conexiones activas
-    connections.values().forEach(WebSocketConnection::close);
-    connections.clear();
+    openConnections.values().forEach(WebSocketConnection::close);
+    openConnections.clear();
+    presences.clear();
 
     try {
       if (serverSocket != null && !serverSocket.isClosed()) {
@@ -101,95 +269,232 @@ public class WebSocketServer {
   }
 
   /**
-   * Maneja una nueva conexión WebSocket
+   * Maneja una nueva conexión WebSocket aceptada por el listener propio
    */
   private void handleWebSocketConnection(Socket clientSocket) {
+    try {
+      Map<String, String> headers = readHandshakeHeaders(
+        clientSocket.getInputStream()
+      );
+      if (headers != null) {
+        handleUpgrade(clientSocket, headers);
+      }
+    } catch (Exception e) {
+      logger.error("Error manejando conexión WebSocket", e);
+    } finally {
+      try {
+        if (!clientSocket.isClosed()) {
+          clientSocket.close();
+        }
+      } catch (IOException e) {
+        logger.debug("Error cerrando socket WebSocket", e);
+      }
+    }
+  }
+
+  /**
+   * Completa el upgrade de una conexión cuyo request HTTP ya fue leído y la
+   * atiende hasta que se cierra. Bloquea el hilo llamante durante toda la
+   * vida de la conexión; el socket lo cierra el llamante al volver.
+   * @param clientSocket socket del cliente, sin bytes pendientes del request
+   * @param headers headers del request con los nombres en minúsculas
+   */
+  public void handleUpgrade(Socket clientSocket, Map<String, String> headers)
+    throws IOException {
     long connectionId = connectionCounter.incrementAndGet();
-    String clientInfo = clientSocket.getRemoteSocketAddress().toString();
 
     logger.debug(
       "Nueva conexión WebSocket #{} desde {}",
       connectionId,
-      clientInfo
+      clientSocket.getRemoteSocketAddress()
     );
 
-    try (
-      BufferedReader in = new BufferedReader(
-        new InputStreamReader(clientSocket.getInputStream())
-      );
-      OutputStream out = clientSocket.getOutputStream()
-    ) {
-      // Realizar handshake WebSocket
-      if (performWebSocketHandshake(in, out)) {
-        // Crear conexión WebSocket
-        WebSocketConnection wsConnection = new WebSocketConnection(
-          connectionId,
-          clientSocket,
-          chatRoom
-        );
+    // El timeout de lectura queda como respaldo: los heartbeats detectan
+    // antes a los pares caídos
+    clientSocket.setSoTimeout(
+      (int) Math.max(
+        MIN_SOCKET_TIMEOUT_MILLIS,
+        pingIntervalMillis + pongTimeoutMillis
+      )
+    );
 
-        // Manejar la conexión
-        wsConnection.handleConnection();
-      } else {
-        logger.warn(
-          "Handshake WebSocket falló para conexión #{}",
-          connectionId
-        );
-      }
+    // Realizar handshake WebSocket y negociar el sub-protocolo
+    OutputStream out = clientSocket.getOutputStream();
+    ChatCodec codec = performWebSocketHandshake(headers, out);
+    if (codec == null) {
+      logger.warn("Handshake WebSocket falló para conexión #{}", connectionId);
+      out.write(BAD_REQUEST_RESPONSE);
+      out.flush();
+      return;
+    }
+
+    WebSocketConnection wsConnection = new WebSocketConnection(
+      connectionId,
+      clientSocket,
+      codec,
+      resolveSession(headers)
+    );
+
+    openConnections.put(connectionId, wsConnection);
+    try {
+      wsConnection.handleConnection();
     } catch (Exception e) {
       logger.error("Error manejando conexión WebSocket #{}", connectionId, e);
     } finally {
-      try {
-        if (!clientSocket.isClosed()) {
-          clientSocket.close();
-        }
-      } catch (IOException e) {
-        logger.debug("Error cerrando socket WebSocket", e);
+      openConnections.remove(connectionId);
+    }
+  }
+
+  /**
+   * Sesión HTTP de la cookie JSESSIONID del handshake
+   * @return la sesión si es válida, o null si no hay gestor de sesiones,
+   *         no hay cookie o la sesión ya no es válida
+   */
+  private SessionManager.SessionData resolveSession(
+    Map<String, String> headers
+  ) {
+    SessionManager manager = sessionManager;
+    if (manager == null) {
+      return null;
+    }
+    String sessionId = CookieHandler.findCookie(
+      headers.get("cookie"),
+      CookieHandler.SESSION_COOKIE
+    );
+    if (sessionId == null) {
+      return null;
+    }
+    SessionManager.SessionData session = manager.getSessionData(sessionId);
+    if (session == null) {
+      logger.debug("Handshake WebSocket con una sesión no válida");
+      return null;
+    }
+    sessionBoundConnections.incrementAndGet();
+    return session;
+  }
+
+  /**
+   * Saca de su sala al usuario aparcado de una sesión que no se reanudó
+   */
+  private void expirePresence(String sessionId, SessionPresence presence) {
+    synchronized (presence) {
+      if (presence.closed || presence.owner != null) {
+        return;
+      }
+      presence.closed = true;
+      if (presence.expiry != null) {
+        presence.expiry.cancel(false);
+        presence.expiry = null;
       }
     }
+    presences.remove(sessionId, presence);
+
+    if (roomRegistry.leave(presence.room, presence.user)) {
+      presence.room.broadcast(
+        ServerEvent.userLeft(presence.room.getRoomId(), presence.user)
+      );
+      logger.info(
+        "Usuario {} salió de la sala {} (sesión sin reconectar)",
+        presence.user.getUsername(),
+        presence.room.getRoomId()
+      );
+    }
   }
 
   /**
-   * Realiza el handshake WebSocket según RFC 6455
+   * Indica si los headers de un request piden el upgrade a WebSocket
+   * @param headers headers del request con los nombres en minúsculas
    */
-  private boolean performWebSocketHandshake(
-    BufferedReader in,
-    OutputStream out
-  ) throws IOException {
-    String line;
-    String webSocketKey = null;
-    boolean isWebSocketRequest = false;
+  public static boolean isUpgradeRequest(Map<String, String> headers) {
+    String upgrade = headers.get("upgrade");
+    return upgrade != null && upgrade.trim().equalsIgnoreCase("websocket");
+  }
 
-    // Leer headers de la request
-    while ((line = in.readLine()) != null && !line.isEmpty()) {
-      if (line.contains("Upgrade: websocket")) {
-        isWebSocketRequest = true;
+  /**
+   * Lee la request line y los headers del handshake byte a byte, sin
+   * consumir ningún byte de los frames que puedan venir detrás
+   * @return headers con los nombres en minúsculas, o null si el cliente
+   *         cerró la conexión antes de terminar el request
+   */
+  private static Map<String, String> readHandshakeHeaders(InputStream in)
+    throws IOException {
+    Map<String, String> headers = new HashMap<>();
+    StringBuilder line = new StringBuilder();
+    boolean requestLine = true;
+    int total = 0;
+    int b;
+
+    while ((b = in.read()) != -1) {
+      if (++total > MAX_HANDSHAKE_BYTES) {
+        throw new IOException("Request de handshake demasiado grande");
+      }
+      if (b == '\r') {
+        continue;
+      }
+      if (b != '\n') {
+        line.append((char) b);
+        continue;
       }
 
-      Matcher matcher = WEBSOCKET_KEY_PATTERN.matcher(line);
-      if (matcher.find()) {
-        webSocketKey = matcher.group(1).trim();
+      if (line.length() == 0) {
+        return headers;
+      }
+      if (!requestLine) {
+        int colonIndex = line.indexOf(":");
+        if (colonIndex > 0) {
+          headers.put(
+            line.substring(0, colonIndex).trim().toLowerCase(),
+            line.substring(colonIndex + 1).trim()
+          );
+        }
       }
+      requestLine = false;
+      line.setLength(0);
     }
+    return null;
+  }
 
-    if (!isWebSocketRequest || webSocketKey == null) {
-      return false;
+  /**
+   * Realiza el handshake WebSocket según RFC 6455
+   * @return codec del sub-protocolo negociado, o null si el handshake falla
+   */
+  private ChatCodec performWebSocketHandshake(
+    Map<String, String> headers,
+    OutputStream out
+  ) throws IOException {
+    String webSocketKey = headers.get("sec-websocket-key");
+    if (!isUpgradeRequest(headers) || webSocketKey == null) {
+      return null;
     }
 
-    // Generar Sec-WebSocket-Accept
-    String webSocketAccept = generateWebSocketAccept(webSocketKey);
+    // Sin sub-protocolo negociado se usa JSON, el protocolo por defecto
+    ChatCodec negotiated = ChatProtocols.negotiate(
+      headers.get("sec-websocket-protocol")
+    );
 
-    // Enviar response de handshake
-    PrintWriter writer = new PrintWriter(out, true);
-    writer.println("HTTP/1.1 101 Switching Protocols");
-    writer.println("Upgrade: websocket");
-    writer.println("Connection: Upgrade");
-    writer.println("Sec-WebSocket-Accept: " + webSocketAccept);
-    writer.println();
-    writer.flush();
+    // Generar Sec-WebSocket-Accept
+    String webSocketAccept = generateWebSocketAccept(webSocketKey.trim());
+
+    // Enviar response de handshake en una sola escritura
+    StringBuilder response = new StringBuilder(160)
+      .append("HTTP/1.1 101 Switching Protocols\r\n")
+      .append("Upgrade: websocket\r\n")
+      .append("Connection: Upgrade\r\n")
+      .append("Sec-WebSocket-Accept: ")
+      .append(webSocketAccept)
+      .append("\r\n");
+    if (negotiated != null) {
+      response
+        .append("Sec-WebSocket-Protocol: ")
+        .append(negotiated.getSubprotocol())
+        .append("\r\n");
+    }
+    response.append("\r\n");
+    out.write(response.toString().getBytes(StandardCharsets.US_ASCII));
+    out.flush();
 
     logger.debug("Handshake WebSocket completado exitosamente");
-    return true;
+    return negotiated != null ? negotiated : ChatProtocols.JSON;
   }
 
   /**
@@ -206,37 +511,162 @@ public class WebSocketServer {
     }
   }
 
+  /**
+   * Programa la revisión periódica de heartbeats. Un único temporizador
+   * compartido recorre todas las conexiones abiertas.
+   */
+  private void startHeartbeat() {
+    long tick = Math.max(
+      100,
+      Math.min(pingIntervalMillis, pongTimeoutMillis) / 2
+    );
+    heartbeatTask =
+      threadPool.scheduleAtFixedRate(
+        this::checkHeartbeats,
+        tick,
+        tick,
+        TimeUnit.MILLISECONDS
+      );
+    logger.info(
+      "Heartbeats WebSocket: ping tras {} ms sin tráfico, plazo de pong {} ms",
+      pingIntervalMillis,
+      pongTimeoutMillis
+    );
+  }
+
+  /**
+   * Envía pings a las conexiones inactivas y expulsa las que no respondieron.
+   * Corre en el planificador compartido, así que no escribe en ningún
+   * socket: los pings salen por el pool de escrituras y la expulsión solo
+   * cierra el socket.
+   */
+  void checkHeartbeats() {
+    try {
+      long now = CachedClock.currentTimeMillis();
+      for (WebSocketConnection connection : openConnections.values()) {
+        if (!connection.checkHeartbeat(now)) {
+          evictedConnections.incrementAndGet();
+          connection.evict();
+        }
+      }
+    } catch (Exception e) {
+      logger.error("Error revisando heartbeats WebSocket", e);
+    }
+  }
+
+  /**
+   * Número de conexiones con handshake completado
+   */
+  public int getOpenConnectionCount() {
+    return openConnections.size();
+  }
+
+  /**
+   * Contadores de frames enviados y escrituras al socket
+   */
+  public FrameWriter.Stats getWriteStats() {
+    return writeStats;
+  }
+
+  /**
+   * Registro de salas de chat del servidor
+   */
+  public RoomRegistry getRoomRegistry() {
+    return roomRegistry;
+  }
+
+  /**
+   * Número de conexiones expulsadas por no responder a los heartbeats
+   */
+  public long getEvictedConnectionCount() {
+    return evictedConnections.get();
+  }
+
+  /**
+   * Número de joins que recibieron solo los mensajes perdidos
+   */
+  public long getReplayedJoinCount() {
+    return replayedJoins.get();
+  }
+
+  /**
+   * Número de joins que recibieron una instantánea del historial
+   */
+  public long getSnapshotJoinCount() {
+    return snapshotJoins.get();
+  }
+
+  /**
+   * Número de joins que reanudaron el usuario de su sesión HTTP sin salir
+   * de la sala
+   */
+  public long getResumedJoinCount() {
+    return resumedJoins.get();
+  }
+
+  /**
+   * Número de conexiones cuyo handshake traía una sesión HTTP válida
+   */
+  public long getSessionBoundConnectionCount() {
+    return sessionBoundConnections.get();
+  }
+
   /**
    * Limpia recursos
    */
   private void cleanup() {
-    threadPool.shutdown();
-    chatRoom.cleanup();
+    if (ownsThreadPool) {
+      threadPool.shutdown();
+    }
+    roomRegistry.shutdown();
   }
 
   /**
    * Clase para manejar una conexión WebSocket individual
    */
-  public class WebSocketConnection {
+  public class WebSocketConnection implements RoomSubscriber {
 
     private final long connectionId;
     private final Socket socket;
-    private final ChatRoom chatRoom;
-    private final InputStream inputStream;
-    private final OutputStream outputStream;
+    private final ChatCodec codec;
+    // Sesión HTTP del handshake, o null
+    private final SessionManager.SessionData session;
+    private final DataInputStream inputStream;
+    private final FrameWriter frameWriter;
+    private final AtomicBoolean disconnected = new AtomicBoolean(false);
+    private volatile ChatRoom room;
     private volatile ChatUser chatUser;
+    // Usuario de la sesión que controla esta conexión, o null
+    private volatile SessionPresence presence;
     private volatile boolean connected = true;
+    // Último tráfico recibido y ping pendiente de respuesta (0 = ninguno)
+    private volatile long lastReceivedAt = CachedClock.currentTimeMillis();
+    private volatile long pingSentAt = 0;
+    // Eventos en vivo retenidos durante la puesta al día de un join, o null
+    private final Object heldEventsLock = new Object();
+    private List<ServerEvent> heldEvents;
 
     public WebSocketConnection(
       long connectionId,
       Socket socket,
-      ChatRoom chatRoom
+      ChatCodec codec,
+      SessionManager.SessionData session
     ) throws IOException {
       this.connectionId = connectionId;
       this.socket = socket;
-      this.chatRoom = chatRoom;
-      this.inputStream = socket.getInputStream();
-      this.outputStream = socket.getOutputStream();
+      this.codec = codec;
+      this.session = session;
+      this.inputStream = new DataInputStream(socket.getInputStream());
+      this.frameWriter =
+        new FrameWriter(
+          socket.getOutputStream(),
+          threadPool,
+          coalesceWindowNanos,
+          TimeUnit.NANOSECONDS,
+          coalesceMaxBytes,
+          writeStats,
+          this::handleWriteFailure
+        );
     }
 
     /**
@@ -246,9 +676,11 @@ public class WebSocketServer {
       try {
         while (connected && !socket.isClosed()) {
           WebSocketFrame frame = readFrame();
-          if (frame != null) {
-            processFrame(frame);
+          if (frame == null) {
+            break; // EOF: el cliente cerró la conexión
           }
+          lastReceivedAt = CachedClock.currentTimeMillis();
+          processFrame(frame);
         }
       } catch (IOException e) {
         logger.debug(
@@ -285,7 +717,7 @@ public class WebSocketServer {
 
       // Leer payload length extendido si es necesario
       if (payloadLength == 126) {
-        payloadLength = (inputStream.read() << 8) | inputStream.read();
+        payloadLength = inputStream.readUnsignedShort();
       } else if (payloadLength == 127) {
         // Para simplicidad, no manejamos payloads muy grandes
         throw new IOException("Payload demasiado grande");
@@ -295,12 +727,12 @@ public class WebSocketServer {
       byte[] maskKey = null;
       if (masked) {
         maskKey = new byte[4];
-        inputStream.read(maskKey);
+        inputStream.readFully(maskKey);
       }
 
-      // Leer payload
+      // Leer payload completo (read() puede devolver lecturas parciales)
       byte[] payload = new byte[(int) payloadLength];
-      inputStream.read(payload);
+      inputStream.readFully(payload);
 
       // Unmask payload si es necesario
       if (masked && maskKey != null) {
@@ -318,8 +750,10 @@ public class WebSocketServer {
     private void processFrame(WebSocketFrame frame) throws IOException {
       switch (frame.opcode) {
         case 0x1: // Text frame
-          String message = new String(frame.payload);
-          handleTextMessage(message);
+          handleCommandFrame(ChatProtocols.JSON, frame.payload);
+          break;
+        case 0x2: // Binary frame
+          handleCommandFrame(ChatProtocols.BINARY, frame.payload);
           break;
         case 0x8: // Close frame
           connected = false;
@@ -328,7 +762,10 @@ public class WebSocketServer {
           sendPong(frame.payload);
           break;
         case 0xA: // Pong frame
-          // Ignorar por ahora
+          pingSentAt = 0;
+          if (chatUser != null) {
+            chatUser.updateActivity();
+          }
           break;
         default:
           logger.warn("Opcode WebSocket no soportado: {}", frame.opcode);
@@ -336,75 +773,497 @@ public class WebSocketServer {
     }
 
     /**
-     * Maneja un mensaje de texto recibido
+     * Decodifica y maneja un comando recibido en un frame de datos
      */
-    private void handleTextMessage(String message) {
-      logger.debug(
-        "Mensaje recibido en conexión #{}: {}",
-        connectionId,
-        message
-      );
-
+    private void handleCommandFrame(ChatCodec frameCodec, byte[] payload) {
       try {
-        // Parsear mensaje JSON simple
-        if (message.startsWith("{") && message.endsWith("}")) {
-          if (message.contains("\"type\":\"join\"")) {
-            handleJoinMessage(message);
-          } else if (message.contains("\"type\":\"message\"")) {
-            handleChatMessage(message);
-          }
+        ClientCommand command = frameCodec.decode(payload, 0, payload.length);
+        logger.debug(
+          "Mensaje recibido en conexión #{}: {}",
+          connectionId,
+          command
+        );
+
+        switch (command.getType()) {
+          case JOIN:
+            handleJoinMessage(command);
+            break;
+          case MESSAGE:
+            handleChatMessage(command);
+            break;
+          default:
+            break;
         }
+      } catch (JsonProcessingException e) {
+        logger.debug(
+          "Mensaje JSON inválido en conexión #{}: {}",
+          connectionId,
+          e.getOriginalMessage()
+        );
       } catch (Exception e) {
         logger.error("Error procesando mensaje de chat", e);
       }
     }
 
     /**
-     * Maneja un mensaje de unirse al chat
+     * Maneja un mensaje de unirse al chat. Un join a otra sala estando ya
+     * dentro de una cambia de sala.
      */
-    private void handleJoinMessage(String message) {
-      // Parseo simple del JSON
-      String username = extractJsonValue(message, "username");
-      if (username != null && !username.trim().isEmpty()) {
-        chatUser = new ChatUser(String.valueOf(connectionId), username.trim());
-        chatRoom.addUser(chatUser);
-        connections.put(String.valueOf(connectionId), this);
-
-        // Notificar a todos que el usuario se unió
-        String joinNotification = String.format(
-          "{\"type\":\"notification\",\"message\":\"%s se unió al chat\"}",
-          username
+    private void handleJoinMessage(ClientCommand command) {
+      String username = command.getUsername();
+      if (username == null || username.trim().isEmpty()) {
+        return;
+      }
+      username = username.trim();
+      if (username.length() > ChatUser.MAX_USERNAME_LENGTH) {
+        sendEvent(
+          ServerEvent.notification(
+            RoomRegistry.DEFAULT_ROOM_ID,
+            "No se pudo unir al chat: el nombre supera " +
+            ChatUser.MAX_USERNAME_LENGTH +
+            " caracteres"
+          )
+        );
+        return;
+      }
+
+      String roomId = RoomRegistry.normalizeRoomId(command.getRoomId());
+      if (roomId == null) {
+        sendEvent(
+          ServerEvent.notification(
+            RoomRegistry.DEFAULT_ROOM_ID,
+            "No se pudo unir al chat: id de sala inválido"
+          )
         );
-        broadcastMessage(joinNotification);
+        return;
+      }
 
+      ChatRoom current = room;
+      if (current != null) {
+        if (current.getRoomId().equals(roomId)) {
+          return;
+        }
+        leaveRoom();
+      }
+
+      // Los eventos que lleguen desde la suscripción esperan a que se
+      // envíe la puesta al día, para no adelantarse ni repetirse
+      holdLiveEvents();
+      try {
+        joinRoom(command, roomId, username);
+      } finally {
+        releaseLiveEvents(Collections.emptySet());
+      }
+    }
+
+    /**
+     * Reanuda el usuario de la sesión o une uno nuevo a la sala
+     */
+    private void joinRoom(
+      ClientCommand command,
+      String roomId,
+      String username
+    ) {
+      if (session != null && resumeSession(command, roomId, username)) {
+        return;
+      }
+
+      ChatUser candidate = new ChatUser(String.valueOf(connectionId), username);
+      ChatRoom joined = roomRegistry.join(roomId, candidate, this);
+      if (joined == null) {
+        sendEvent(
+          ServerEvent.notification(
+            roomId,
+            "No se pudo unir al chat: el nombre " +
+            username +
+            " ya está en uso o la sala está llena"
+          )
+        );
+        return;
+      }
+      room = joined;
+      chatUser = candidate;
+
+      // Si la conexión se cerró durante el join, no dejar al usuario dentro
+      if (disconnected.get()) {
+        leaveRoom();
+        return;
+      }
+      if (session != null) {
+        claimPresence(joined, candidate);
+      }
+
+      sendCatchUp(joined, command);
+
+      // Notificar a la sala que se unió
+      joined.broadcast(ServerEvent.userJoined(roomId, candidate));
+
+      logger.info(
+        "Usuario {} se unió a la sala {} (conexión #{}, protocolo {})",
+        username,
+        roomId,
+        connectionId,
+        codec.getSubprotocol()
+      );
+    }
+
+    /**
+     * Envía al cliente la lista de presentes (solo si su protocolo la
+     * necesita) y lo pone al día en el mismo join: al reconectar, solo los
+     * mensajes que se perdió si siguen en el historial; si no, una
+     * instantánea del historial reciente. Después envía los eventos en
+     * vivo retenidos desde la suscripción, sin los mensajes que ya iban en
+     * la puesta al día.
+     */
+    private void sendCatchUp(ChatRoom joined, ClientCommand command) {
+      sendEvent(
+        ServerEvent.roster(joined.getRoomId(), joined.getActiveUsers())
+      );
+
+      List<ServerEvent> catchUp = command.getLastSeenSequence() >= 0
+        ? joined.getReplay(command.getLastSeenSequence())
+        : null;
+      if (catchUp != null) {
+        replayedJoins.incrementAndGet();
+      } else {
+        catchUp = joined.getSnapshot();
+        snapshotJoins.incrementAndGet();
+      }
+      sendEvents(catchUp);
+      releaseLiveEvents(messageSequences(catchUp));
+    }
+
+    /**
+     * Secuencias de los mensajes de una puesta al día. No basta con la
+     * última: un mensaje cuya escritura seguía en curso no aparece en el
+     * historial aunque otro posterior sí.
+     */
+    private Set<Long> messageSequences(List<ServerEvent> catchUp) {
+      Set<Long> sequences = new HashSet<>();
+      for (ServerEvent event : catchUp) {
+        HistoryPageCache.HistoryPage page = event.getHistoryPage();
+        if (page != null) {
+          for (int i = 0; i < page.getMessageCount(); i++) {
+            sequences.add(page.getSequence(i));
+          }
+        } else if (event.getMessageSequence() >= 0) {
+          sequences.add(event.getMessageSequence());
+        }
+      }
+      return sequences;
+    }
+
+    /**
+     * Retiene los eventos en vivo que lleguen a esta conexión hasta
+     * releaseLiveEvents
+     */
+    private void holdLiveEvents() {
+      synchronized (heldEventsLock) {
+        heldEvents = new ArrayList<>();
+      }
+    }
+
+    /**
+     * Envía los eventos retenidos, incluidos los que lleguen mientras
+     * tanto, y vuelve a entregarlos en cuanto llegan. No hace nada si no
+     * se estaban reteniendo.
+     * @param sent secuencias de los mensajes ya enviados al cliente, que se
+     *             descartan si también llegaron en vivo
+     */
+    private void releaseLiveEvents(Set<Long> sent) {
+      while (true) {
+        List<ServerEvent> held;
+        synchronized (heldEventsLock) {
+          if (heldEvents == null) {
+            return;
+          }
+          if (heldEvents.isEmpty()) {
+            heldEvents = null;
+            return;
+          }
+          held = heldEvents;
+          heldEvents = new ArrayList<>();
+        }
+        List<ServerEvent> pending = new ArrayList<>(held.size());
+        for (ServerEvent event : held) {
+          if (!sent.contains(event.getMessageSequence())) {
+            pending.add(event);
+          }
+        }
+        sendEvents(pending);
+      }
+    }
+
+    /**
+     * Registra el usuario recién unido como el de la sesión de esta
+     * conexión, si la sesión no tiene ya otro
+     */
+    private void claimPresence(ChatRoom joined, ChatUser user) {
+      session.setUsername(user.getUsername());
+      SessionPresence claimed = new SessionPresence(joined, user, this);
+      if (presences.putIfAbsent(session.getSessionId(), claimed) == null) {
+        presence = claimed;
+      }
+    }
+
+    /**
+     * Reanuda el usuario de chat de la sesión de esta conexión: el que
+     * quedó aparcado al desconectarse otra conexión, o el de una conexión
+     * anterior que aún no ha detectado la caída, que se cierra cediéndolo.
+     * Solo si el join es a la misma sala con el mismo nombre.
+     * @return false si hay que hacer un join normal
+     */
+    private boolean resumeSession(
+      ClientCommand command,
+      String roomId,
+      String username
+    ) {
+      String sessionId = session.getSessionId();
+      SessionPresence previous = presences.get(sessionId);
+      if (previous == null) {
+        return false;
+      }
+
+      boolean resumed = false;
+      WebSocketConnection previousOwner = null;
+      synchronized (previous) {
+        if (previous.closed) {
+          return false;
+        }
+        if (
+          previous.room.getRoomId().equals(roomId) &&
+          previous.user.getUsername().equals(username) &&
+          previous.room.resubscribe(previous.user, this)
+        ) {
+          if (previous.expiry != null) {
+            previous.expiry.cancel(false);
+            previous.expiry = null;
+          }
+          previousOwner = previous.owner;
+          previous.owner = this;
+          resumed = true;
+        }
+      }
+      if (!resumed) {
+        // Otra sala u otro nombre: si el usuario estaba aparcado, sale ya
+        expirePresence(sessionId, previous);
+        return false;
+      }
+      if (previousOwner != null && previousOwner != this) {
+        previousOwner.handOver();
+      }
+
+      presence = previous;
+      room = previous.room;
+      chatUser = previous.user;
+      previous.user.updateActivity();
+      if (disconnected.get()) {
+        // Se cerró durante la reanudación: vuelve a quedar aparcado
+        parkSession();
+        return true;
+      }
+
+      sendCatchUp(previous.room, command);
+      resumedJoins.incrementAndGet();
+      logger.info(
+        "Usuario {} reanudó su sesión en la sala {} (conexión #{})",
+        username,
+        roomId,
+        connectionId
+      );
+      return true;
+    }
+
+    /**
+     * Cede el usuario de chat a otra conexión de la misma sesión y cierra
+     * esta sin sacarlo de la sala
+     */
+    private void handOver() {
+      room = null;
+      chatUser = null;
+      presence = null;
+      logger.debug(
+        "Conexión WebSocket #{} reemplazada por otra de su sesión",
+        connectionId
+      );
+      close();
+    }
+
+    /**
+     * Deja al usuario de la sesión en su sala, sin recibir eventos, durante
+     * el plazo de gracia a la espera de que la sesión reconecte
+     * @return true si el usuario ya no depende de esta conexión (aparcado
+     *         o cedido a otra); false si debe salir de la sala
+     */
+    private boolean parkSession() {
+      SessionPresence owned = presence;
+      if (owned == null) {
+        return false;
+      }
+      long grace = resumeGraceMillis;
+      synchronized (owned) {
+        if (owned.owner != this) {
+          return true;
+        }
+        if (owned.closed || grace == 0 || !running.get()) {
+          return false;
+        }
+        owned.owner = null;
+        owned.room.resubscribe(owned.user, null);
+        owned.expiry =
+          threadPool.schedule(
+            () -> expirePresence(session.getSessionId(), owned),
+            grace,
+            TimeUnit.MILLISECONDS
+          );
+      }
+      presence = null;
+      room = null;
+      chatUser = null;
+      logger.debug(
+        "Usuario {} aparcado en la sala {} durante {} ms",
+        owned.user.getUsername(),
+        owned.room.getRoomId(),
+        grace
+      );
+      return true;
+    }
+
+    /**
+     * Sesión HTTP ligada en el handshake, o null
+     */
+    public SessionManager.SessionData getSession() {
+      return session;
+    }
+
+    /**
+     * Maneja un mensaje de chat
+     */
+    private void handleChatMessage(ClientCommand command) {
+      ChatRoom current = room;
+      ChatUser user = chatUser;
+      if (current == null || user == null) {
+        return;
+      }
+
+      String content = command.getContent();
+      if (content != null && !content.trim().isEmpty()) {
+        // Guardar y difundir el mensaje solo a los usuarios de la sala
+        current.postMessage(new ChatMessage(user, content.trim()));
+      }
+    }
+
+    /**
+     * Saca al usuario de su sala actual y lo notifica al resto
+     */
+    private void leaveRoom() {
+      SessionPresence owned = presence;
+      if (owned != null) {
+        presence = null;
+        synchronized (owned) {
+          if (owned.owner != this) {
+            // Cedido a otra conexión de la sesión
+            return;
+          }
+          owned.closed = true;
+        }
+        presences.remove(session.getSessionId(), owned);
+      }
+
+      ChatRoom current = room;
+      ChatUser user = chatUser;
+      if (current == null || user == null) {
+        return;
+      }
+      room = null;
+      chatUser = null;
+
+      // removeUser solo tiene éxito una vez aunque dos hilos lleguen aquí
+      if (roomRegistry.leave(current, user)) {
+        current.broadcast(ServerEvent.userLeft(current.getRoomId(), user));
         logger.info(
-          "Usuario {} se unió al chat (conexión #{})",
-          username,
+          "Usuario {} salió de la sala {} (conexión #{})",
+          user.getUsername(),
+          current.getRoomId(),
           connectionId
         );
       }
     }
 
+    @Override
+    public void deliver(ServerEvent event) {
+      synchronized (heldEventsLock) {
+        if (heldEvents != null) {
+          heldEvents.add(event);
+          return;
+        }
+      }
+      if (roomRegistry.isActorMode()) {
+        // El hilo del buzón es compartido por varias salas: no esperar
+        // a que este cliente lea
+        sendEventAsync(event);
+      } else {
+        sendEvent(event);
+      }
+    }
+
     /**
-     * Maneja un mensaje de chat
+     * Envía un evento a esta conexión con el protocolo negociado,
+     * reutilizando la codificación si ya se hizo para otro destinatario
      */
-    private void handleChatMessage(String message) {
-      if (chatUser != null) {
-        String content = extractJsonValue(message, "content");
-        if (content != null && !content.trim().isEmpty()) {
-          ChatMessage chatMessage = new ChatMessage(chatUser, content.trim());
-          chatRoom.addMessage(chatMessage);
-
-          // Broadcast del mensaje a todos los usuarios conectados
-          String messageJson = String.format(
-            "{\"type\":\"message\",\"username\":\"%s\",\"content\":\"%s\",\"timestamp\":\"%s\"}",
-            chatMessage.getUser().getUsername(),
-            escapeJson(chatMessage.getContent()),
-            chatMessage.getTimestamp().toString()
-          );
+    public void sendEvent(ServerEvent event) {
+      try {
+        byte[] payload = event.encodedWith(codec);
+        if (payload != null) {
+          sendDataFrame(codec.getOpcode(), payload);
+        }
+      } catch (IOException e) {
+        logger.error("Error enviando evento a conexión #{}", connectionId, e);
+        disconnect();
+        close();
+      }
+    }
+
+    /**
+     * Como sendEvent, pero encola el evento y lo escribe desde el pool de
+     * escrituras. Un cliente que acumula demasiados eventos sin leerlos se
+     * desconecta.
+     */
+    private void sendEventAsync(ServerEvent event) {
+      try {
+        byte[] payload = event.encodedWith(codec);
+        if (payload != null) {
+          frameWriter.writeFrameAsync(codec.getOpcode(), payload);
+        }
+      } catch (IOException e) {
+        logger.warn(
+          "Conexión #{} desconectada: {}",
+          connectionId,
+          e.getMessage()
+        );
+        disconnect();
+        close();
+      }
+    }
 
-          broadcastMessage(messageJson);
+    /**
+     * Envía varios eventos en una sola escritura al socket, reutilizando
+     * su codificación
+     */
+    public void sendEvents(List<ServerEvent> events) {
+      try {
+        List<byte[]> payloads = new ArrayList<>(events.size());
+        for (ServerEvent event : events) {
+          byte[] payload = event.encodedWith(codec);
+          if (payload != null) {
+            payloads.add(payload);
+          }
         }
+        frameWriter.writeFrames(codec.getOpcode(), payloads);
+      } catch (IOException e) {
+        logger.error("Error enviando eventos a conexión #{}", connectionId, e);
+        disconnect();
+        close();
       }
     }
 
@@ -412,78 +1271,105 @@ public class WebSocketServer {
      * Envía un mensaje a esta conexión WebSocket
      */
     public void sendMessage(String message) {
+      sendMessage(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Envía un payload UTF-8 ya codificado a esta conexión WebSocket
+     */
+    public void sendMessage(byte[] payload) {
       try {
-        sendTextFrame(message);
+        sendDataFrame(0x1, payload);
       } catch (IOException e) {
         logger.error("Error enviando mensaje a conexión #{}", connectionId, e);
         disconnect();
+        close();
       }
     }
 
     /**
-     * Envía un frame de texto
+     * Envía un frame de datos (texto o binario)
      */
-    private void sendTextFrame(String text) throws IOException {
-      byte[] payload = text.getBytes();
-
-      // Construir frame header
-      ByteBuffer header;
-      if (payload.length < 126) {
-        header = ByteBuffer.allocate(2);
-        header.put((byte) 0x81); // FIN=1, Opcode=1 (text)
-        header.put((byte) payload.length);
-      } else if (payload.length < 65536) {
-        header = ByteBuffer.allocate(4);
-        header.put((byte) 0x81);
-        header.put((byte) 126);
-        header.putShort((short) payload.length);
-      } else {
-        throw new IOException("Payload demasiado grande");
-      }
-
-      // Enviar frame
-      synchronized (outputStream) {
-        outputStream.write(header.array());
-        outputStream.write(payload);
-        outputStream.flush();
-      }
+    private void sendDataFrame(int opcode, byte[] payload) throws IOException {
+      frameWriter.writeFrame(opcode, payload);
     }
 
     /**
      * Envía un frame Pong en respuesta a un Ping
      */
     private void sendPong(byte[] payload) throws IOException {
-      ByteBuffer frame = ByteBuffer.allocate(2 + payload.length);
-      frame.put((byte) 0x8A); // FIN=1, Opcode=A (pong)
-      frame.put((byte) payload.length);
-      frame.put(payload);
+      frameWriter.writeControlFrame(0xA, payload);
+    }
 
-      synchronized (outputStream) {
-        outputStream.write(frame.array());
-        outputStream.flush();
+    /**
+     * Maneja un fallo de escritura en un flush diferido
+     */
+    private void handleWriteFailure(IOException e) {
+      logger.debug(
+        "Error escribiendo en conexión #{}: {}",
+        connectionId,
+        e.getMessage()
+      );
+      disconnect();
+      close();
+    }
+
+    /**
+     * Revisa el estado de heartbeat de la conexión
+     * @param now instante actual en milisegundos
+     * @return false si la conexión no respondió a tiempo y debe expulsarse
+     */
+    boolean checkHeartbeat(long now) {
+      if (socket.isClosed()) {
+        // Ya expulsada o cerrada: el hilo lector la está retirando
+        return true;
+      }
+      long pending = pingSentAt;
+      if (pending != 0) {
+        return now - pending < pongTimeoutMillis;
       }
+
+      if (now - lastReceivedAt >= pingIntervalMillis) {
+        // Si el ping no llega a escribirse (par caído con el buffer de
+        // envío lleno) tampoco llega el pong, y el plazo lo expulsa
+        pingSentAt = now;
+        sendPing();
+      }
+      return true;
     }
 
     /**
-     * Desconecta al usuario
+     * Expulsa una conexión que dejó de responder. Cerrar el socket desbloquea
+     * al hilo lector, que termina sin esperar al timeout de lectura y hace la
+     * desconexión, y a cualquier escritura bloqueada en él.
+     */
+    void evict() {
+      logger.info(
+        "Conexión WebSocket #{} expulsada: sin pong en {} ms",
+        connectionId,
+        pongTimeoutMillis
+      );
+      close();
+    }
+
+    /**
+     * Envía un frame Ping sin payload sin bloquear al hilo que lo pide
+     */
+    private void sendPing() {
+      frameWriter.writeControlFrameAsync(0x9, EMPTY_PAYLOAD);
+    }
+
+    /**
+     * Desconecta al usuario. Es idempotente: puede invocarse tanto desde el
+     * hilo lector como desde la expulsión por heartbeat.
      */
     private void disconnect() {
-      if (chatUser != null) {
-        chatRoom.removeUser(chatUser);
-        connections.remove(String.valueOf(connectionId));
-
-        // Notificar que el usuario se desconectó
-        String leaveNotification = String.format(
-          "{\"type\":\"notification\",\"message\":\"%s abandonó el chat\"}",
-          chatUser.getUsername()
-        );
-        broadcastMessage(leaveNotification);
+      if (!disconnected.compareAndSet(false, true)) {
+        return;
+      }
 
-        logger.info(
-          "Usuario {} se desconectó del chat (conexión #{})",
-          chatUser.getUsername(),
-          connectionId
-        );
+      if (!parkSession()) {
+        leaveRoom();
       }
 
       connected = false;
@@ -501,34 +1387,26 @@ public class WebSocketServer {
         logger.debug("Error cerrando socket WebSocket", e);
       }
     }
+  }
 
-    /**
-     * Extrae un valor de un JSON simple
-     */
-    private String extractJsonValue(String json, String key) {
-      String pattern = "\"" + key + "\"\\s*:\\s*\"([^\"]+)\"";
-      java.util.regex.Pattern p = java.util.regex.Pattern.compile(pattern);
-      java.util.regex.Matcher m = p.matcher(json);
-      return m.find() ? m.group(1) : null;
-    }
-
-    /**
-     * Escapa caracteres especiales para JSON
-     */
-    private String escapeJson(String str) {
-      return str
-        .replace("\\", "\\\\")
-        .replace("\"", "\\\"")
-        .replace("\n", "\\n")
-        .replace("\r", "\\r")
-        .replace("\t", "\\t");
-    }
-
-    /**
-     * Envía un mensaje a todas las conexiones activas
-     */
-    private void broadcastMessage(String message) {
-      connections.values().forEach(conn -> conn.sendMessage(message));
+  /**
+   * Usuario de chat de una sesión HTTP. Mientras owner es null el usuario
+   * está aparcado: sigue en la sala sin suscripción hasta que la sesión lo
+   * reanuda o vence expiry. Las transiciones se hacen con su monitor.
+   */
+  private static final class SessionPresence {
+
+    final ChatRoom room;
+    final ChatUser user;
+    WebSocketConnection owner;
+    ScheduledFuture<?> expiry;
+    // Salió de la sala o se retiró: ya no se puede reanudar
+    boolean closed;
+
+    SessionPresence(ChatRoom room, ChatUser user, WebSocketConnection owner) {
+      this.room = room;
+      this.user = user;
+      this.owner = owner;
     }
   }
 
@@ -11,6 +11,9 @@ import java.util.Map;
  */
 public class CookieHandler {
 
+  // Cookie con el id de sesión
+  public static final String SESSION_COOKIE = "JSESSIONID";
+
   private static final DateTimeFormatter COOKIE_DATE_FORMAT = DateTimeFormatter.ofPattern(
     "EEE, dd-MMM-yyyy HH:mm:ss 'GMT'"
   );
@@ -23,21 +26,100 @@ public class CookieHandler {
   public static Map<String, String> parseCookies(String cookieHeader) {
     Map<String, String> cookies = new HashMap<>();
 
-    if (cookieHeader == null || cookieHeader.trim().isEmpty()) {
+    if (cookieHeader == null) {
       return cookies;
     }
 
-    String[] cookiePairs = cookieHeader.split(";");
-    for (String cookiePair : cookiePairs) {
-      String[] parts = cookiePair.trim().split("=", 2);
-      if (parts.length == 2) {
-        cookies.put(parts[0].trim(), parts[1].trim());
+    int length = cookieHeader.length();
+    int pairStart = 0;
+    while (pairStart < length) {
+      int pairEnd = cookieHeader.indexOf(';', pairStart);
+      if (pairEnd < 0) {
+        pairEnd = length;
+      }
+      int equals = cookieHeader.indexOf('=', pairStart);
+      if (equals > pairStart && equals < pairEnd) {
+        String name = cookieHeader.substring(pairStart, equals).trim();
+        if (!name.isEmpty()) {
+          cookies.put(name, cookieHeader.substring(equals + 1, pairEnd).trim());
+        }
       }
+      pairStart = pairEnd + 1;
     }
 
     return cookies;
   }
 
+  /**
+   * Busca una sola cookie en el header Cookie sin partirlo: recorre el
+   * texto comparando nombres en su sitio y solo crea la cadena del valor
+   * buscado
+   * @param cookieHeader valor del header Cookie, o null
+   * @param name nombre de la cookie
+   * @return valor de la cookie, o null si no aparece o está vacío
+   */
+  public static String findCookie(String cookieHeader, String name) {
+    if (cookieHeader == null) {
+      return null;
+    }
+
+    int length = cookieHeader.length();
+    int nameLength = name.length();
+    int position = 0;
+    while (position < length) {
+      // Inicio del nombre, tras el separador y los espacios
+      while (
+        position < length &&
+        (cookieHeader.charAt(position) == ' ' ||
+          cookieHeader.charAt(position) == '\t')
+      ) {
+        position++;
+      }
+      int pairEnd = cookieHeader.indexOf(';', position);
+      if (pairEnd < 0) {
+        pairEnd = length;
+      }
+
+      int afterName = position + nameLength;
+      if (
+        afterName < pairEnd &&
+        cookieHeader.regionMatches(position, name, 0, nameLength)
+      ) {
+        int equals = afterName;
+        while (equals < pairEnd && cookieHeader.charAt(equals) == ' ') {
+          equals++;
+        }
+        if (equals < pairEnd && cookieHeader.charAt(equals) == '=') {
+          return cookieValue(cookieHeader, equals + 1, pairEnd);
+        }
+      }
+      position = pairEnd + 1;
+    }
+    return null;
+  }
+
+  /**
+   * Valor entre start y end sin espacios alrededor ni comillas
+   * (RFC 6265 permite valores entre comillas dobles)
+   */
+  private static String cookieValue(String header, int start, int end) {
+    while (start < end && header.charAt(start) == ' ') {
+      start++;
+    }
+    while (end > start && header.charAt(end - 1) == ' ') {
+      end--;
+    }
+    if (
+      end - start >= 2 &&
+      header.charAt(start) == '"' &&
+      header.charAt(end - 1) == '"'
+    ) {
+      start++;
+      end--;
+    }
+    return start < end ? header.substring(start, end) : null;
+  }
+
   /**
    * Crea un header Set-Cookie para una cookie de sesión
    * @param name nombre de la cookie
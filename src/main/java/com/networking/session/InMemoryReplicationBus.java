@@ -0,0 +1,49 @@
+package com.networking.session;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Bus de replicación dentro del proceso, para pruebas y benchmarks: cada
+ * lote publicado por un extremo se entrega en el mismo hilo a todos los
+ * demás extremos conectados.
+ */
+public class InMemoryReplicationBus {
+
+  private final List<Endpoint> endpoints = new CopyOnWriteArrayList<>();
+
+  /**
+   * Crea un extremo nuevo del bus, uno por nodo
+   */
+  public ReplicationTransport connect() {
+    return new Endpoint();
+  }
+
+  private final class Endpoint implements ReplicationTransport {
+
+    private volatile Consumer<byte[]> receiver;
+
+    @Override
+    public void start(Consumer<byte[]> receiver) {
+      this.receiver = receiver;
+      endpoints.add(this);
+    }
+
+    @Override
+    public void publish(byte[] batch) {
+      for (Endpoint endpoint : endpoints) {
+        Consumer<byte[]> target = endpoint.receiver;
+        if (endpoint != this && target != null) {
+          target.accept(batch);
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      endpoints.remove(this);
+      receiver = null;
+    }
+  }
+}
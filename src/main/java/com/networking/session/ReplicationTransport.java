@@ -0,0 +1,27 @@
+package com.networking.session;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Transporte de los lotes de cambios de sesión entre nodos.
+ *
+ * Los lotes son bytes opacos para el transporte: los codifica y aplica
+ * SessionReplicator. La entrega es de mejor esfuerzo; un lote que no se
+ * puede enviar se descarta y el nodo remoto se pone al día con los
+ * siguientes accesos.
+ */
+public interface ReplicationTransport {
+  /**
+   * Empieza a recibir lotes de los demás nodos
+   * @param receiver recibe cada lote; puede llamarse desde varios hilos
+   */
+  void start(Consumer<byte[]> receiver) throws IOException;
+
+  /**
+   * Envía un lote a los demás nodos
+   */
+  void publish(byte[] batch) throws IOException;
+
+  void close();
+}
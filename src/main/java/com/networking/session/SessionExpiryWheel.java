@@ -0,0 +1,131 @@
+package com.networking.session;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Rueda de tiempos para la expiración de sesiones.
+ *
+ * Cada sesión se apunta en la ranura del tick (de tickMillis) en que vence,
+ * así que cada avance solo recorre las ranuras de los ticks transcurridos y
+ * no el mapa completo de sesiones. Renovar una sesión no la mueve de
+ * ranura: solo actualiza su último acceso. Cuando llega su tick se
+ * comprueba el vencimiento real y, si se renovó, se apunta de nuevo en el
+ * tick que le corresponde; cada sesión se mueve como mucho una vez por
+ * periodo de timeout.
+ *
+ * Los vencimientos más allá de una vuelta de la rueda (slotCount ticks) se
+ * quedan en su ranura y se saltan en las vueltas intermedias.
+ */
+public class SessionExpiryWheel {
+
+  private final long tickMillis;
+  private final int mask;
+  private final List<Set<SessionManager.SessionData>> slots;
+  private final Object advanceLock = new Object();
+  // Último tick procesado
+  private volatile long currentTick;
+
+  /**
+   * @param tickMillis resolución de la rueda
+   * @param slotCount número de ranuras, potencia de dos
+   * @param startMillis instante inicial en milisegundos epoch
+   */
+  public SessionExpiryWheel(long tickMillis, int slotCount, long startMillis) {
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("El tick debe ser positivo");
+    }
+    if (slotCount <= 0 || Integer.bitCount(slotCount) != 1) {
+      throw new IllegalArgumentException(
+        "El número de ranuras debe ser una potencia de dos"
+      );
+    }
+    this.tickMillis = tickMillis;
+    this.mask = slotCount - 1;
+    this.slots = new ArrayList<>(slotCount);
+    for (int i = 0; i < slotCount; i++) {
+      slots.add(ConcurrentHashMap.newKeySet());
+    }
+    this.currentTick = startMillis / tickMillis;
+  }
+
+  public long getTickMillis() {
+    return tickMillis;
+  }
+
+  /**
+   * Apunta una sesión en el tick de su vencimiento actual
+   */
+  public void schedule(SessionManager.SessionData session) {
+    // Nunca en un tick ya procesado: se quedaría fuera hasta la vuelta
+    // siguiente
+    long tick = Math.max(
+      ceilTick(session.getExpiresAt()),
+      currentTick + 1
+    );
+    session.scheduledTick = tick;
+    slots.get((int) (tick & mask)).add(session);
+  }
+
+  /**
+   * Retira una sesión de la rueda
+   */
+  public void cancel(SessionManager.SessionData session) {
+    slots.get((int) (session.scheduledTick & mask)).remove(session);
+  }
+
+  /**
+   * Procesa los ticks transcurridos hasta now
+   * @param onExpired recibe cada sesión vencida, ya retirada de la rueda
+   * @return número de sesiones vencidas
+   */
+  public int advance(long now, Consumer<SessionManager.SessionData> onExpired) {
+    synchronized (advanceLock) {
+      long target = now / tickMillis;
+      long tick = currentTick + 1;
+      // Tras una pausa larga basta con recorrer cada ranura una vez
+      tick = Math.max(tick, target - mask);
+      int expired = 0;
+
+      for (; tick <= target; tick++) {
+        Set<SessionManager.SessionData> slot = slots.get((int) (tick & mask));
+        Iterator<SessionManager.SessionData> iterator = slot.iterator();
+        while (iterator.hasNext()) {
+          SessionManager.SessionData session = iterator.next();
+          if (session.scheduledTick > target) {
+            // Vence en una vuelta posterior de la rueda
+            continue;
+          }
+          iterator.remove();
+          if (session.isExpired(now)) {
+            onExpired.accept(session);
+            expired++;
+          } else {
+            // Renovada desde que se apuntó: al tick de su nuevo vencimiento
+            currentTick = tick;
+            schedule(session);
+          }
+        }
+        currentTick = tick;
+      }
+      return expired;
+    }
+  }
+
+  /**
+   * Vacía la rueda
+   */
+  public void clear() {
+    for (Set<SessionManager.SessionData> slot : slots) {
+      slot.clear();
+    }
+  }
+
+  private long ceilTick(long millis) {
+    return (millis + tickMillis - 1) / tickMillis;
+  }
+}
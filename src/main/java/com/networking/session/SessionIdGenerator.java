@@ -0,0 +1,91 @@
+package com.networking.session;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+/**
+ * Generador de ids de sesión sin contención entre hilos.
+ *
+ * Cada hilo tiene su propio SecureRandom y un búfer de bytes aleatorios
+ * que rellena de una vez para BATCH_IDS ids, así que generar un id no
+ * toca ningún lock compartido y solo llama al generador una vez por lote.
+ * Cada id son ID_BYTES bytes aleatorios (192 bits) codificados en
+ * base64url sin relleno: 32 caracteres válidos en cookies y URLs.
+ */
+public final class SessionIdGenerator {
+
+  public static final int ID_BYTES = 24;
+  public static final int ID_LENGTH = ID_BYTES / 3 * 4;
+
+  private static final int BATCH_IDS = 64;
+  private static final byte[] ALPHABET =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(
+        StandardCharsets.US_ASCII
+      );
+
+  private static final ThreadLocal<Batch> BATCHES = ThreadLocal.withInitial(
+    Batch::new
+  );
+
+  private SessionIdGenerator() {}
+
+  /**
+   * Genera un id de sesión
+   */
+  public static String nextId() {
+    Batch batch = BATCHES.get();
+    int offset = batch.take(ID_BYTES);
+    byte[] random = batch.bytes;
+
+    byte[] encoded = new byte[ID_LENGTH];
+    int out = 0;
+    for (int i = offset; i < offset + ID_BYTES; i += 3) {
+      int bits =
+        ((random[i] & 0xFF) << 16) |
+        ((random[i + 1] & 0xFF) << 8) |
+        (random[i + 2] & 0xFF);
+      encoded[out++] = ALPHABET[(bits >>> 18) & 0x3F];
+      encoded[out++] = ALPHABET[(bits >>> 12) & 0x3F];
+      encoded[out++] = ALPHABET[(bits >>> 6) & 0x3F];
+      encoded[out++] = ALPHABET[bits & 0x3F];
+    }
+    return new String(encoded, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Genera 64 bits aleatorios del mismo búfer
+   */
+  public static long nextLong() {
+    Batch batch = BATCHES.get();
+    int offset = batch.take(Long.BYTES);
+    long value = 0;
+    for (int i = offset; i < offset + Long.BYTES; i++) {
+      value = (value << 8) | (batch.bytes[i] & 0xFF);
+    }
+    return value;
+  }
+
+  /**
+   * Búfer de bytes aleatorios de un hilo
+   */
+  private static final class Batch {
+
+    final SecureRandom random = new SecureRandom();
+    final byte[] bytes = new byte[ID_BYTES * BATCH_IDS];
+    int position = bytes.length;
+
+    /**
+     * Reserva count bytes aún no usados, rellenando el búfer si hace falta
+     * @return posición del primero
+     */
+    int take(int count) {
+      if (position + count > bytes.length) {
+        random.nextBytes(bytes);
+        position = 0;
+      }
+      int offset = position;
+      position += count;
+      return offset;
+    }
+  }
+}
@@ -1,18 +1,38 @@
 package com.networking.session;
 
-import java.security.SecureRandom;
-import java.time.LocalDateTime;
+import com.networking.util.CachedClock;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Gestor de sesiones para el servidor web
- * Maneja la creación, validación y limpieza de sesiones de usuario
+ * Maneja la creación, validación y limpieza de sesiones de usuario.
+ *
+ * Las sesiones vencidas se retiran con una rueda de tiempos que avanza
+ * cada tick: cada pasada solo toca las sesiones cuyo vencimiento cae en
+ * los ticks transcurridos, en lugar de recorrer todo el mapa.
+ *
+ * Con enableSignedTokens las sesiones pasan a ser tokens firmados que
+ * cualquier nodo con el mismo secreto valida sin estado compartido; en ese
+ * modo no se guardan en el almacén.
+ *
+ * Con enablePersistence las sesiones sobreviven a los reinicios: se
+ * guardan en una instantánea más un log de cambios (ver
+ * SessionPersistence). Cada SessionData guardada avisa a su gestor de sus
+ * cambios para que lleguen al log.
+ *
+ * Con enableReplication las creaciones, cambios, accesos e invalidaciones
+ * se replican en otros nodos (ver SessionReplicator), así que cualquier nodo
+ * acepta la sesión sin balanceo con afinidad.
  */
 public class SessionManager {
 
@@ -21,17 +41,68 @@ public class SessionManager {
   );
 
   private static final int SESSION_TIMEOUT_MINUTES = 30;
-  private static final String SESSION_ID_CHARS =
-    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
-  private static final int SESSION_ID_LENGTH = 32;
-
-  private final Map<String, SessionData> sessions;
-  private final SecureRandom random;
+  // Resolución de la rueda de expiración: como mucho un segundo, y unas
+  // 60 pasadas por periodo de timeout con timeouts cortos
+  private static final long MAX_EXPIRY_TICK_MILLIS = 1000;
+  private static final long MIN_EXPIRY_TICK_MILLIS = 10;
+  private static final int MAX_WHEEL_SLOTS = 4096;
+  // Capacidad por defecto del almacén: al superarla se expulsan las
+  // sesiones menos usadas
+  private static final int DEFAULT_MAX_SESSIONS = 100_000;
+  private static final long DEFAULT_MAX_SESSION_BYTES = 64L * 1024 * 1024;
+  // Instantánea periódica de las sesiones persistidas, o antes si el log
+  // de cambios crece demasiado
+  private static final long SNAPSHOT_INTERVAL_MINUTES = 5;
+  private static final long MAX_SESSION_LOG_BYTES = 64L * 1024 * 1024;
+
+  private final SessionStore sessions;
   private final ScheduledExecutorService cleanupExecutor;
+  private final long timeoutMillis;
+  private final SessionExpiryWheel expiryWheel;
+  private final LongAdder expiredSessions = new LongAdder();
+  // Un acceso solo renueva el último acceso guardado si este tiene al
+  // menos esta antigüedad
+  private volatile long touchGranularityMillis;
+  // Modo de tokens firmados; null en el modo con almacén en memoria
+  private volatile SessionTokenSigner tokenSigner;
+  // Persistencia en disco; null si las sesiones solo viven en memoria
+  private volatile SessionPersistence persistence;
+  // Replicación a otros nodos; null si las sesiones son solo locales
+  private volatile SessionReplicator replicator;
 
   public SessionManager() {
-    this.sessions = new ConcurrentHashMap<>();
-    this.random = new SecureRandom();
+    this(SESSION_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+  }
+
+  /**
+   * @param timeout tiempo sin accesos tras el que una sesión expira
+   */
+  public SessionManager(long timeout, TimeUnit unit) {
+    this.timeoutMillis = unit.toMillis(timeout);
+    if (timeoutMillis <= 0) {
+      throw new IllegalArgumentException("El timeout debe ser positivo");
+    }
+    long tickMillis = Math.max(
+      MIN_EXPIRY_TICK_MILLIS,
+      Math.min(MAX_EXPIRY_TICK_MILLIS, timeoutMillis / 60)
+    );
+    // Una vuelta de la rueda cubre el timeout siempre que quepa
+    int slots = Integer.highestOneBit(
+      (int) Math.min(MAX_WHEEL_SLOTS, timeoutMillis / tickMillis + 2) * 2 - 1
+    );
+    this.expiryWheel =
+      new SessionExpiryWheel(
+        tickMillis,
+        slots,
+        CachedClock.currentTimeMillis()
+      );
+    this.touchGranularityMillis = tickMillis;
+    this.sessions =
+      new SessionStore(
+        DEFAULT_MAX_SESSIONS,
+        DEFAULT_MAX_SESSION_BYTES,
+        this::onSessionEvicted
+      );
     this.cleanupExecutor =
       Executors.newSingleThreadScheduledExecutor(r -> {
         Thread t = new Thread(r, "SessionCleanup");
@@ -39,18 +110,127 @@ public class SessionManager {
         return t;
       });
 
-    // Programar limpieza de sesiones expiradas cada 5 minutos
+    // Retirar las sesiones vencidas en cada tick de la rueda
     cleanupExecutor.scheduleAtFixedRate(
       this::cleanupExpiredSessions,
-      5,
-      5,
-      TimeUnit.MINUTES
+      tickMillis,
+      tickMillis,
+      TimeUnit.MILLISECONDS
+    );
+
+    logger.info(
+      "SessionManager inicializado con timeout de {} s (tick de {} ms)",
+      timeoutMillis / 1000.0,
+      tickMillis
     );
+  }
+
+  /**
+   * Limita el número de sesiones y los bytes estimados que ocupan
+   */
+  public void setCapacity(int maxSessions, long maxBytes) {
+    sessions.setCapacity(maxSessions, maxBytes);
+  }
+
+  /**
+   * Cada cuánto se renueva como mucho el último acceso de una sesión. Los
+   * accesos más seguidos no escriben en la sesión (ni se replican), así que
+   * una sesión muy usada puede expirar hasta este tiempo antes. Por defecto
+   * es el tick de la rueda de expiración; 0 renueva en cada acceso.
+   */
+  public void setTouchGranularity(long granularity, TimeUnit unit) {
+    long millis = unit.toMillis(granularity);
+    if (millis < 0 || millis >= timeoutMillis) {
+      throw new IllegalArgumentException(
+        "La granularidad debe estar entre 0 y el timeout"
+      );
+    }
+    this.touchGranularityMillis = millis;
+  }
+
+  /**
+   * Emite las sesiones como tokens autocontenidos firmados con HMAC en
+   * lugar de guardarlas en memoria. Las sesiones en token no se renuevan
+   * con cada acceso: expiran el timeout después de emitirse, y sus
+   * atributos no se conservan entre peticiones. Debe llamarse antes de
+   * crear sesiones.
+   * @param secret secreto compartido por todos los nodos (al menos 32 bytes)
+   */
+  public void enableSignedTokens(byte[] secret) {
+    this.tokenSigner = new SessionTokenSigner(secret);
+    logger.info("Sesiones emitidas como tokens firmados con HMAC-SHA256");
+  }
+
+  public boolean isSignedTokenMode() {
+    return tokenSigner != null;
+  }
+
+  /**
+   * Guarda las sesiones en directory y restaura las que había de una
+   * ejecución anterior, descartando las ya expiradas. Debe llamarse antes
+   * de crear sesiones.
+   * @return número de sesiones restauradas
+   */
+  public int enablePersistence(Path directory) throws IOException {
+    SessionPersistence opened = new SessionPersistence(directory);
+    long now = CachedClock.currentTimeMillis();
+    int[] restored = new int[1];
+    int read = opened.restore(session -> {
+      if (!session.isExpired(now)) {
+        session.attach(this);
+        sessions.put(session);
+        expiryWheel.schedule(session);
+        restored[0]++;
+      }
+    });
+    this.persistence = opened;
 
+    cleanupExecutor.scheduleWithFixedDelay(
+      this::snapshotSessions,
+      SNAPSHOT_INTERVAL_MINUTES,
+      SNAPSHOT_INTERVAL_MINUTES,
+      TimeUnit.MINUTES
+    );
     logger.info(
-      "SessionManager inicializado con timeout de {} minutos",
-      SESSION_TIMEOUT_MINUTES
+      "Sesiones persistidas en {}: {} restauradas ({} expiradas)",
+      directory,
+      restored[0],
+      read - restored[0]
+    );
+    return restored[0];
+  }
+
+  /**
+   * Replica las sesiones de este nodo en los demás nodos del transporte y
+   * aplica las suyas. Debe llamarse antes de crear sesiones; en el modo de
+   * tokens firmados no hace falta, porque cualquier nodo valida el token.
+   * @param secret secreto compartido por todos los nodos (al menos 32
+   *               bytes) con el que se firman los lotes; solo se aplican
+   *               los lotes con firma válida
+   */
+  public void enableReplication(ReplicationTransport transport, byte[] secret)
+    throws IOException {
+    if (tokenSigner != null) {
+      throw new IllegalStateException(
+        "Las sesiones en token no necesitan replicación"
+      );
+    }
+    SessionReplicator created = new SessionReplicator(
+      transport,
+      this,
+      secret
     );
+    created.start();
+    this.replicator = created;
+    logger.info("Replicación de sesiones activada");
+  }
+
+  /**
+   * Estadísticas de replicación, o null si no está activada
+   */
+  public SessionReplicator.Stats getReplicationStats() {
+    SessionReplicator current = replicator;
+    return current != null ? current.getStats() : null;
   }
 
   /**
@@ -58,10 +238,19 @@ public class SessionManager {
    * @return ID de la sesión creada
    */
   public String createSession() {
+    SessionTokenSigner signer = tokenSigner;
+    if (signer != null) {
+      return issueToken(signer, null);
+    }
+
     String sessionId = generateSessionId();
-    SessionData sessionData = new SessionData(sessionId, LocalDateTime.now());
+    SessionData sessionData = newSessionData(sessionId);
+    sessionData.attach(this);
 
-    sessions.put(sessionId, sessionData);
+    sessions.put(sessionData);
+    expiryWheel.schedule(sessionData);
+    persistPut(sessionData);
+    replicateCreate(sessionData);
     logger.debug("Nueva sesión creada: {}", sessionId);
 
     return sessionId;
@@ -73,11 +262,20 @@ public class SessionManager {
    * @return ID de la sesión creada
    */
   public String createSession(String username) {
+    SessionTokenSigner signer = tokenSigner;
+    if (signer != null) {
+      return issueToken(signer, username);
+    }
+
     String sessionId = generateSessionId();
-    SessionData sessionData = new SessionData(sessionId, LocalDateTime.now());
+    SessionData sessionData = newSessionData(sessionId);
     sessionData.setUsername(username);
+    sessionData.attach(this);
 
-    sessions.put(sessionId, sessionData);
+    sessions.put(sessionData);
+    expiryWheel.schedule(sessionData);
+    persistPut(sessionData);
+    replicateCreate(sessionData);
     logger.debug(
       "Nueva sesión creada para usuario {}: {}",
       username,
@@ -97,21 +295,12 @@ public class SessionManager {
       return false;
     }
 
-    SessionData session = sessions.get(sessionId);
-    if (session == null) {
-      return false;
-    }
-
-    // Verificar si la sesión ha expirado
-    if (session.isExpired()) {
-      sessions.remove(sessionId);
-      logger.debug("Sesión expirada removida: {}", sessionId);
-      return false;
+    SessionTokenSigner signer = tokenSigner;
+    if (signer != null) {
+      // Solo la firma y la expiración: sin búsquedas ni escrituras
+      return signer.verify(sessionId, CachedClock.currentTimeMillis()) != null;
     }
-
-    // Actualizar tiempo de último acceso
-    session.updateLastAccess();
-    return true;
+    return findValidSession(sessionId) != null;
   }
 
   /**
@@ -120,10 +309,52 @@ public class SessionManager {
    * @return datos de la sesión o null si no existe
    */
   public SessionData getSessionData(String sessionId) {
-    if (!isValidSession(sessionId)) {
+    SessionTokenSigner signer = tokenSigner;
+    if (signer != null) {
+      return tokenSessionData(signer, sessionId);
+    }
+    if (sessionId == null || sessionId.trim().isEmpty()) {
       return null;
     }
-    return sessions.get(sessionId);
+    return findValidSession(sessionId);
+  }
+
+  /**
+   * Busca una sesión del almacén, la retira si ha expirado y si no
+   * renueva su último acceso
+   * @return la sesión, o null si no existe o ha expirado
+   */
+  private SessionData findValidSession(String sessionId) {
+    SessionData session = sessions.get(sessionId);
+    if (session == null) {
+      return null;
+    }
+
+    // Verificar si la sesión ha expirado aunque la rueda aún no la haya
+    // retirado
+    long now = CachedClock.currentTimeMillis();
+    if (session.isExpired(now)) {
+      if (sessions.remove(sessionId, session)) {
+        expiryWheel.cancel(session);
+        persistRemove(sessionId);
+        expiredSessions.increment();
+        logger.debug("Sesión expirada removida: {}", sessionId);
+      }
+      return null;
+    }
+
+    // Actualizar tiempo de último acceso; la rueda lo tiene en cuenta al
+    // llegar al vencimiento anterior. Solo se escribe (y se persiste y se
+    // replica) si ha pasado la granularidad: los accesos seguidos de muchos
+    // hilos a la misma sesión se quedan en lecturas
+    if (session.touch(now, touchGranularityMillis)) {
+      persistTouch(session);
+      SessionReplicator current = replicator;
+      if (current != null) {
+        current.touched(session);
+      }
+    }
+    return session;
   }
 
   /**
@@ -131,8 +362,27 @@ public class SessionManager {
    * @param sessionId ID de la sesión a invalidar
    */
   public void invalidateSession(String sessionId) {
+    SessionTokenSigner signer = tokenSigner;
+    if (signer != null) {
+      SessionTokenSigner.Token token = signer.verify(
+        sessionId,
+        CachedClock.currentTimeMillis()
+      );
+      if (token != null) {
+        signer.revoke(token);
+        logger.debug("Token de sesión revocado: {}", token.getTokenId());
+      }
+      return;
+    }
+
     SessionData removed = sessions.remove(sessionId);
     if (removed != null) {
+      expiryWheel.cancel(removed);
+      persistRemove(sessionId);
+      SessionReplicator current = replicator;
+      if (current != null) {
+        current.removed(sessionId);
+      }
       logger.debug("Sesión invalidada: {}", sessionId);
     }
   }
@@ -146,26 +396,65 @@ public class SessionManager {
   }
 
   /**
-   * Limpia sesiones expiradas
+   * Número de sesiones retiradas por expiración
+   */
+  public long getExpiredSessionCount() {
+    return expiredSessions.sum();
+  }
+
+  /**
+   * Estadísticas del almacén: ocupación y expulsiones por capacidad
+   */
+  public SessionStore.Stats getStoreStats() {
+    return sessions.getStats();
+  }
+
+  public long getSessionTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Limpia sesiones expiradas: avanza la rueda hasta el instante actual
    */
   public void cleanupExpiredSessions() {
-    int initialCount = sessions.size();
-
-    sessions
-      .entrySet()
-      .removeIf(entry -> {
-        if (entry.getValue().isExpired()) {
-          logger.debug("Removiendo sesión expirada: {}", entry.getKey());
-          return true;
+    int[] removedCount = new int[1];
+    try {
+      SessionTokenSigner signer = tokenSigner;
+      if (signer != null) {
+        signer.pruneRevocations(CachedClock.currentTimeMillis());
+      }
+      expiryWheel.advance(
+        CachedClock.currentTimeMillis(),
+        session -> {
+          // Puede haberse invalidado mientras seguía en la rueda
+          if (sessions.remove(session.getSessionId(), session)) {
+            persistRemove(session.getSessionId());
+            logger.debug(
+              "Removiendo sesión expirada: {}",
+              session.getSessionId()
+            );
+            removedCount[0]++;
+          }
         }
-        return false;
-      });
+      );
+    } catch (RuntimeException e) {
+      // Una excepción cancelaría las pasadas programadas
+      logger.error("Error limpiando sesiones expiradas", e);
+    }
+
+    SessionPersistence current = persistence;
+    if (current != null) {
+      current.flush();
+      if (current.getLogBytes() > MAX_SESSION_LOG_BYTES) {
+        snapshotSessions();
+      }
+    }
 
-    int removedCount = initialCount - sessions.size();
-    if (removedCount > 0) {
-      logger.info(
+    if (removedCount[0] > 0) {
+      expiredSessions.add(removedCount[0]);
+      logger.debug(
         "Limpieza de sesiones completada: {} sesiones removidas, {} activas",
-        removedCount,
+        removedCount[0],
         sessions.size()
       );
     }
@@ -178,6 +467,12 @@ public class SessionManager {
     logger.info("Cerrando SessionManager...");
     cleanupExecutor.shutdown();
 
+    SessionReplicator currentReplicator = replicator;
+    if (currentReplicator != null) {
+      currentReplicator.close();
+      replicator = null;
+    }
+
     try {
       if (!cleanupExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
         cleanupExecutor.shutdownNow();
@@ -187,57 +482,349 @@ public class SessionManager {
       cleanupExecutor.shutdownNow();
     }
 
+    // Con persistencia, la instantánea final permite restaurarlas al
+    // arrancar de nuevo
+    SessionPersistence current = persistence;
+    if (current != null) {
+      snapshotSessions();
+      current.close();
+      persistence = null;
+    }
+
     sessions.clear();
+    expiryWheel.clear();
     logger.info("SessionManager cerrado");
   }
 
   /**
-   * Genera un ID de sesión aleatorio y seguro
+   * Escribe una instantánea de las sesiones persistidas
    */
-  private String generateSessionId() {
-    StringBuilder sb = new StringBuilder(SESSION_ID_LENGTH);
-    for (int i = 0; i < SESSION_ID_LENGTH; i++) {
-      sb.append(
-        SESSION_ID_CHARS.charAt(random.nextInt(SESSION_ID_CHARS.length()))
+  private void snapshotSessions() {
+    SessionPersistence current = persistence;
+    if (current == null) {
+      return;
+    }
+    try {
+      long start = System.nanoTime();
+      current.snapshot(sessions::values);
+      logger.debug(
+        "Instantánea de sesiones en {} ms",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
       );
+    } catch (IOException | RuntimeException e) {
+      logger.error("Error escribiendo la instantánea de sesiones", e);
+    }
+  }
+
+  /**
+   * Aplica una sesión creada en otro nodo; si ya existe se conserva la
+   * local con el acceso más reciente de las dos
+   */
+  void applyReplicatedCreate(SessionData session) {
+    long now = CachedClock.currentTimeMillis();
+    if (session.isExpired(now)) {
+      return;
+    }
+    SessionData existing = sessions.get(session.getSessionId());
+    if (existing != null) {
+      applyReplicatedTouch(existing, session.getLastAccessedAt());
+      return;
+    }
+    session.attach(this);
+    sessions.put(session);
+    expiryWheel.schedule(session);
+    persistPut(session);
+  }
+
+  /**
+   * Aplica el cambio de usuario, agente, IP o atributos hecho en otro nodo
+   * a una sesión que este nodo ya tiene
+   */
+  void applyReplicatedUpdate(SessionData session) {
+    SessionData existing = sessions.get(session.getSessionId());
+    if (existing == null) {
+      return;
+    }
+    // Sin avisar al gestor: el cambio no debe volver a replicarse
+    existing.copyFrom(session);
+    applyReplicatedTouch(existing, session.getLastAccessedAt());
+    persistPut(existing);
+  }
+
+  /**
+   * Aplica un acceso hecho en otro nodo
+   */
+  void applyReplicatedTouch(String sessionId, long lastAccessedAt) {
+    SessionData session = sessions.get(sessionId);
+    if (session != null) {
+      applyReplicatedTouch(session, lastAccessedAt);
+    }
+  }
+
+  private void applyReplicatedTouch(SessionData session, long lastAccessedAt) {
+    // Los lotes de varios nodos pueden llegar desordenados
+    if (lastAccessedAt > session.getLastAccessedAt()) {
+      session.updateLastAccess(lastAccessedAt);
+      persistTouch(session);
+    }
+  }
+
+  /**
+   * Aplica una invalidación hecha en otro nodo
+   */
+  void applyReplicatedRemove(String sessionId) {
+    SessionData removed = sessions.remove(sessionId);
+    if (removed != null) {
+      expiryWheel.cancel(removed);
+      persistRemove(sessionId);
+      logger.debug("Sesión invalidada en otro nodo: {}", sessionId);
+    }
+  }
+
+  private void replicateCreate(SessionData session) {
+    SessionReplicator current = replicator;
+    if (current != null) {
+      current.created(session);
+    }
+  }
+
+  private void persistPut(SessionData session) {
+    SessionPersistence current = persistence;
+    if (current != null) {
+      current.logPut(session);
+    }
+  }
+
+  private void persistTouch(SessionData session) {
+    SessionPersistence current = persistence;
+    if (current != null) {
+      current.logTouch(session);
+    }
+  }
+
+  /**
+   * Registra y replica el cambio de usuario, agente, IP o atributos de una
+   * sesión del almacén
+   */
+  void sessionChanged(SessionData session) {
+    SessionPersistence currentPersistence = persistence;
+    SessionReplicator currentReplicator = replicator;
+    String sessionId = session.getSessionId();
+    if (
+      (currentPersistence == null && currentReplicator == null) ||
+      sessions.get(sessionId) != session
+    ) {
+      return;
+    }
+    if (currentPersistence != null) {
+      currentPersistence.logPut(session);
+      // Si se retiró mientras se escribía, su retirada puede haber quedado
+      // antes en el log
+      if (sessions.get(sessionId) != session) {
+        currentPersistence.logRemove(sessionId);
+      }
+    }
+    if (currentReplicator != null) {
+      currentReplicator.updated(session);
+    }
+  }
+
+  private void persistRemove(String sessionId) {
+    SessionPersistence current = persistence;
+    if (current != null) {
+      current.logRemove(sessionId);
+    }
+  }
+
+  /**
+   * Una sesión expulsada por capacidad deja de estar en la rueda
+   */
+  private void onSessionEvicted(SessionData session) {
+    expiryWheel.cancel(session);
+    persistRemove(session.getSessionId());
+    logger.debug("Sesión expulsada por capacidad: {}", session.getSessionId());
+  }
+
+  private String issueToken(SessionTokenSigner signer, String username) {
+    long now = CachedClock.currentTimeMillis();
+    String token = signer.issue(
+      SessionIdGenerator.nextLong(),
+      username,
+      now,
+      now + timeoutMillis
+    );
+    logger.debug("Nuevo token de sesión emitido para {}", username);
+    return token;
+  }
+
+  /**
+   * Vista de un token válido como SessionData; sus atributos solo viven
+   * en el objeto devuelto
+   */
+  private static SessionData tokenSessionData(
+    SessionTokenSigner signer,
+    String sessionId
+  ) {
+    if (sessionId == null) {
+      return null;
+    }
+    SessionTokenSigner.Token token = signer.verify(
+      sessionId,
+      CachedClock.currentTimeMillis()
+    );
+    if (token == null) {
+      return null;
     }
-    return sb.toString();
+    SessionData sessionData = new SessionData(
+      sessionId,
+      token.getIssuedAt(),
+      token.getExpiresAt() - token.getIssuedAt()
+    );
+    sessionData.setUsername(token.getUsername());
+    return sessionData;
+  }
+
+  private SessionData newSessionData(String sessionId) {
+    return new SessionData(
+      sessionId,
+      CachedClock.currentTimeMillis(),
+      timeoutMillis
+    );
+  }
+
+  /**
+   * Genera un ID de sesión aleatorio y seguro
+   */
+  private String generateSessionId() {
+    return SessionIdGenerator.nextId();
   }
 
   /**
-   * Clase para almacenar datos de sesión
+   * Clase para almacenar datos de sesión. Los instantes se guardan en
+   * milisegundos epoch.
    */
   public static class SessionData {
 
+    private static final int BASE_BYTES = 256;
+    private static final int ATTRIBUTE_BYTES = 64;
+
     private final String sessionId;
-    private final LocalDateTime createdAt;
-    private volatile LocalDateTime lastAccessedAt;
+    private final long createdAt;
+    private final long timeoutMillis;
+    private volatile long lastAccessedAt;
     private volatile String username;
     private volatile String userAgent;
     private volatile String ipAddress;
-    private final Map<String, Object> attributes;
-
-    public SessionData(String sessionId, LocalDateTime createdAt) {
+    // Se crea al primer uso; en una sesión restaurada se deserializa
+    // entonces desde serializedAttributes
+    private volatile Map<String, Object> attributes;
+    private volatile byte[] serializedAttributes;
+    // Gestor cuyo almacén la guarda y que registra sus cambios; null en
+    // las vistas de tokens firmados
+    private volatile SessionManager owner;
+    // Tick de la rueda de expiración en el que está apuntada
+    volatile long scheduledTick;
+    // Bytes contabilizados en el almacén, bajo el lock de su segmento
+    int accountedBytes;
+
+    public SessionData(String sessionId, long createdAt, long timeoutMillis) {
       this.sessionId = sessionId;
       this.createdAt = createdAt;
+      this.timeoutMillis = timeoutMillis;
       this.lastAccessedAt = createdAt;
-      this.attributes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Reconstruye una sesión persistida; los atributos quedan serializados
+     * hasta que se usan
+     */
+    SessionData(
+      String sessionId,
+      long createdAt,
+      long lastAccessedAt,
+      long timeoutMillis,
+      String username,
+      String userAgent,
+      String ipAddress,
+      byte[] serializedAttributes
+    ) {
+      this.sessionId = sessionId;
+      this.createdAt = createdAt;
+      this.timeoutMillis = timeoutMillis;
+      this.lastAccessedAt = lastAccessedAt;
+      this.username = username;
+      this.userAgent = userAgent;
+      this.ipAddress = ipAddress;
+      this.serializedAttributes = serializedAttributes;
     }
 
     public String getSessionId() {
       return sessionId;
     }
 
-    public LocalDateTime getCreatedAt() {
+    /**
+     * Liga la sesión al gestor que la guarda, antes de añadirla al almacén
+     */
+    void attach(SessionManager owner) {
+      this.owner = owner;
+    }
+
+    /**
+     * Copia los datos de una versión de la sesión recibida de otro nodo
+     */
+    void copyFrom(SessionData other) {
+      this.username = other.username;
+      this.userAgent = other.userAgent;
+      this.ipAddress = other.ipAddress;
+      byte[] serialized = other.getSerializedAttributes();
+      synchronized (this) {
+        // Excluye a attributes(): el mapa se rehace desde la versión nueva
+        this.serializedAttributes = serialized;
+        this.attributes = null;
+      }
+    }
+
+    private void changed() {
+      SessionManager current = owner;
+      if (current != null) {
+        current.sessionChanged(this);
+      }
+    }
+
+    public long getCreatedAt() {
       return createdAt;
     }
 
-    public LocalDateTime getLastAccessedAt() {
+    public long getLastAccessedAt() {
       return lastAccessedAt;
     }
 
+    /**
+     * Instante en que expira si no vuelve a accederse
+     */
+    public long getExpiresAt() {
+      return lastAccessedAt + timeoutMillis;
+    }
+
     public void updateLastAccess() {
-      this.lastAccessedAt = LocalDateTime.now();
+      updateLastAccess(CachedClock.currentTimeMillis());
+    }
+
+    void updateLastAccess(long now) {
+      this.lastAccessedAt = now;
+    }
+
+    /**
+     * Renueva el último acceso si tiene al menos granularityMillis de
+     * antigüedad
+     * @return true si se ha escrito
+     */
+    boolean touch(long now, long granularityMillis) {
+      if (now - lastAccessedAt < granularityMillis) {
+        return false;
+      }
+      this.lastAccessedAt = now;
+      return true;
     }
 
     public String getUsername() {
@@ -245,7 +832,10 @@ public class SessionManager {
     }
 
     public void setUsername(String username) {
-      this.username = username;
+      if (!Objects.equals(this.username, username)) {
+        this.username = username;
+        changed();
+      }
     }
 
     public String getUserAgent() {
@@ -253,7 +843,10 @@ public class SessionManager {
     }
 
     public void setUserAgent(String userAgent) {
-      this.userAgent = userAgent;
+      if (!Objects.equals(this.userAgent, userAgent)) {
+        this.userAgent = userAgent;
+        changed();
+      }
     }
 
     public String getIpAddress() {
@@ -261,47 +854,143 @@ public class SessionManager {
     }
 
     public void setIpAddress(String ipAddress) {
-      this.ipAddress = ipAddress;
+      if (!Objects.equals(this.ipAddress, ipAddress)) {
+        this.ipAddress = ipAddress;
+        changed();
+      }
+    }
+
+    public long getTimeoutMillis() {
+      return timeoutMillis;
     }
 
     public Object getAttribute(String name) {
-      return attributes.get(name);
+      // Se leen en orden inverso al de attributes(): si el mapa aún no
+      // existe, los bytes leídos antes siguen siendo válidos
+      byte[] serialized = serializedAttributes;
+      Map<String, Object> current = attributes;
+      if (current == null) {
+        if (serialized == null) {
+          return null;
+        }
+        current = attributes();
+      }
+      return current.get(name);
     }
 
     public void setAttribute(String name, Object value) {
       if (value == null) {
-        attributes.remove(name);
+        removeAttribute(name);
       } else {
-        attributes.put(name, value);
+        attributes().put(name, value);
+        changed();
       }
     }
 
     public void removeAttribute(String name) {
-      attributes.remove(name);
+      if (
+        (attributes != null || serializedAttributes != null) &&
+        attributes().remove(name) != null
+      ) {
+        changed();
+      }
+    }
+
+    /**
+     * Atributos serializados para persistir la sesión, o null si no tiene.
+     * Si aún no se habían deserializado se devuelven tal cual.
+     */
+    byte[] getSerializedAttributes() {
+      byte[] serialized = serializedAttributes;
+      Map<String, Object> current = attributes;
+      if (current == null) {
+        return serialized;
+      }
+      return current.isEmpty()
+        ? null
+        : SessionPersistence.serializeAttributes(current);
+    }
+
+    private Map<String, Object> attributes() {
+      Map<String, Object> current = attributes;
+      if (current != null) {
+        return current;
+      }
+      synchronized (this) {
+        if (attributes == null) {
+          Map<String, Object> created = new ConcurrentHashMap<>();
+          byte[] serialized = serializedAttributes;
+          if (serialized != null) {
+            created.putAll(
+              SessionPersistence.deserializeAttributes(sessionId, serialized)
+            );
+          }
+          attributes = created;
+          serializedAttributes = null;
+        }
+        return attributes;
+      }
+    }
+
+    /**
+     * Estimación de la memoria que ocupa la sesión: objeto, mapa de
+     * atributos, entradas en el almacén y la rueda, y los textos. El
+     * tamaño de los valores de los atributos no se conoce y se cuenta
+     * como fijo.
+     */
+    public int estimateBytes() {
+      return (
+        BASE_BYTES +
+        2 * (
+          length(sessionId) +
+          length(username) +
+          length(userAgent) +
+          length(ipAddress)
+        ) +
+        attributeBytes()
+      );
+    }
+
+    private int attributeBytes() {
+      Map<String, Object> current = attributes;
+      if (current != null) {
+        return current.size() * ATTRIBUTE_BYTES;
+      }
+      byte[] serialized = serializedAttributes;
+      return serialized != null ? serialized.length : 0;
+    }
+
+    private static int length(String value) {
+      return value != null ? value.length() : 0;
     }
 
     /**
      * Verifica si la sesión ha expirado
      */
     public boolean isExpired() {
-      return lastAccessedAt
-        .plusMinutes(SESSION_TIMEOUT_MINUTES)
-        .isBefore(LocalDateTime.now());
+      return isExpired(CachedClock.currentTimeMillis());
+    }
+
+    /**
+     * Verifica si la sesión ha expirado en el instante now
+     */
+    public boolean isExpired(long now) {
+      return now >= getExpiresAt();
     }
 
     /**
      * Obtiene la duración de la sesión en minutos
      */
     public long getSessionDurationMinutes() {
-      return java.time.Duration
-        .between(createdAt, LocalDateTime.now())
-        .toMinutes();
+      return TimeUnit.MILLISECONDS.toMinutes(
+        CachedClock.currentTimeMillis() - createdAt
+      );
     }
 
     @Override
     public String toString() {
       return String.format(
-        "SessionData{id='%s', username='%s', created=%s, lastAccess=%s}",
+        "SessionData{id='%s', username='%s', created=%d, lastAccess=%d}",
         sessionId,
         username,
         createdAt,
@@ -0,0 +1,495 @@
+package com.networking.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistencia de sesiones en disco para reinicios sin cerrar sesión.
+ *
+ * El estado se guarda como una instantánea binaria (sessions.snapshot)
+ * más un log de cambios solo de añadido (sessions-GEN.log) con las
+ * sesiones creadas, modificadas, accedidas y retiradas desde la
+ * instantánea. Al hacer una
+ * instantánea se abre un log de la generación siguiente antes de
+ * recorrer las sesiones, así que los cambios concurrentes quedan en el
+ * log nuevo; la instantánea registra desde qué generación hay que
+ * reproducir y los logs anteriores se borran. Reproducir un log es
+ * idempotente: una creación o un cambio sustituye a la sesión, un acceso
+ * solo adelanta su último acceso y una retirada la borra.
+ *
+ * Un cambio de usuario, agente, IP o atributos se registra como la sesión
+ * completa; un acceso, solo con su instante, y como mucho uno por
+ * granularidad de acceso (SessionManager.setTouchGranularity). Los
+ * atributos se guardan serializados y se deserializan al primer uso tras
+ * restaurar, admitiendo solo tipos de valor y colecciones de java.base;
+ * los demás atributos se descartan.
+ */
+public class SessionPersistence {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+    SessionPersistence.class
+  );
+
+  private static final String SNAPSHOT_FILE = "sessions.snapshot";
+  private static final String LOG_PREFIX = "sessions-";
+  private static final String LOG_SUFFIX = ".log";
+  private static final int SNAPSHOT_MAGIC = 0x53455353; // "SESS"
+  private static final byte FORMAT_VERSION = 1;
+  private static final byte OP_PUT = 1;
+  private static final byte OP_REMOVE = 2;
+  private static final byte OP_TOUCH = 3;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // Clases que pueden aparecer en los atributos restaurados: tipos de
+  // valor y colecciones de java.base. Los atributos llegan también de
+  // otros nodos, y deserializar cualquier clase del classpath permitiría
+  // ejecutar código con un blob preparado
+  private static final ObjectInputFilter ATTRIBUTES_FILTER = ObjectInputFilter.Config.createFilter(
+    "maxdepth=20;maxrefs=100000;maxarray=1000000;" +
+    "java.lang.*;java.util.*;java.time.*;java.math.*;!*"
+  );
+
+  private final Path directory;
+  private final Object logLock = new Object();
+  private DataOutputStream log;
+  private long logGeneration;
+  private long logBytes;
+
+  public SessionPersistence(Path directory) {
+    this.directory = directory;
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Lee la instantánea y reproduce los logs posteriores; después abre un
+   * log nuevo para los cambios
+   * @param consumer recibe cada sesión restaurada, en orden de creación
+   * @return número de sesiones restauradas
+   */
+  public int restore(Consumer<SessionManager.SessionData> consumer)
+    throws IOException {
+    Files.createDirectories(directory);
+    Map<String, SessionManager.SessionData> restored = new LinkedHashMap<>();
+    long firstGeneration = 0;
+
+    Path snapshot = directory.resolve(SNAPSHOT_FILE);
+    if (Files.exists(snapshot)) {
+      try (DataInputStream in = open(snapshot)) {
+        if (in.readInt() != SNAPSHOT_MAGIC || in.readByte() != FORMAT_VERSION) {
+          throw new IOException("Instantánea de sesiones con formato desconocido");
+        }
+        firstGeneration = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          SessionManager.SessionData session = readSession(in);
+          restored.put(session.getSessionId(), session);
+        }
+      }
+    }
+
+    List<Long> generations = listLogGenerations();
+    for (long generation : generations) {
+      if (generation >= firstGeneration) {
+        replayLog(logPath(generation), restored);
+      }
+    }
+
+    long nextGeneration = Math.max(
+      firstGeneration,
+      generations.isEmpty() ? 0 : generations.get(generations.size() - 1) + 1
+    );
+    synchronized (logLock) {
+      openLog(nextGeneration);
+    }
+
+    for (SessionManager.SessionData session : restored.values()) {
+      consumer.accept(session);
+    }
+    return restored.size();
+  }
+
+  /**
+   * Registra una sesión creada o modificada
+   */
+  public void logPut(SessionManager.SessionData session) {
+    synchronized (logLock) {
+      if (log == null) {
+        return;
+      }
+      try {
+        log.writeByte(OP_PUT);
+        int written = writeSession(log, session);
+        logBytes += 1 + written;
+      } catch (IOException e) {
+        logger.warn("No se pudo registrar la sesión {}", session.getSessionId(), e);
+      }
+    }
+  }
+
+  /**
+   * Registra un acceso a una sesión
+   */
+  public void logTouch(SessionManager.SessionData session) {
+    synchronized (logLock) {
+      if (log == null) {
+        return;
+      }
+      try {
+        log.writeByte(OP_TOUCH);
+        log.writeUTF(session.getSessionId());
+        log.writeLong(session.getLastAccessedAt());
+        logBytes += 1 + 2 + session.getSessionId().length() + 8;
+      } catch (IOException e) {
+        logger.warn(
+          "No se pudo registrar el acceso a {}",
+          session.getSessionId(),
+          e
+        );
+      }
+    }
+  }
+
+  /**
+   * Registra una sesión retirada
+   */
+  public void logRemove(String sessionId) {
+    synchronized (logLock) {
+      if (log == null) {
+        return;
+      }
+      try {
+        log.writeByte(OP_REMOVE);
+        log.writeUTF(sessionId);
+        logBytes += 1 + 2 + sessionId.length();
+      } catch (IOException e) {
+        logger.warn("No se pudo registrar la retirada de {}", sessionId, e);
+      }
+    }
+  }
+
+  /**
+   * Vuelca al disco los cambios pendientes del log, sin fsync
+   */
+  public void flush() {
+    synchronized (logLock) {
+      if (log == null) {
+        return;
+      }
+      try {
+        log.flush();
+      } catch (IOException e) {
+        logger.warn("No se pudo volcar el log de sesiones", e);
+      }
+    }
+  }
+
+  /**
+   * Bytes escritos en el log desde la última instantánea
+   */
+  public long getLogBytes() {
+    synchronized (logLock) {
+      return logBytes;
+    }
+  }
+
+  /**
+   * Escribe una instantánea con las sesiones actuales y descarta los
+   * logs que cubre
+   * @param sessions proveedor de las sesiones actuales; se llama después
+   *                 de rotar el log
+   */
+  public void snapshot(Supplier<List<SessionManager.SessionData>> sessions)
+    throws IOException {
+    long snapshotGeneration;
+    synchronized (logLock) {
+      if (log == null) {
+        throw new IllegalStateException("La persistencia no está abierta");
+      }
+      log.close();
+      snapshotGeneration = logGeneration + 1;
+      openLog(snapshotGeneration);
+    }
+
+    List<SessionManager.SessionData> current = sessions.get();
+    Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+    try (
+      FileOutputStream file = new FileOutputStream(temporary.toFile());
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(file, BUFFER_SIZE)
+      )
+    ) {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeByte(FORMAT_VERSION);
+      out.writeLong(snapshotGeneration);
+      out.writeInt(current.size());
+      for (SessionManager.SessionData session : current) {
+        writeSession(out, session);
+      }
+      out.flush();
+      file.getFD().sync();
+    }
+    Files.move(
+      temporary,
+      directory.resolve(SNAPSHOT_FILE),
+      StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE
+    );
+
+    for (long generation : listLogGenerations()) {
+      if (generation < snapshotGeneration) {
+        Files.deleteIfExists(logPath(generation));
+      }
+    }
+    logger.debug(
+      "Instantánea de {} sesiones escrita (log desde la generación {})",
+      current.size(),
+      snapshotGeneration
+    );
+  }
+
+  public void close() {
+    synchronized (logLock) {
+      if (log == null) {
+        return;
+      }
+      try {
+        log.close();
+      } catch (IOException e) {
+        logger.warn("Error cerrando el log de sesiones", e);
+      }
+      log = null;
+    }
+  }
+
+  /**
+   * Serializa los atributos serializables de una sesión; los demás se
+   * omiten
+   */
+  static byte[] serializeAttributes(Map<String, Object> attributes) {
+    HashMap<String, Object> serializable = new HashMap<>();
+    for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+      if (entry.getValue() instanceof Serializable) {
+        serializable.put(entry.getKey(), entry.getValue());
+      } else {
+        logger.debug("Atributo de sesión no serializable: {}", entry.getKey());
+      }
+    }
+    if (serializable.isEmpty()) {
+      return null;
+    }
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+      out.writeObject(serializable);
+    } catch (NotSerializableException e) {
+      // Un valor serializable que contiene otro que no lo es
+      logger.debug("Atributos de sesión no serializables: {}", e.getMessage());
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return buffer.toByteArray();
+  }
+
+  @SuppressWarnings("unchecked")
+  static Map<String, Object> deserializeAttributes(
+    String sessionId,
+    byte[] serialized
+  ) {
+    try (
+      ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(serialized)
+      )
+    ) {
+      in.setObjectInputFilter(ATTRIBUTES_FILTER);
+      return (Map<String, Object>) in.readObject();
+    } catch (IOException | ClassNotFoundException | ClassCastException e) {
+      logger.warn(
+        "Atributos de la sesión {} ilegibles, se descartan: {}",
+        sessionId,
+        e.toString()
+      );
+      return Collections.emptyMap();
+    }
+  }
+
+  private void openLog(long generation) throws IOException {
+    // Requiere logLock
+    log =
+      new DataOutputStream(
+        new BufferedOutputStream(
+          new FileOutputStream(logPath(generation).toFile(), true),
+          BUFFER_SIZE
+        )
+      );
+    logGeneration = generation;
+    logBytes = 0;
+  }
+
+  private void replayLog(
+    Path path,
+    Map<String, SessionManager.SessionData> restored
+  ) throws IOException {
+    try (DataInputStream in = open(path)) {
+      while (true) {
+        int op = in.read();
+        if (op == -1) {
+          break;
+        }
+        if (op == OP_PUT) {
+          SessionManager.SessionData session = readSession(in);
+          restored.put(session.getSessionId(), session);
+        } else if (op == OP_REMOVE) {
+          restored.remove(in.readUTF());
+        } else if (op == OP_TOUCH) {
+          SessionManager.SessionData session = restored.get(in.readUTF());
+          long lastAccessedAt = in.readLong();
+          if (
+            session != null && lastAccessedAt > session.getLastAccessedAt()
+          ) {
+            session.updateLastAccess(lastAccessedAt);
+          }
+        } else {
+          logger.warn("Operación desconocida en {}; se ignora el resto", path);
+          break;
+        }
+      }
+    } catch (EOFException e) {
+      // Registro a medias por una caída: se descarta
+      logger.info("Log de sesiones {} truncado en el último registro", path);
+    }
+  }
+
+  private List<Long> listLogGenerations() throws IOException {
+    List<Long> generations = new ArrayList<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(file -> {
+        String name = file.getFileName().toString();
+        if (name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX)) {
+          try {
+            generations.add(
+              Long.parseLong(
+                name.substring(
+                  LOG_PREFIX.length(),
+                  name.length() - LOG_SUFFIX.length()
+                )
+              )
+            );
+          } catch (NumberFormatException e) {
+            // Fichero ajeno
+          }
+        }
+      });
+    }
+    Collections.sort(generations);
+    return generations;
+  }
+
+  private Path logPath(long generation) {
+    return directory.resolve(
+      String.format("%s%020d%s", LOG_PREFIX, generation, LOG_SUFFIX)
+    );
+  }
+
+  private static DataInputStream open(Path path) throws IOException {
+    return new DataInputStream(
+      new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE)
+    );
+  }
+
+  /**
+   * Escribe el registro completo de una sesión; también lo usa la
+   * replicación
+   * @return bytes escritos
+   */
+  static int writeSession(
+    DataOutputStream out,
+    SessionManager.SessionData session
+  ) throws IOException {
+    int before = out.size();
+    out.writeUTF(session.getSessionId());
+    out.writeLong(session.getCreatedAt());
+    out.writeLong(session.getLastAccessedAt());
+    out.writeLong(session.getTimeoutMillis());
+    writeNullableString(out, session.getUsername());
+    writeNullableString(out, session.getUserAgent());
+    writeNullableString(out, session.getIpAddress());
+    byte[] attributes = session.getSerializedAttributes();
+    if (attributes == null) {
+      out.writeInt(0);
+    } else {
+      out.writeInt(attributes.length);
+      out.write(attributes);
+    }
+    return out.size() - before;
+  }
+
+  static SessionManager.SessionData readSession(DataInputStream in)
+    throws IOException {
+    String sessionId = in.readUTF();
+    long createdAt = in.readLong();
+    long lastAccessedAt = in.readLong();
+    long timeoutMillis = in.readLong();
+    String username = readNullableString(in);
+    String userAgent = readNullableString(in);
+    String ipAddress = readNullableString(in);
+    int attributesLength = in.readInt();
+    byte[] attributes = null;
+    if (attributesLength > 0) {
+      attributes = new byte[attributesLength];
+      in.readFully(attributes);
+    }
+    return new SessionManager.SessionData(
+      sessionId,
+      createdAt,
+      lastAccessedAt,
+      timeoutMillis,
+      username,
+      userAgent,
+      ipAddress,
+      attributes
+    );
+  }
+
+  private static void writeNullableString(DataOutputStream out, String value)
+    throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readNullableString(DataInputStream in)
+    throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
@@ -0,0 +1,439 @@
+package com.networking.session;
+
+import com.networking.util.CachedClock;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replica las sesiones de un SessionManager en otros nodos.
+ *
+ * Los cambios (creación, modificación, acceso e invalidación) se acumulan
+ * por id de sesión y se envían en lotes cada BATCH_INTERVAL_MILLIS, o
+ * antes si se juntan MAX_BATCH_DELTAS. Dentro de un lote cada sesión
+ * aparece una vez: los accesos repetidos se fusionan en uno, una
+ * modificación absorbe los accesos y una invalidación sustituye a lo
+ * anterior. El registro de una sesión se codifica al enviar el lote, así
+ * que lleva su último acceso y sus últimos datos. Si los envíos no dan
+ * abasto y hay MAX_PENDING_SESSIONS sesiones pendientes, los cambios de
+ * sesiones nuevas se descartan hasta el siguiente lote.
+ *
+ * Una modificación (usuario, agente, IP o atributos) viaja como el
+ * registro completo y solo se aplica a sesiones que el otro nodo ya
+ * tiene, para no revivir una sesión invalidada. La expiración y las
+ * expulsiones por capacidad no se replican: cada nodo las decide con sus
+ * propios accesos.
+ *
+ * Cada lote termina con su firma HMAC (SessionTokenSigner) con un secreto
+ * compartido por los nodos. Los lotes sin firma válida se descartan sin
+ * leerlos, así que solo quien tiene el secreto puede crear, modificar o
+ * invalidar sesiones en otro nodo. Para que un lote capturado no pueda
+ * reenviarse (por ejemplo, para revivir una sesión tras cerrarla), cada
+ * nodo numera sus lotes en orden creciente y el receptor descarta los que
+ * no superan el último que aplicó de ese nodo, igual que los que se
+ * encolaron hace más de MAX_BATCH_AGE_MILLIS.
+ */
+public class SessionReplicator {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+    SessionReplicator.class
+  );
+
+  private static final long BATCH_INTERVAL_MILLIS = 50;
+  private static final int MAX_BATCH_DELTAS = 4096;
+  private static final int MAX_PENDING_SESSIONS = 4 * MAX_BATCH_DELTAS;
+  // 3: lotes firmados y numerados. No coincide con la versión de los
+  // tokens de sesión, así que un lote firmado nunca pasa por un token del
+  // mismo secreto
+  private static final byte FORMAT_VERSION = 3;
+  // Antigüedad máxima de un lote recibido; admite la diferencia de relojes
+  // entre nodos y los lotes que esperan en la cola de un par lento
+  private static final long MAX_BATCH_AGE_MILLIS = 60_000;
+  private static final byte OP_CREATE = 1;
+  private static final byte OP_TOUCH = 2;
+  private static final byte OP_REMOVE = 3;
+  private static final byte OP_UPDATE = 4;
+
+  private final ReplicationTransport transport;
+  private final SessionManager manager;
+  private final SessionTokenSigner signer;
+  private final long nodeId = SessionIdGenerator.nextLong();
+  // Número del último lote enviado por este nodo
+  private long batchNumber;
+  // Número del último lote aplicado de cada nodo remoto
+  private final ConcurrentHashMap<Long, Long> lastBatchNumbers = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService flushExecutor;
+  private final Object pendingLock = new Object();
+  // Último cambio pendiente de cada sesión, en orden de llegada
+  private Map<String, Delta> pending = new LinkedHashMap<>();
+  // Instante en que se encoló el cambio más antiguo pendiente
+  private long pendingSince;
+  private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+  private final LongAdder publishedBatches = new LongAdder();
+  private final LongAdder publishedDeltas = new LongAdder();
+  private final LongAdder coalescedDeltas = new LongAdder();
+  private final LongAdder droppedDeltas = new LongAdder();
+  private final LongAdder failedBatches = new LongAdder();
+  private final LongAdder receivedBatches = new LongAdder();
+  private final LongAdder rejectedBatches = new LongAdder();
+  private final LongAdder appliedDeltas = new LongAdder();
+  private final AtomicLong lastLagMillis = new AtomicLong(-1);
+  private final AtomicLong maxLagMillis = new AtomicLong(-1);
+
+  /**
+   * @param secret secreto con el que se firman y verifican los lotes; el
+   *               mismo en todos los nodos (al menos 32 bytes)
+   */
+  public SessionReplicator(
+    ReplicationTransport transport,
+    SessionManager manager,
+    byte[] secret
+  ) {
+    this.transport = transport;
+    this.manager = manager;
+    this.signer = new SessionTokenSigner(secret);
+    this.flushExecutor =
+      Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "SessionReplication");
+        t.setDaemon(true);
+        return t;
+      });
+  }
+
+  /**
+   * Empieza a recibir cambios de los demás nodos y a enviar los propios
+   */
+  public void start() throws IOException {
+    transport.start(this::receive);
+    flushExecutor.scheduleWithFixedDelay(
+      this::flush,
+      BATCH_INTERVAL_MILLIS,
+      BATCH_INTERVAL_MILLIS,
+      TimeUnit.MILLISECONDS
+    );
+  }
+
+  public void created(SessionManager.SessionData session) {
+    enqueue(session.getSessionId(), new Delta(OP_CREATE, session));
+  }
+
+  public void touched(SessionManager.SessionData session) {
+    enqueue(session.getSessionId(), new Delta(OP_TOUCH, session));
+  }
+
+  public void updated(SessionManager.SessionData session) {
+    enqueue(session.getSessionId(), new Delta(OP_UPDATE, session));
+  }
+
+  public void removed(String sessionId) {
+    enqueue(sessionId, new Delta(OP_REMOVE, null));
+  }
+
+  /**
+   * Envía los cambios pendientes y cierra el transporte
+   */
+  public void close() {
+    flushExecutor.shutdown();
+    try {
+      flushExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    transport.close();
+  }
+
+  public Stats getStats() {
+    return new Stats(
+      publishedBatches.sum(),
+      publishedDeltas.sum(),
+      coalescedDeltas.sum(),
+      droppedDeltas.sum(),
+      failedBatches.sum(),
+      receivedBatches.sum(),
+      rejectedBatches.sum(),
+      appliedDeltas.sum(),
+      lastLagMillis.get(),
+      maxLagMillis.get()
+    );
+  }
+
+  private void enqueue(String sessionId, Delta delta) {
+    int size;
+    synchronized (pendingLock) {
+      if (pending.isEmpty()) {
+        pendingSince = CachedClock.currentTimeMillis();
+      }
+      Delta previous = pending.get(sessionId);
+      if (previous == null) {
+        if (pending.size() >= MAX_PENDING_SESSIONS) {
+          droppedDeltas.increment();
+          return;
+        }
+        pending.put(sessionId, delta);
+      } else {
+        coalescedDeltas.increment();
+        if (supersedes(delta, previous)) {
+          pending.put(sessionId, delta);
+        }
+      }
+      size = pending.size();
+    }
+    if (
+      size >= MAX_BATCH_DELTAS && flushRequested.compareAndSet(false, true)
+    ) {
+      try {
+        flushExecutor.execute(this::flush);
+      } catch (RuntimeException e) {
+        // Cerrando: close() envía lo pendiente
+        flushRequested.set(false);
+      }
+    }
+  }
+
+  /**
+   * Indica si un cambio sustituye al pendiente de la misma sesión. Lo
+   * pendiente se codifica con los datos actuales al enviar, así que un
+   * acceso no añade nada, y una modificación solo añade algo a un acceso:
+   * no sustituye a una creación ni a una invalidación.
+   */
+  private static boolean supersedes(Delta delta, Delta previous) {
+    switch (delta.op) {
+      case OP_TOUCH:
+        return false;
+      case OP_UPDATE:
+        return previous.op == OP_TOUCH;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Codifica y envía los cambios pendientes en un lote
+   */
+  void flush() {
+    flushRequested.set(false);
+    Map<String, Delta> batch;
+    long since;
+    synchronized (pendingLock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      since = pendingSince;
+      pending = new LinkedHashMap<>();
+    }
+
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+        batch.size() * 64
+      );
+      DataOutputStream out = new DataOutputStream(buffer);
+      out.writeByte(FORMAT_VERSION);
+      out.writeLong(nodeId);
+      out.writeLong(++batchNumber);
+      out.writeLong(since);
+      out.writeInt(batch.size());
+      for (Map.Entry<String, Delta> entry : batch.entrySet()) {
+        Delta delta = entry.getValue();
+        out.writeByte(delta.op);
+        if (delta.op == OP_CREATE || delta.op == OP_UPDATE) {
+          SessionPersistence.writeSession(out, delta.session);
+        } else if (delta.op == OP_TOUCH) {
+          out.writeUTF(entry.getKey());
+          out.writeLong(delta.session.getLastAccessedAt());
+        } else {
+          out.writeUTF(entry.getKey());
+        }
+      }
+      out.flush();
+      byte[] body = buffer.toByteArray();
+      buffer.write(signer.sign(body, 0, body.length));
+      transport.publish(buffer.toByteArray());
+      publishedBatches.increment();
+      publishedDeltas.add(batch.size());
+    } catch (IOException | RuntimeException e) {
+      failedBatches.increment();
+      logger.warn("No se pudo enviar un lote de {} cambios", batch.size(), e);
+    }
+  }
+
+  /**
+   * Aplica un lote recibido de otro nodo
+   */
+  private void receive(byte[] batch) {
+    int length = batch.length - SessionTokenSigner.MAC_BYTES;
+    if (
+      length <= 0 || !signer.verifySignature(batch, 0, length, batch, length)
+    ) {
+      rejectedBatches.increment();
+      logger.warn("Lote de replicación sin firma válida descartado");
+      return;
+    }
+    try (
+      DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(batch, 0, length)
+      )
+    ) {
+      if (in.readByte() != FORMAT_VERSION) {
+        logger.warn("Lote de replicación con formato desconocido");
+        return;
+      }
+      long sender = in.readLong();
+      if (sender == nodeId) {
+        return;
+      }
+      long number = in.readLong();
+      long since = in.readLong();
+      if (!acceptBatchNumber(sender, number, since)) {
+        rejectedBatches.increment();
+        logger.warn(
+          "Lote de replicación repetido o caducado descartado: nodo {}, " +
+          "lote {}",
+          sender,
+          number
+        );
+        return;
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        byte op = in.readByte();
+        if (op == OP_CREATE) {
+          manager.applyReplicatedCreate(SessionPersistence.readSession(in));
+        } else if (op == OP_TOUCH) {
+          manager.applyReplicatedTouch(in.readUTF(), in.readLong());
+        } else if (op == OP_UPDATE) {
+          manager.applyReplicatedUpdate(SessionPersistence.readSession(in));
+        } else if (op == OP_REMOVE) {
+          manager.applyReplicatedRemove(in.readUTF());
+        } else {
+          logger.warn("Operación de replicación desconocida: {}", op);
+          return;
+        }
+      }
+      receivedBatches.increment();
+      appliedDeltas.add(count);
+
+      long lag = Math.max(0, CachedClock.currentTimeMillis() - since);
+      lastLagMillis.set(lag);
+      maxLagMillis.accumulateAndGet(lag, Math::max);
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Lote de replicación ilegible: {}", e.toString());
+    }
+  }
+
+  /**
+   * Registra el número de un lote recibido si es posterior al último
+   * aplicado de su nodo y no está caducado
+   */
+  private boolean acceptBatchNumber(long sender, long number, long since) {
+    if (CachedClock.currentTimeMillis() - since > MAX_BATCH_AGE_MILLIS) {
+      return false;
+    }
+    boolean[] accepted = new boolean[1];
+    lastBatchNumbers.compute(
+      sender,
+      (node, last) -> {
+        if (last != null && number <= last) {
+          return last;
+        }
+        accepted[0] = true;
+        return number;
+      }
+    );
+    return accepted[0];
+  }
+
+  /**
+   * Último cambio pendiente de una sesión
+   */
+  private static final class Delta {
+
+    final byte op;
+    final SessionManager.SessionData session;
+
+    Delta(byte op, SessionManager.SessionData session) {
+      this.op = op;
+      this.session = session;
+    }
+  }
+
+  /**
+   * Estadísticas de replicación. El retraso es el tiempo desde que se
+   * encoló el cambio más antiguo de un lote hasta que este nodo lo aplicó
+   * (-1 si aún no ha recibido ninguno); entre máquinas incluye la
+   * diferencia de sus relojes. Los lotes rechazados son los que llegaron
+   * sin firma válida, repetidos o caducados. Los cambios descartados son
+   * los que no cupieron en la cola de pendientes.
+   */
+  public static class Stats {
+
+    public final long publishedBatches;
+    public final long publishedDeltas;
+    public final long coalescedDeltas;
+    public final long droppedDeltas;
+    public final long failedBatches;
+    public final long receivedBatches;
+    public final long rejectedBatches;
+    public final long appliedDeltas;
+    public final long lastLagMillis;
+    public final long maxLagMillis;
+
+    public Stats(
+      long publishedBatches,
+      long publishedDeltas,
+      long coalescedDeltas,
+      long droppedDeltas,
+      long failedBatches,
+      long receivedBatches,
+      long rejectedBatches,
+      long appliedDeltas,
+      long lastLagMillis,
+      long maxLagMillis
+    ) {
+      this.publishedBatches = publishedBatches;
+      this.publishedDeltas = publishedDeltas;
+      this.coalescedDeltas = coalescedDeltas;
+      this.droppedDeltas = droppedDeltas;
+      this.failedBatches = failedBatches;
+      this.receivedBatches = receivedBatches;
+      this.rejectedBatches = rejectedBatches;
+      this.appliedDeltas = appliedDeltas;
+      this.lastLagMillis = lastLagMillis;
+      this.maxLagMillis = maxLagMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+        "ReplicationStats{published=%d/%d, coalesced=%d, dropped=%d, " +
+        "failed=%d, received=%d/%d, rejected=%d, lag=%d ms, " +
+        "maxLag=%d ms}",
+        publishedBatches,
+        publishedDeltas,
+        coalescedDeltas,
+        droppedDeltas,
+        failedBatches,
+        receivedBatches,
+        appliedDeltas,
+        rejectedBatches,
+        lastLagMillis,
+        maxLagMillis
+      );
+    }
+  }
+}
@@ -0,0 +1,307 @@
+package com.networking.session;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Almacén de sesiones con capacidad acotada.
+ *
+ * Las sesiones se reparten por id entre SEGMENTS segmentos, cada uno con
+ * su propio lock y un LinkedHashMap en orden de acceso. Cada segmento
+ * admite una parte de la capacidad total (sesiones y bytes estimados) y,
+ * al superarla, expulsa sus sesiones menos usadas: la política es LRU por
+ * segmento, una aproximación de LRU global que evita un lock único.
+ *
+ * Los bytes de cada sesión son una estimación (ver
+ * SessionData.estimateBytes) que se recalcula al insertarla y en cada
+ * acceso.
+ */
+public class SessionStore {
+
+  private static final int SEGMENTS = 16;
+
+  private final Segment[] segments;
+  private final AtomicInteger size = new AtomicInteger(0);
+  private final AtomicLong estimatedBytes = new AtomicLong(0);
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder evictedBytes = new LongAdder();
+  private final Consumer<SessionManager.SessionData> evictionListener;
+  private volatile int maxEntries;
+  private volatile long maxBytes;
+  // Límites de cada segmento, derivados de los totales
+  private volatile int segmentMaxEntries;
+  private volatile long segmentMaxBytes;
+
+  /**
+   * @param evictionListener recibe cada sesión expulsada por capacidad,
+   *                         fuera del lock del segmento
+   */
+  public SessionStore(
+    int maxEntries,
+    long maxBytes,
+    Consumer<SessionManager.SessionData> evictionListener
+  ) {
+    this.segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment();
+    }
+    this.evictionListener = evictionListener;
+    setCapacity(maxEntries, maxBytes);
+  }
+
+  /**
+   * Cambia la capacidad; si baja, las sesiones sobrantes se expulsan en
+   * las siguientes inserciones de cada segmento
+   */
+  public void setCapacity(int maxEntries, long maxBytes) {
+    if (maxEntries <= 0 || maxBytes <= 0) {
+      throw new IllegalArgumentException("La capacidad debe ser positiva");
+    }
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    // Redondeo hacia arriba sin desbordar con límites como Long.MAX_VALUE
+    this.segmentMaxEntries = (maxEntries - 1) / SEGMENTS + 1;
+    this.segmentMaxBytes = (maxBytes - 1) / SEGMENTS + 1;
+  }
+
+  /**
+   * Obtiene una sesión y la marca como la más reciente de su segmento
+   */
+  public SessionManager.SessionData get(String sessionId) {
+    Segment segment = segmentFor(sessionId);
+    segment.lock.lock();
+    try {
+      SessionManager.SessionData session = segment.sessions.get(sessionId);
+      if (session != null) {
+        account(segment, session);
+      }
+      return session;
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  /**
+   * Inserta una sesión, expulsando las menos usadas de su segmento si se
+   * supera la capacidad. La sesión insertada nunca se expulsa a sí misma.
+   */
+  public void put(SessionManager.SessionData session) {
+    Segment segment = segmentFor(session.getSessionId());
+    List<SessionManager.SessionData> evicted = null;
+    segment.lock.lock();
+    try {
+      SessionManager.SessionData previous = segment.sessions.put(
+        session.getSessionId(),
+        session
+      );
+      if (previous != null) {
+        release(segment, previous);
+      }
+      size.incrementAndGet();
+      session.accountedBytes = 0;
+      account(segment, session);
+
+      Iterator<SessionManager.SessionData> eldest = segment.sessions
+        .values()
+        .iterator();
+      while (
+        (
+          segment.sessions.size() > segmentMaxEntries ||
+          segment.bytes > segmentMaxBytes
+        ) &&
+        segment.sessions.size() > 1
+      ) {
+        SessionManager.SessionData victim = eldest.next();
+        eldest.remove();
+        release(segment, victim);
+        evictions.increment();
+        evictedBytes.add(victim.accountedBytes);
+        if (evicted == null) {
+          evicted = new ArrayList<>();
+        }
+        evicted.add(victim);
+      }
+    } finally {
+      segment.lock.unlock();
+    }
+
+    if (evicted != null) {
+      for (SessionManager.SessionData victim : evicted) {
+        evictionListener.accept(victim);
+      }
+    }
+  }
+
+  /**
+   * Retira una sesión por id
+   * @return la sesión retirada, o null si no estaba
+   */
+  public SessionManager.SessionData remove(String sessionId) {
+    Segment segment = segmentFor(sessionId);
+    segment.lock.lock();
+    try {
+      SessionManager.SessionData removed = segment.sessions.remove(sessionId);
+      if (removed != null) {
+        release(segment, removed);
+      }
+      return removed;
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  /**
+   * Retira una sesión solo si sigue siendo la guardada con su id
+   */
+  public boolean remove(String sessionId, SessionManager.SessionData session) {
+    Segment segment = segmentFor(sessionId);
+    segment.lock.lock();
+    try {
+      if (segment.sessions.get(sessionId) != session) {
+        return false;
+      }
+      segment.sessions.remove(sessionId);
+      release(segment, session);
+      return true;
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  /**
+   * Copia de las sesiones guardadas, segmento a segmento
+   */
+  public List<SessionManager.SessionData> values() {
+    List<SessionManager.SessionData> values = new ArrayList<>(size.get());
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        values.addAll(segment.sessions.values());
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return values;
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        for (SessionManager.SessionData session : segment.sessions.values()) {
+          release(segment, session);
+        }
+        segment.sessions.clear();
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+  }
+
+  public Stats getStats() {
+    return new Stats(
+      size.get(),
+      estimatedBytes.get(),
+      maxEntries,
+      maxBytes,
+      evictions.sum(),
+      evictedBytes.sum()
+    );
+  }
+
+  private Segment segmentFor(String sessionId) {
+    int hash = sessionId.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * Actualiza los bytes contabilizados de una sesión del segmento.
+   * Requiere el lock del segmento.
+   */
+  private void account(Segment segment, SessionManager.SessionData session) {
+    int current = session.estimateBytes();
+    int delta = current - session.accountedBytes;
+    if (delta != 0) {
+      session.accountedBytes = current;
+      segment.bytes += delta;
+      estimatedBytes.addAndGet(delta);
+    }
+  }
+
+  /**
+   * Descuenta una sesión que sale del segmento. Requiere el lock del
+   * segmento.
+   */
+  private void release(Segment segment, SessionManager.SessionData session) {
+    segment.bytes -= session.accountedBytes;
+    estimatedBytes.addAndGet(-session.accountedBytes);
+    size.decrementAndGet();
+  }
+
+  private static final class Segment {
+
+    final ReentrantLock lock = new ReentrantLock();
+    // Orden de acceso: el primero es el menos usado
+    final Map<String, SessionManager.SessionData> sessions = new LinkedHashMap<>(
+      16,
+      0.75f,
+      true
+    );
+    long bytes;
+  }
+
+  /**
+   * Estadísticas del almacén de sesiones
+   */
+  public static class Stats {
+
+    public final int size;
+    public final long estimatedBytes;
+    public final int maxEntries;
+    public final long maxBytes;
+    public final long evictions;
+    public final long evictedBytes;
+
+    public Stats(
+      int size,
+      long estimatedBytes,
+      int maxEntries,
+      long maxBytes,
+      long evictions,
+      long evictedBytes
+    ) {
+      this.size = size;
+      this.estimatedBytes = estimatedBytes;
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+      this.evictions = evictions;
+      this.evictedBytes = evictedBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+        "SessionStoreStats{size=%d, bytes=%d, maxEntries=%d, maxBytes=%d, " +
+        "evictions=%d, evictedBytes=%d}",
+        size,
+        estimatedBytes,
+        maxEntries,
+        maxBytes,
+        evictions,
+        evictedBytes
+      );
+    }
+  }
+}
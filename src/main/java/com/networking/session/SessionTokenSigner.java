@@ -0,0 +1,250 @@
+package com.networking.session;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Emite y valida tokens de sesión autocontenidos firmados con HMAC.
+ *
+ * Formato: base64url(payload) "." base64url(hmac), donde el payload lleva
+ * versión, id del token, emisión, expiración (milisegundos epoch) y el
+ * nombre de usuario en UTF-8, y el hmac son los primeros MAC_BYTES bytes
+ * de HMAC-SHA256 del payload. Cualquier nodo con el mismo secreto valida
+ * el token sin estado compartido.
+ *
+ * Para cerrar sesión antes de la expiración hay un conjunto de revocación
+ * local al nodo: guarda solo el id de los tokens revocados hasta que
+ * expiran.
+ *
+ * sign y verifySignature firman otros datos con el mismo esquema (lo usa
+ * la replicación de sesiones). Esos datos no deben empezar por la versión
+ * de los tokens, para que una firma suya nunca valga como token.
+ */
+public class SessionTokenSigner {
+
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final byte VERSION = 1;
+  // HMAC-SHA256 truncado a 128 bits
+  public static final int MAC_BYTES = 16;
+  private static final int MIN_SECRET_BYTES = 32;
+  // versión + id + emisión + expiración
+  private static final int HEADER_BYTES = 1 + 8 + 8 + 8;
+  private static final int MAX_TOKEN_LENGTH = 512;
+
+  private static final Base64.Encoder ENCODER = Base64
+    .getUrlEncoder()
+    .withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+  private final SecretKeySpec key;
+  // Mac no es thread-safe: una instancia por hilo
+  private final ThreadLocal<Mac> macs;
+  // Id de token revocado -> expiración del token
+  private final Map<Long, Long> revoked = new ConcurrentHashMap<>();
+
+  public SessionTokenSigner(byte[] secret) {
+    if (secret == null || secret.length < MIN_SECRET_BYTES) {
+      throw new IllegalArgumentException(
+        "El secreto de sesión debe tener al menos " +
+        MIN_SECRET_BYTES +
+        " bytes"
+      );
+    }
+    this.key = new SecretKeySpec(secret.clone(), ALGORITHM);
+    this.macs = ThreadLocal.withInitial(this::newMac);
+    // Falla al configurar, no en la primera petición
+    newMac();
+  }
+
+  /**
+   * Emite un token
+   * @param username usuario de la sesión, o null
+   */
+  public String issue(
+    long tokenId,
+    String username,
+    long issuedAt,
+    long expiresAt
+  ) {
+    byte[] user = username != null
+      ? username.getBytes(StandardCharsets.UTF_8)
+      : new byte[0];
+    byte[] payload = ByteBuffer
+      .allocate(HEADER_BYTES + user.length)
+      .put(VERSION)
+      .putLong(tokenId)
+      .putLong(issuedAt)
+      .putLong(expiresAt)
+      .put(user)
+      .array();
+    return (
+      ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(sign(payload))
+    );
+  }
+
+  /**
+   * Valida un token
+   * @return el token decodificado, o null si está mal formado, la firma no
+   *         coincide, ha expirado o está revocado
+   */
+  public Token verify(String token, long now) {
+    if (token == null || token.length() > MAX_TOKEN_LENGTH) {
+      return null;
+    }
+    int dot = token.indexOf('.');
+    if (dot <= 0) {
+      return null;
+    }
+
+    byte[] payload;
+    byte[] mac;
+    try {
+      payload = DECODER.decode(token.substring(0, dot));
+      mac = DECODER.decode(token.substring(dot + 1));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (payload.length < HEADER_BYTES || mac.length != MAC_BYTES) {
+      return null;
+    }
+    // Comparación en tiempo constante
+    if (!MessageDigest.isEqual(mac, sign(payload))) {
+      return null;
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    if (buffer.get() != VERSION) {
+      return null;
+    }
+    long tokenId = buffer.getLong();
+    long issuedAt = buffer.getLong();
+    long expiresAt = buffer.getLong();
+    if (now >= expiresAt) {
+      return null;
+    }
+    if (!revoked.isEmpty() && revoked.containsKey(tokenId)) {
+      return null;
+    }
+    String username = buffer.hasRemaining()
+      ? new String(
+        payload,
+        HEADER_BYTES,
+        payload.length - HEADER_BYTES,
+        StandardCharsets.UTF_8
+      )
+      : null;
+    return new Token(tokenId, username, issuedAt, expiresAt);
+  }
+
+  /**
+   * Revoca un token hasta su expiración
+   */
+  public void revoke(Token token) {
+    revoked.put(token.getTokenId(), token.getExpiresAt());
+  }
+
+  /**
+   * Olvida las revocaciones de tokens ya expirados
+   * @return número de revocaciones retiradas
+   */
+  public int pruneRevocations(long now) {
+    int before = revoked.size();
+    revoked.values().removeIf(expiresAt -> now >= expiresAt);
+    return before - revoked.size();
+  }
+
+  public int getRevokedCount() {
+    return revoked.size();
+  }
+
+  /**
+   * Firma un fragmento de datos
+   * @return los primeros MAC_BYTES bytes de HMAC-SHA256
+   */
+  public byte[] sign(byte[] data, int offset, int length) {
+    Mac mac = macs.get();
+    mac.update(data, offset, length);
+    byte[] full = mac.doFinal();
+    byte[] truncated = new byte[MAC_BYTES];
+    System.arraycopy(full, 0, truncated, 0, MAC_BYTES);
+    return truncated;
+  }
+
+  /**
+   * Comprueba en tiempo constante la firma de un fragmento de datos
+   * @param signature array con la firma en signatureOffset
+   */
+  public boolean verifySignature(
+    byte[] data,
+    int offset,
+    int length,
+    byte[] signature,
+    int signatureOffset
+  ) {
+    if (signature.length - signatureOffset < MAC_BYTES) {
+      return false;
+    }
+    byte[] expected = sign(data, offset, length);
+    byte[] actual = new byte[MAC_BYTES];
+    System.arraycopy(signature, signatureOffset, actual, 0, MAC_BYTES);
+    return MessageDigest.isEqual(expected, actual);
+  }
+
+  private byte[] sign(byte[] payload) {
+    return sign(payload, 0, payload.length);
+  }
+
+  private Mac newMac() {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(key);
+      return mac;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("HMAC no disponible", e);
+    }
+  }
+
+  /**
+   * Contenido de un token válido
+   */
+  public static final class Token {
+
+    private final long tokenId;
+    private final String username;
+    private final long issuedAt;
+    private final long expiresAt;
+
+    Token(long tokenId, String username, long issuedAt, long expiresAt) {
+      this.tokenId = tokenId;
+      this.username = username;
+      this.issuedAt = issuedAt;
+      this.expiresAt = expiresAt;
+    }
+
+    public long getTokenId() {
+      return tokenId;
+    }
+
+    /**
+     * Usuario de la sesión, o null si se emitió sin usuario
+     */
+    public String getUsername() {
+      return username;
+    }
+
+    public long getIssuedAt() {
+      return issuedAt;
+    }
+
+    public long getExpiresAt() {
+      return expiresAt;
+    }
+  }
+}
@@ -0,0 +1,313 @@
+package com.networking.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transporte de replicación sobre TCP.
+ *
+ * Cada nodo escucha en un puerto y abre una conexión de salida por cada
+ * par configurado; los lotes viajan con un prefijo de longitud. Cada par
+ * tiene su propio hilo de envío y una cola acotada: publish() solo encola,
+ * así que un par que no lee no frena a los demás ni al que publica, y si
+ * su cola se llena se descartan los lotes más antiguos. Las conexiones de
+ * salida se abren al primer envío y, si fallan, el lote se descarta y se
+ * reintenta la conexión con el siguiente. Por defecto escucha solo en la
+ * interfaz de loopback.
+ */
+public class TcpReplicationTransport implements ReplicationTransport {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+    TcpReplicationTransport.class
+  );
+
+  private static final int MAX_BATCH_BYTES = 16 * 1024 * 1024;
+  private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_QUEUED_BATCHES = 64;
+  // Plazo de close() para enviar los lotes ya encolados
+  private static final long CLOSE_TIMEOUT_MILLIS = 2000;
+
+  private final InetSocketAddress bindAddress;
+  private final List<Peer> peers = new CopyOnWriteArrayList<>();
+  private final List<Socket> inbound = new CopyOnWriteArrayList<>();
+  private final LongAdder droppedBatches = new LongAdder();
+  private volatile ServerSocket serverSocket;
+  private volatile boolean running;
+
+  /**
+   * @param port puerto de escucha en loopback; 0 elige uno libre
+   */
+  public TcpReplicationTransport(int port) {
+    this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+  }
+
+  public TcpReplicationTransport(InetSocketAddress bindAddress) {
+    this.bindAddress = bindAddress;
+  }
+
+  /**
+   * Añade un nodo al que enviar los lotes; puede llamarse tras start()
+   */
+  public void addPeer(InetSocketAddress address) {
+    peers.add(new Peer(address));
+  }
+
+  @Override
+  public void start(Consumer<byte[]> receiver) throws IOException {
+    ServerSocket listener = new ServerSocket();
+    listener.bind(bindAddress);
+    serverSocket = listener;
+    running = true;
+
+    Thread acceptor = new Thread(
+      () -> acceptLoop(listener, receiver),
+      "SessionReplication-Accept"
+    );
+    acceptor.setDaemon(true);
+    acceptor.start();
+    logger.info(
+      "Replicación de sesiones escuchando en {}",
+      listener.getLocalSocketAddress()
+    );
+  }
+
+  /**
+   * Puerto de escucha, útil si se pidió el 0
+   */
+  public int getLocalPort() {
+    ServerSocket listener = serverSocket;
+    return listener != null ? listener.getLocalPort() : -1;
+  }
+
+  /**
+   * Lotes descartados porque no se pudieron enviar a algún par o porque su
+   * cola estaba llena
+   */
+  public long getDroppedBatchCount() {
+    return droppedBatches.sum();
+  }
+
+  @Override
+  public void publish(byte[] batch) throws IOException {
+    if (!running) {
+      throw new IOException("Transporte cerrado");
+    }
+    for (Peer peer : peers) {
+      peer.enqueue(batch);
+    }
+  }
+
+  @Override
+  public void close() {
+    long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+    for (Peer peer : peers) {
+      peer.awaitIdle(deadline);
+    }
+    running = false;
+    try {
+      ServerSocket listener = serverSocket;
+      if (listener != null) {
+        listener.close();
+      }
+    } catch (IOException e) {
+      logger.debug("Error cerrando el listener de replicación", e);
+    }
+    for (Socket socket : inbound) {
+      closeQuietly(socket);
+    }
+    inbound.clear();
+    for (Peer peer : peers) {
+      peer.close();
+    }
+  }
+
+  private void acceptLoop(ServerSocket listener, Consumer<byte[]> receiver) {
+    while (running) {
+      try {
+        Socket socket = listener.accept();
+        inbound.add(socket);
+        Thread reader = new Thread(
+          () -> readLoop(socket, receiver),
+          "SessionReplication-Read"
+        );
+        reader.setDaemon(true);
+        reader.start();
+      } catch (IOException e) {
+        if (running) {
+          logger.warn("Error aceptando conexión de replicación", e);
+        }
+      }
+    }
+  }
+
+  private void readLoop(Socket socket, Consumer<byte[]> receiver) {
+    try (
+      DataInputStream in = new DataInputStream(
+        new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE)
+      )
+    ) {
+      while (running) {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_BATCH_BYTES) {
+          throw new IOException("Lote de replicación de tamaño inválido");
+        }
+        byte[] batch = new byte[length];
+        in.readFully(batch);
+        receiver.accept(batch);
+      }
+    } catch (EOFException e) {
+      // El par cerró la conexión
+    } catch (IOException | RuntimeException e) {
+      if (running) {
+        logger.warn(
+          "Conexión de replicación desde {} cerrada: {}",
+          socket.getRemoteSocketAddress(),
+          e.toString()
+        );
+      }
+    } finally {
+      inbound.remove(socket);
+      closeQuietly(socket);
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Ya cerrado
+    }
+  }
+
+  /**
+   * Conexión de salida a un par, con su cola de lotes y su hilo de envío.
+   * Solo el hilo de envío escribe; close() cierra el socket para
+   * desbloquearlo si está esperando al par.
+   */
+  private final class Peer {
+
+    final InetSocketAddress address;
+    private final BlockingDeque<byte[]> queue = new LinkedBlockingDeque<>(
+      MAX_QUEUED_BATCHES
+    );
+    private final Thread sender;
+    // Lotes encolados o enviándose
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile Socket socket;
+    private DataOutputStream out;
+
+    Peer(InetSocketAddress address) {
+      this.address = address;
+      this.sender = new Thread(this::sendLoop, "SessionReplication-Send");
+      sender.setDaemon(true);
+      sender.start();
+    }
+
+    void enqueue(byte[] batch) {
+      inFlight.incrementAndGet();
+      while (!queue.offerLast(batch)) {
+        if (queue.pollFirst() != null) {
+          inFlight.decrementAndGet();
+          droppedBatches.increment();
+          logger.debug(
+            "Cola de replicación llena para {}: lote más antiguo descartado",
+            address
+          );
+        }
+      }
+    }
+
+    private void sendLoop() {
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          byte[] batch = queue.take();
+          try {
+            send(batch);
+          } catch (IOException e) {
+            droppedBatches.increment();
+            disconnect();
+            logger.debug(
+              "Lote de replicación descartado para {}: {}",
+              address,
+              e.getMessage()
+            );
+          } finally {
+            inFlight.decrementAndGet();
+          }
+        }
+      } catch (InterruptedException e) {
+        // Transporte cerrado
+      } finally {
+        disconnect();
+      }
+    }
+
+    private void send(byte[] batch) throws IOException {
+      if (!running) {
+        throw new IOException("Transporte cerrado");
+      }
+      if (out == null) {
+        Socket connected = new Socket();
+        connected.setTcpNoDelay(true);
+        socket = connected;
+        connected.connect(address, CONNECT_TIMEOUT_MILLIS);
+        out =
+          new DataOutputStream(
+            new BufferedOutputStream(connected.getOutputStream(), BUFFER_SIZE)
+          );
+      }
+      out.writeInt(batch.length);
+      out.write(batch);
+      out.flush();
+    }
+
+    private void disconnect() {
+      Socket current = socket;
+      if (current != null) {
+        closeQuietly(current);
+      }
+      socket = null;
+      out = null;
+    }
+
+    /**
+     * Espera a que se envíen los lotes encolados, como mucho hasta deadline
+     */
+    void awaitIdle(long deadline) {
+      try {
+        while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+          Thread.sleep(10);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    void close() {
+      sender.interrupt();
+      queue.clear();
+      Socket current = socket;
+      if (current != null) {
+        closeQuietly(current);
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.networking.util;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reloj de grano grueso compartido por los caminos calientes.
+ *
+ * Un único hilo demonio guarda cada TICK_MILLIS la hora actual en un
+ * campo volatile, y una vez por segundo la fecha HTTP ya formateada
+ * (IMF-fixdate en GMT, RFC 7231) en texto y en bytes. Leer la hora o la
+ * cabecera Date es una lectura volatile: sin llamadas al sistema, sin
+ * zona horaria y sin asignaciones.
+ *
+ * La hora puede ir hasta un tick por detrás del reloj del sistema (más si
+ * la máquina está saturada y el hilo no llega a ejecutarse), pero nunca
+ * retrocede. No sirve para medir intervalos finos ni para lo que necesite
+ * la hora exacta.
+ */
+public final class CachedClock {
+
+  // Resolución de la hora: suficiente para marcas de tiempo, expiraciones
+  // y heartbeats, sin despertar al hilo mil veces por segundo
+  private static final long TICK_MILLIS = 10;
+
+  private static final DateTimeFormatter HTTP_DATE_FORMAT = DateTimeFormatter
+    .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+    .withZone(ZoneOffset.UTC);
+
+  private static volatile long currentMillis = System.currentTimeMillis();
+  private static volatile HttpDate httpDate = formatHttpDate(currentMillis);
+
+  static {
+    Thread ticker = new Thread(CachedClock::tick, "cached-clock");
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  private CachedClock() {}
+
+  /**
+   * Hora actual en milisegundos epoch, con resolución de un tick
+   */
+  public static long currentTimeMillis() {
+    return currentMillis;
+  }
+
+  /**
+   * Valor de la cabecera HTTP Date para el segundo actual
+   */
+  public static String httpDate() {
+    return httpDate.text;
+  }
+
+  /**
+   * Bytes ASCII de la cabecera HTTP Date para el segundo actual; el array
+   * es compartido y no debe modificarse
+   */
+  public static byte[] httpDateBytes() {
+    return httpDate.bytes;
+  }
+
+  private static void tick() {
+    long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    while (true) {
+      LockSupport.parkNanos(tickNanos);
+      update(System.currentTimeMillis());
+    }
+  }
+
+  private static void update(long now) {
+    // Un ajuste hacia atrás del reloj del sistema no se propaga
+    if (now <= currentMillis) {
+      return;
+    }
+    currentMillis = now;
+    long second = now / 1000;
+    if (second != httpDate.second) {
+      httpDate = formatHttpDate(now);
+    }
+  }
+
+  private static HttpDate formatHttpDate(long millis) {
+    String text = HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(millis));
+    return new HttpDate(
+      millis / 1000,
+      text,
+      text.getBytes(StandardCharsets.US_ASCII)
+    );
+  }
+
+  /**
+   * Fecha HTTP de un segundo; se sustituye entera para que texto y bytes
+   * siempre coincidan
+   */
+  private static final class HttpDate {
+
+    final long second;
+    final String text;
+    final byte[] bytes;
+
+    HttpDate(long second, String text, byte[] bytes) {
+      this.second = second;
+      this.text = text;
+      this.bytes = bytes;
+    }
+  }
+}
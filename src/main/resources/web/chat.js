@@ -11,6 +11,12 @@ class ConcurrentChat {
         this.reconnectAttempts = 0;
         this.maxReconnectAttempts = 5;
         this.startTime = Date.now();
+        this.room = 'default';
+        this.seenMessageIds = new Set();
+        // Secuencia del último mensaje recibido de la sala: al reconectar
+        // el servidor envía solo los que faltan desde ella
+        this.lastSeenSeq = null;
+        this.awaitingHistory = false;
         
         this.init();
     }
@@ -128,7 +134,7 @@ class ConcurrentChat {
         }
         
         const protocol = window.location.protocol === 'https:' ? 'wss:' : 'ws:';
-        const wsUrl = `${protocol}//${window.location.hostname}:8081`;
+        const wsUrl = `${protocol}//${window.location.host}/ws`;
         
         console.log('Connecting to WebSocket:', wsUrl);
         
@@ -168,10 +174,21 @@ class ConcurrentChat {
     
     joinChatRoom() {
         if (this.websocket && this.websocket.readyState === WebSocket.OPEN) {
+            // La sala se elige con ?room=<id>; sin ella se usa la principal
+            const room = new URLSearchParams(window.location.search).get('room');
+            this.room = room || 'default';
             const joinMessage = {
                 type: 'join',
-                username: this.username
+                username: this.username,
+                room: this.room
             };
+            if (this.lastSeenSeq !== null) {
+                joinMessage.lastSeenSeq = this.lastSeenSeq;
+            } else {
+                // Sin secuencia el servidor responde con una instantánea
+                // del historial, que sustituye a lo que haya en pantalla
+                this.awaitingHistory = true;
+            }
             this.websocket.send(JSON.stringify(joinMessage));
         }
     }
@@ -207,6 +224,9 @@ class ConcurrentChat {
     handleMessage(data) {
         try {
             const message = JSON.parse(data);
+            if (typeof message.seq === 'number') {
+                this.lastSeenSeq = message.seq;
+            }
             
             switch (message.type) {
                 case 'message':
@@ -215,6 +235,9 @@ class ConcurrentChat {
                 case 'notification':
                     this.displayNotification(message.message);
                     break;
+                case 'history':
+                    this.displayHistory(message);
+                    break;
                 default:
                     console.log('Unknown message type:', message);
             }
@@ -223,8 +246,55 @@ class ConcurrentChat {
         }
     }
     
+    displayHistory(page) {
+        const messagesContainer = document.getElementById('messagesContainer');
+        if (this.awaitingHistory) {
+            // Primera página tras un join sin secuencia: el servidor la
+            // envía antes que cualquier mensaje nuevo
+            this.awaitingHistory = false;
+            messagesContainer.querySelectorAll('.message').forEach((element) => element.remove());
+            this.seenMessageIds.clear();
+        }
+        
+        const fragment = document.createDocumentFragment();
+        for (const message of page.messages) {
+            this.lastSeenSeq = message.seq;
+            if (this.seenMessageIds.has(message.id)) continue;
+            this.seenMessageIds.add(message.id);
+            
+            fragment.appendChild(message.type === 'text'
+                ? this.createMessageElement(message)
+                : this.createNotificationElement(message.content));
+        }
+        
+        if (page.messages.length > 0) {
+            const welcomeMessage = messagesContainer.querySelector('.welcome-message');
+            if (welcomeMessage) {
+                welcomeMessage.remove();
+            }
+        }
+        messagesContainer.appendChild(fragment);
+        this.scrollToBottom();
+    }
+    
     displayMessage(message) {
+        if (message.id) {
+            if (this.seenMessageIds.has(message.id)) return;
+            this.seenMessageIds.add(message.id);
+        }
+        
         const messagesContainer = document.getElementById('messagesContainer');
+        messagesContainer.appendChild(this.createMessageElement(message));
+        this.scrollToBottom();
+        
+        // Remove welcome message if it exists
+        const welcomeMessage = messagesContainer.querySelector('.welcome-message');
+        if (welcomeMessage) {
+            welcomeMessage.remove();
+        }
+    }
+    
+    createMessageElement(message) {
         const messageDiv = document.createElement('div');
         
         const isOwnMessage = message.username === this.username;
@@ -243,28 +313,23 @@ class ConcurrentChat {
             </div>
             <div class="message-content">${this.escapeHtml(message.content)}</div>
         `;
-        
-        messagesContainer.appendChild(messageDiv);
-        this.scrollToBottom();
-        
-        // Remove welcome message if it exists
-        const welcomeMessage = messagesContainer.querySelector('.welcome-message');
-        if (welcomeMessage) {
-            welcomeMessage.remove();
-        }
+        return messageDiv;
     }
     
     displayNotification(text) {
         const messagesContainer = document.getElementById('messagesContainer');
+        messagesContainer.appendChild(this.createNotificationElement(text));
+        this.scrollToBottom();
+    }
+    
+    createNotificationElement(text) {
         const notificationDiv = document.createElement('div');
         
         notificationDiv.className = 'message notification';
         notificationDiv.innerHTML = `
             <div class="message-content">${this.escapeHtml(text)}</div>
         `;
-        
-        messagesContainer.appendChild(notificationDiv);
-        this.scrollToBottom();
+        return notificationDiv;
     }
     
     handleDisconnection() {
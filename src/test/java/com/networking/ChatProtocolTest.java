@@ -0,0 +1,272 @@
+package com.networking;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.networking.chat.ChatMessage;
+import com.networking.chat.ChatUser;
+import com.networking.chat.protocol.BinaryChatCodec;
+import com.networking.chat.protocol.ChatProtocols;
+import com.networking.chat.protocol.ClientCommand;
+import com.networking.chat.protocol.JsonChatCodec;
+import com.networking.chat.protocol.ServerEvent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.*;
+
+/**
+ * Pruebas del protocolo de chat sobre WebSocket
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ChatProtocolTest {
+
+  private final JsonChatCodec codec = new JsonChatCodec();
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  @Order(1)
+  @DisplayName("Decodificación de comandos JSON")
+  void testDecodeCommands() throws IOException {
+    ClientCommand join = codec.decode(
+      utf8("{\"type\":\"join\",\"username\":\"Alice\"}")
+    );
+    Assertions.assertEquals(ClientCommand.Type.JOIN, join.getType());
+    Assertions.assertEquals("Alice", join.getUsername());
+
+    // Comillas escapadas, espacios y campos desconocidos anidados
+    ClientCommand message = codec.decode(
+      utf8(
+        "{ \"extra\": {\"a\":[1,2]}, \"type\" : \"message\", " +
+        "\"content\": \"dijo \\\"hola\\\"\\n¿qué tal?\" }"
+      )
+    );
+    Assertions.assertEquals(ClientCommand.Type.MESSAGE, message.getType());
+    Assertions.assertEquals("dijo \"hola\"\n¿qué tal?", message.getContent());
+
+    ClientCommand unknown = codec.decode(utf8("{\"type\":\"typing\"}"));
+    Assertions.assertEquals(ClientCommand.Type.UNKNOWN, unknown.getType());
+
+    Assertions.assertThrows(IOException.class, () -> codec.decode(utf8("[1]")));
+    Assertions.assertThrows(
+      IOException.class,
+      () -> codec.decode(utf8("{\"type\":\"join\""))
+    );
+  }
+
+  @Test
+  @Order(2)
+  @DisplayName("Codificación de mensajes y notificaciones")
+  void testEncodeRoundTrip() throws IOException {
+    ChatUser user = new ChatUser("1", "Bob");
+    ChatMessage chatMessage = new ChatMessage(
+      user,
+      "comillas \" barra \\ y tab\t"
+    );
+
+    JsonNode message = mapper.readTree(codec.encodeMessage(chatMessage));
+    Assertions.assertEquals("message", message.get("type").asText());
+    Assertions.assertEquals("Bob", message.get("username").asText());
+    Assertions.assertEquals(
+      chatMessage.getContent(),
+      message.get("content").asText()
+    );
+    Assertions.assertTrue(message.hasNonNull("timestamp"));
+
+    JsonNode notification = mapper.readTree(
+      codec.encodeNotification("Bob se unió al chat")
+    );
+    Assertions.assertEquals("notification", notification.get("type").asText());
+    Assertions.assertEquals(
+      "Bob se unió al chat",
+      notification.get("message").asText()
+    );
+  }
+
+  @Test
+  @Order(3)
+  @DisplayName("Decodificación del protocolo binario")
+  void testBinaryDecode() throws IOException {
+    BinaryChatCodec binary = ChatProtocols.BINARY;
+
+    ByteArrayOutputStream join = new ByteArrayOutputStream();
+    join.write(BinaryChatCodec.CLIENT_JOIN);
+    writeVarint(join, 0);
+    writeString(join, "Robot ñ");
+    ClientCommand joinCommand = binary.decode(
+      join.toByteArray(),
+      0,
+      join.size()
+    );
+    Assertions.assertEquals(ClientCommand.Type.JOIN, joinCommand.getType());
+    Assertions.assertNull(joinCommand.getRoomId());
+    Assertions.assertEquals("Robot ñ", joinCommand.getUsername());
+
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    message.write(BinaryChatCodec.CLIENT_MESSAGE);
+    writeVarint(message, 300);
+    writeString(message, "x".repeat(200));
+    ClientCommand messageCommand = binary.decode(
+      message.toByteArray(),
+      0,
+      message.size()
+    );
+    Assertions.assertEquals(
+      ClientCommand.Type.MESSAGE,
+      messageCommand.getType()
+    );
+    Assertions.assertEquals("300", messageCommand.getRoomId());
+    Assertions.assertEquals(200, messageCommand.getContent().length());
+
+    // Un frame truncado no debe leer fuera del payload
+    byte[] truncated = message.toByteArray();
+    Assertions.assertThrows(
+      IOException.class,
+      () -> binary.decode(truncated, 0, truncated.length - 10)
+    );
+
+    // Ni uno cuya longitud de cadena es un varint negativo
+    ByteArrayOutputStream negative = new ByteArrayOutputStream();
+    negative.write(BinaryChatCodec.CLIENT_JOIN);
+    writeVarint(negative, 0);
+    for (int i = 0; i < 9; i++) {
+      negative.write(0xFF);
+    }
+    negative.write(0x01);
+    byte[] negativeLength = negative.toByteArray();
+    Assertions.assertThrows(
+      IOException.class,
+      () -> binary.decode(negativeLength, 0, negativeLength.length)
+    );
+  }
+
+  @Test
+  @Order(4)
+  @DisplayName("Codificación binaria y codificación única por protocolo")
+  void testBinaryEncodeOncePerProtocol() throws IOException {
+    ChatUser user = new ChatUser("7", "Bot");
+    ChatMessage chatMessage = new ChatMessage(user, "ping");
+    ServerEvent event = ServerEvent.message("42", chatMessage);
+
+    byte[] binary = event.encodedWith(ChatProtocols.BINARY);
+    Assertions.assertSame(binary, event.encodedWith(ChatProtocols.BINARY));
+    Assertions.assertSame(
+      event.encodedWith(ChatProtocols.JSON),
+      event.encodedWith(ChatProtocols.JSON)
+    );
+
+    ByteArrayInputStream in = new ByteArrayInputStream(binary);
+    Assertions.assertEquals(BinaryChatCodec.SERVER_MESSAGE, in.read());
+    Assertions.assertEquals(42, readVarint(in));
+    Assertions.assertEquals(user.getNumericId(), readVarint(in));
+    Assertions.assertTrue(
+      Math.abs(System.currentTimeMillis() - readVarint(in)) < 60_000
+    );
+    Assertions.assertEquals("ping", readString(in));
+    Assertions.assertEquals(0, in.available());
+
+    // El roster solo lo transmite el protocolo binario
+    ServerEvent roster = ServerEvent.roster("default", List.of(user));
+    Assertions.assertNull(roster.encodedWith(ChatProtocols.JSON));
+    Assertions.assertNotNull(roster.encodedWith(ChatProtocols.BINARY));
+  }
+
+  @Test
+  @Order(5)
+  @DisplayName("Secuencia de evento de las salas en modo actor")
+  void testEventSequenceEncoding() throws IOException {
+    ChatUser user = new ChatUser("8", "Eco");
+    ServerEvent message = ServerEvent.message(
+      "42",
+      new ChatMessage(user, "hola"),
+      7
+    );
+    message.assignSequence(300);
+    JsonNode json = mapper.readTree(message.encodedWith(ChatProtocols.JSON));
+    Assertions.assertEquals(7, json.get("seq").asLong());
+    Assertions.assertEquals(300, json.get("eventSeq").asLong());
+
+    ByteArrayInputStream in = new ByteArrayInputStream(
+      message.encodedWith(ChatProtocols.BINARY)
+    );
+    Assertions.assertEquals(BinaryChatCodec.SERVER_MESSAGE, in.read());
+    readVarint(in);
+    readVarint(in);
+    readVarint(in);
+    Assertions.assertEquals("hola", readString(in));
+    Assertions.assertEquals(300, readVarint(in));
+    Assertions.assertEquals(0, in.available());
+
+    ServerEvent joined = ServerEvent.userJoined("42", user);
+    joined.assignSequence(301);
+    JsonNode joinedJson = mapper.readTree(
+      joined.encodedWith(ChatProtocols.JSON)
+    );
+    Assertions.assertEquals(301, joinedJson.get("eventSeq").asLong());
+    in = new ByteArrayInputStream(joined.encodedWith(ChatProtocols.BINARY));
+    Assertions.assertEquals(BinaryChatCodec.SERVER_USER_JOINED, in.read());
+    Assertions.assertEquals(42, readVarint(in));
+    Assertions.assertEquals(user.getNumericId(), readVarint(in));
+    Assertions.assertEquals("Eco", readString(in));
+    Assertions.assertEquals(301, readVarint(in));
+
+    // Sin modo actor no hay secuencia de evento
+    ServerEvent plain = ServerEvent.notification("42", "aviso");
+    Assertions.assertNull(
+      mapper.readTree(plain.encodedWith(ChatProtocols.JSON)).get("eventSeq")
+    );
+  }
+
+  @Test
+  @Order(6)
+  @DisplayName("Negociación de sub-protocolo")
+  void testSubprotocolNegotiation() {
+    Assertions.assertNull(ChatProtocols.negotiate(null));
+    Assertions.assertNull(ChatProtocols.negotiate("mqtt, wamp"));
+    Assertions.assertSame(
+      ChatProtocols.BINARY,
+      ChatProtocols.negotiate("mqtt, chat.binary.v1, chat.json.v1")
+    );
+    Assertions.assertSame(
+      ChatProtocols.JSON,
+      ChatProtocols.negotiate("chat.json.v1,chat.binary.v1")
+    );
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    byte[] bytes = utf8(value);
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static long readVarint(ByteArrayInputStream in) {
+    long value = 0;
+    for (int shift = 0;; shift += 7) {
+      int b = in.read();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  private static String readString(ByteArrayInputStream in) {
+    int length = (int) readVarint(in);
+    byte[] bytes = new byte[length];
+    in.read(bytes, 0, length);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] utf8(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
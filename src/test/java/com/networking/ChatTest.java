@@ -3,10 +3,29 @@ package com.networking;
 import com.networking.chat.ChatMessage;
 import com.networking.chat.ChatRoom;
 import com.networking.chat.ChatUser;
+import com.networking.chat.HistoryPageCache;
+import com.networking.chat.MessageHistory;
+import com.networking.chat.MessageIdGenerator;
+import com.networking.chat.MessageIndex;
+import com.networking.chat.MessageLog;
+import com.networking.chat.RoomRegistry;
+import com.networking.chat.protocol.ServerEvent;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -425,7 +444,7 @@ public class ChatTest {
     // Verificar que no hay mensajes duplicados por contenido
     long uniqueUserMessages = allMessages
       .stream()
-      .filter(msg -> msg.getUser() != null)
+      .filter(msg -> msg.getUserId() != null)
       .map(msg -> msg.getContent())
       .distinct()
       .count();
@@ -434,4 +453,719 @@ public class ChatTest {
 
     logger.info("✓ Integridad de datos validada");
   }
+
+  @Test
+  @Order(6)
+  @DisplayName("Historial circular bajo escrituras concurrentes")
+  void testMessageHistoryUnderConcurrentAppends()
+    throws InterruptedException {
+    final int CAPACITY = 100;
+    final int WRITERS = 8;
+    final int MESSAGES_PER_WRITER = 1000;
+
+    MessageHistory history = new MessageHistory(CAPACITY);
+    ChatUser user = new ChatUser("h", "Historial");
+    CountDownLatch latch = new CountDownLatch(WRITERS);
+
+    for (int i = 0; i < WRITERS; i++) {
+      final int writer = i;
+      executor.submit(() -> {
+        try {
+          for (int j = 0; j < MESSAGES_PER_WRITER; j++) {
+            history.append(new ChatMessage(user, writer + "-" + j));
+            // Lecturas concurrentes: nunca más mensajes que los pedidos
+            Assertions.assertTrue(history.getRecent(10).size() <= 10);
+          }
+        } finally {
+          latch.countDown();
+        }
+      });
+    }
+
+    Assertions.assertTrue(latch.await(15, TimeUnit.SECONDS));
+    Assertions.assertEquals(
+      (long) WRITERS * MESSAGES_PER_WRITER,
+      history.getTotalAppended()
+    );
+
+    List<ChatMessage> retained = history.snapshot();
+    Assertions.assertEquals(CAPACITY, retained.size());
+    Assertions.assertEquals(
+      CAPACITY,
+      retained.stream().map(ChatMessage::getContent).distinct().count()
+    );
+    Assertions.assertEquals(
+      retained.subList(CAPACITY - 10, CAPACITY),
+      history.getRecent(10)
+    );
+
+    // Cada escritor aparece en orden dentro del historial
+    int[] lastSeen = new int[WRITERS];
+    Arrays.fill(lastSeen, -1);
+    for (ChatMessage message : retained) {
+      String[] parts = message.getContent().split("-");
+      int writer = Integer.parseInt(parts[0]);
+      int index = Integer.parseInt(parts[1]);
+      Assertions.assertTrue(index > lastSeen[writer]);
+      lastSeen[writer] = index;
+    }
+
+    // Vaciar el historial no reinicia las secuencias pero sí lo retenido
+    long next = history.getNextSequence();
+    history.clear();
+    Assertions.assertEquals(0, history.size());
+    Assertions.assertEquals(next, history.getOldestSequence());
+    Assertions.assertTrue(history.getRecent(10).isEmpty());
+    history.append(new ChatMessage(user, "tras vaciar"));
+    Assertions.assertEquals(1, history.size());
+    Assertions.assertEquals(next, history.getOldestSequence());
+    Assertions.assertEquals(
+      (long) WRITERS * MESSAGES_PER_WRITER + 1,
+      history.getTotalAppended()
+    );
+
+    logger.info("✓ Historial circular validado");
+  }
+
+  @Test
+  @Order(7)
+  @DisplayName("Nombres de usuario únicos en joins simultáneos")
+  void testConcurrentJoinsWithSameUsername() throws InterruptedException {
+    final int ATTEMPTS = 20;
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(ATTEMPTS);
+    AtomicInteger accepted = new AtomicInteger(0);
+
+    for (int i = 0; i < ATTEMPTS; i++) {
+      // Mismo nombre con distintas mayúsculas
+      final ChatUser user = new ChatUser(
+        "dup-" + i,
+        i % 2 == 0 ? "Duplicado" : "DUPLICADO"
+      );
+      executor.submit(() -> {
+        try {
+          start.await();
+          if (chatRoom.addUser(user)) {
+            accepted.incrementAndGet();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          done.countDown();
+        }
+      });
+    }
+
+    start.countDown();
+    Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+    Assertions.assertEquals(1, accepted.get());
+    Assertions.assertEquals(1, chatRoom.getActiveUserCount());
+    Assertions.assertTrue(chatRoom.isUsernameTaken("duplicado"));
+
+    // Al salir el usuario el nombre queda libre de nuevo
+    chatRoom.removeUser(chatRoom.getActiveUsers().get(0));
+    Assertions.assertFalse(chatRoom.isUsernameTaken("Duplicado"));
+    Assertions.assertTrue(chatRoom.addUser(new ChatUser("dup-x", "duplicado")));
+
+    logger.info("✓ Unicidad de nombres validada");
+  }
+
+  @Test
+  @Order(8)
+  @DisplayName("Contadores de usuarios y lista de activos cacheada")
+  void testMaintainedUserCounters() {
+    ChatUser carol = new ChatUser("c", "carol");
+    ChatUser alice = new ChatUser("a", "Alice");
+    ChatUser bob = new ChatUser("b", "Bob");
+    chatRoom.addUser(carol);
+    chatRoom.addUser(alice);
+    chatRoom.addUser(bob);
+
+    List<ChatUser> active = chatRoom.getActiveUsers();
+    Assertions.assertEquals(List.of(alice, bob, carol), active);
+    // Sin cambios de membresía se reutiliza la misma lista
+    Assertions.assertSame(active, chatRoom.getActiveUsers());
+
+    chatRoom.removeUser(bob);
+    ChatRoom.RoomStats stats = chatRoom.getStats();
+    Assertions.assertEquals(2, stats.totalUsers);
+    Assertions.assertEquals(2, stats.activeUsers);
+    Assertions.assertEquals(List.of(alice, carol), chatRoom.getActiveUsers());
+
+    // Quitar dos veces al mismo usuario no descuadra los contadores
+    Assertions.assertFalse(chatRoom.removeUser(bob));
+    Assertions.assertEquals(2, chatRoom.getActiveUserCount());
+
+    chatRoom.removeUser(alice);
+    chatRoom.removeUser(carol);
+    Assertions.assertEquals(0, chatRoom.getActiveUserCount());
+    Assertions.assertEquals(0, chatRoom.getStats().totalUsers);
+    Assertions.assertTrue(chatRoom.getActiveUsers().isEmpty());
+
+    logger.info("✓ Contadores de usuarios validados");
+  }
+
+  @Test
+  @Order(9)
+  @DisplayName("Registro de salas: creación perezosa, broadcast por sala y retirada")
+  void testRoomRegistry() throws InterruptedException {
+    RoomRegistry registry = new RoomRegistry(4, 100, TimeUnit.MILLISECONDS);
+    try {
+      List<ServerEvent> lobbyEvents = new CopyOnWriteArrayList<>();
+      List<ServerEvent> gamesEvents = new CopyOnWriteArrayList<>();
+
+      ChatUser ana = new ChatUser("r1", "Ana");
+      ChatUser luis = new ChatUser("r2", "Luis");
+      ChatRoom lobby = registry.join("lobby", ana, lobbyEvents::add);
+      ChatRoom games = registry.join("games", luis, gamesEvents::add);
+      Assertions.assertNotNull(lobby);
+      Assertions.assertNotNull(games);
+      Assertions.assertSame(lobby, registry.getRoom("lobby"));
+      // Las dos nuevas más la sala principal, que existe siempre
+      Assertions.assertEquals(3, registry.getRoomCount());
+      Assertions.assertNotNull(registry.getRoom(RoomRegistry.DEFAULT_ROOM_ID));
+
+      // El mismo nombre puede usarse en salas distintas
+      Assertions.assertNotNull(
+        registry.join("games", new ChatUser("r3", "ana"), e -> {})
+      );
+
+      lobby.broadcast(
+        ServerEvent.message("lobby", new ChatMessage(ana, "solo lobby"))
+      );
+      Assertions.assertEquals(1, lobbyEvents.size());
+      Assertions.assertTrue(gamesEvents.isEmpty());
+
+      Assertions.assertNull(RoomRegistry.normalizeRoomId("sala con espacios"));
+      Assertions.assertEquals("default", RoomRegistry.normalizeRoomId(null));
+
+      // Una sala vacía se retira tras el tiempo de inactividad
+      registry.leave(lobby, ana);
+      Assertions.assertTrue(lobby.isEmpty());
+      Thread.sleep(150);
+      registry.retireIdleRooms();
+      Assertions.assertNull(registry.getRoom("lobby"));
+      Assertions.assertNotNull(registry.getRoom("games"));
+      Assertions.assertTrue(registry.getRetiredRoomCount() >= 1);
+
+      // Volver a unirse crea una sala nueva
+      ChatRoom recreated = registry.join("lobby", ana, lobbyEvents::add);
+      Assertions.assertNotSame(lobby, recreated);
+
+      // La sala principal, vacía, se recrea con la configuración nueva
+      registry.setActorMode(true);
+      Assertions.assertTrue(
+        registry.getRoom(RoomRegistry.DEFAULT_ROOM_ID).isActorMode()
+      );
+      Assertions.assertFalse(recreated.isActorMode());
+    } finally {
+      registry.shutdown();
+    }
+
+    logger.info("✓ Registro de salas validado");
+  }
+
+  @Test
+  @Order(10)
+  @DisplayName("Modo actor: orden total y secuencias por sala")
+  void testActorModeTotalOrder() throws InterruptedException {
+    final int PRODUCERS = 4;
+    final int MESSAGES_PER_PRODUCER = 500;
+    final int total = PRODUCERS * MESSAGES_PER_PRODUCER;
+
+    ChatRoom room = new ChatRoom("actor", "Sala Actor", null, executor);
+    List<ServerEvent> first = new CopyOnWriteArrayList<>();
+    List<ServerEvent> second = new CopyOnWriteArrayList<>();
+    room.addUser(new ChatUser("s1", "Primero"), first::add);
+    room.addUser(new ChatUser("s2", "Segundo"), second::add);
+    ChatUser author = room.getUser("s1");
+
+    CountDownLatch latch = new CountDownLatch(PRODUCERS);
+    for (int i = 0; i < PRODUCERS; i++) {
+      final int producer = i;
+      new Thread(() -> {
+        for (int j = 0; j < MESSAGES_PER_PRODUCER; j++) {
+          room.postMessage(new ChatMessage(author, producer + "-" + j));
+        }
+        latch.countDown();
+      })
+        .start();
+    }
+
+    Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (second.size() < total && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    Assertions.assertEquals(total, first.size());
+    Assertions.assertEquals(total, second.size());
+    for (int i = 0; i < total; i++) {
+      // Mismo evento, en la misma posición, para todos los suscriptores
+      Assertions.assertSame(first.get(i), second.get(i));
+      Assertions.assertEquals(i + 1, first.get(i).getSequence());
+    }
+
+    // El historial sigue el mismo orden que la entrega
+    List<ChatMessage> history = room.getRecentMessages(100);
+    List<ServerEvent> lastDelivered = first.subList(total - 100, total);
+    for (int i = 0; i < 100; i++) {
+      Assertions.assertSame(lastDelivered.get(i).getMessage(), history.get(i));
+    }
+
+    // Los avisos de entrada también pasan por el buzón: con un mensaje
+    // todavía encolado, el aviso queda detrás en el historial
+    List<Runnable> pending = new ArrayList<>();
+    ChatRoom queued = new ChatRoom("cola", "Sala Cola", null, pending::add);
+    List<ServerEvent> delivered = new ArrayList<>();
+    queued.addUser(new ChatUser("q1", "Quique"), delivered::add);
+    ChatUser quique = queued.getUser("q1");
+    queued.postMessage(new ChatMessage(quique, "antes de la entrada"));
+    ChatUser rosa = new ChatUser("q2", "Rosa");
+    queued.addUser(rosa);
+    queued.broadcast(ServerEvent.userJoined("cola", rosa));
+    while (!pending.isEmpty()) {
+      pending.remove(0).run();
+    }
+    List<ChatMessage> queuedHistory = queued.getRecentMessages(2);
+    Assertions.assertSame(delivered.get(0).getMessage(), queuedHistory.get(0));
+    Assertions.assertEquals(
+      "Rosa se unió al chat",
+      queuedHistory.get(1).getContent()
+    );
+    Assertions.assertEquals(
+      ServerEvent.Type.USER_JOINED,
+      delivered.get(1).getType()
+    );
+    queued.cleanup();
+
+    logger.info(
+      "✓ Orden total validado ({} eventos por vaciado del buzón)",
+      String.format("%.1f", room.getMailbox().getAverageBatchSize())
+    );
+    room.cleanup();
+  }
+
+  @Test
+  @Order(11)
+  @DisplayName("Búsqueda por tokens y prefijos con paginación")
+  void testMessageSearch() {
+    ChatUser user = new ChatUser("q", "Buscador");
+    MessageIndex index = new MessageIndex(5);
+    index.add(new ChatMessage(user, "Hola mundo"));
+    index.add(new ChatMessage(user, "HOLA, ¿qué tal?"));
+    index.add(new ChatMessage(user, "holanda queda lejos"));
+    index.add(new ChatMessage(user, "mundo cruel"));
+    index.add(new ChatMessage(user, "hola otra vez, mundo"));
+
+    // Token exacto, sin distinguir mayúsculas; el más reciente primero
+    List<ChatMessage> hola = index.search("hola", 10, MessageIndex.NO_CURSOR).messages;
+    Assertions.assertEquals(3, hola.size());
+    Assertions.assertEquals("hola otra vez, mundo", hola.get(0).getContent());
+
+    // Prefijo y conjunción de términos
+    Assertions.assertEquals(
+      4,
+      index.search("hol*", 10, MessageIndex.NO_CURSOR).messages.size()
+    );
+    Assertions.assertEquals(
+      2,
+      index.search("hola mundo", 10, MessageIndex.NO_CURSOR).messages.size()
+    );
+
+    // Paginación con cursor
+    MessageIndex.Page first = index.search("hol*", 3, MessageIndex.NO_CURSOR);
+    Assertions.assertEquals(3, first.messages.size());
+    Assertions.assertTrue(first.hasMore());
+    MessageIndex.Page second = index.search("hol*", 3, first.nextCursor);
+    Assertions.assertEquals(1, second.messages.size());
+    Assertions.assertEquals("Hola mundo", second.messages.get(0).getContent());
+    Assertions.assertFalse(second.hasMore());
+
+    // Al superar la capacidad el mensaje más antiguo sale del índice
+    index.add(new ChatMessage(user, "adiós"));
+    Assertions.assertEquals(
+      3,
+      index.search("hol*", 10, MessageIndex.NO_CURSOR).messages.size()
+    );
+    Assertions.assertEquals(
+      2,
+      index.search("mundo", 10, MessageIndex.NO_CURSOR).messages.size()
+    );
+
+    // La sala usa el índice en searchMessages
+    chatRoom.addMessage(new ChatMessage(user, "buscando en la sala"));
+    Assertions.assertEquals(1, chatRoom.searchMessages("busc*").size());
+    Assertions.assertTrue(chatRoom.searchMessages("   ").isEmpty());
+
+    logger.info("✓ Búsqueda de mensajes validada");
+  }
+
+  @Test
+  @Order(12)
+  @DisplayName("Ids de mensaje únicos y monótonos entre hilos")
+  void testMessageIds() throws Exception {
+    int threads = 8;
+    int perThread = 20_000;
+    MessageIdGenerator generator = new MessageIdGenerator(7);
+    Set<Long> ids = ConcurrentHashMap.newKeySet();
+    AtomicInteger nonMonotonic = new AtomicInteger(0);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch done = new CountDownLatch(threads);
+
+    long start = System.currentTimeMillis();
+    for (int t = 0; t < threads; t++) {
+      executor.submit(() -> {
+        try {
+          long previous = 0;
+          for (int i = 0; i < perThread; i++) {
+            long id = generator.nextId();
+            if (id <= previous) {
+              nonMonotonic.incrementAndGet();
+            }
+            previous = id;
+            ids.add(id);
+          }
+        } finally {
+          done.countDown();
+        }
+      });
+    }
+    Assertions.assertTrue(done.await(10, TimeUnit.SECONDS));
+    executor.shutdown();
+
+    Assertions.assertEquals(threads * perThread, ids.size());
+    Assertions.assertEquals(0, nonMonotonic.get());
+    long id = ids.iterator().next();
+    Assertions.assertEquals(7, MessageIdGenerator.nodeOf(id));
+    Assertions.assertTrue(MessageIdGenerator.timestampOf(id) >= start);
+
+    // El mensaje conserva autor y contenido sin referencia al usuario
+    ChatUser user = new ChatUser("u-1", "Ana");
+    ChatMessage message = new ChatMessage(user, "¡Hola, ñandú!");
+    Assertions.assertSame(user.getId(), message.getUserId());
+    Assertions.assertEquals("Ana", message.getUsername());
+    Assertions.assertEquals("¡Hola, ñandú!", message.getContent());
+    Assertions.assertTrue(
+      Math.abs(message.getTimestamp() - System.currentTimeMillis()) < 5_000
+    );
+
+    logger.info("✓ Ids de mensaje validados");
+  }
+
+  @Test
+  @Order(13)
+  @DisplayName("Log persistente: segmentos, recuperación y retención")
+  void testMessageLog(@TempDir Path dataDir) throws IOException {
+    ChatUser user = new ChatUser("u-7", "Eva");
+    Path logDir = dataDir.resolve("log");
+
+    MessageLog log = new MessageLog(logDir);
+    log.setSegmentBytes(1024);
+    log.open();
+    for (int i = 0; i < 200; i++) {
+      Assertions.assertEquals(i, log.append(new ChatMessage(user, "mensaje " + i)));
+    }
+    Assertions.assertTrue(log.getSegmentCount() > 1);
+
+    List<ChatMessage> page = log.read(50, 10);
+    Assertions.assertEquals(10, page.size());
+    Assertions.assertEquals("mensaje 50", page.get(0).getContent());
+    Assertions.assertEquals("mensaje 59", page.get(9).getContent());
+    Assertions.assertEquals("Eva", page.get(0).getUsername());
+    log.close();
+
+    // Simular una caída a mitad de escritura: bytes sueltos al final del
+    // último segmento
+    Path lastSegment;
+    try (Stream<Path> files = Files.list(logDir)) {
+      lastSegment =
+        files
+          .filter(f -> f.toString().endsWith(".log"))
+          .max(Path::compareTo)
+          .orElseThrow();
+    }
+    try (
+      FileChannel channel = FileChannel.open(
+        lastSegment,
+        StandardOpenOption.APPEND
+      )
+    ) {
+      channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 42, 1, 2 }));
+    }
+
+    MessageLog reopened = new MessageLog(logDir);
+    reopened.setSegmentBytes(1024);
+    reopened.open();
+    Assertions.assertEquals(200, reopened.getNextOffset());
+    List<ChatMessage> recent = reopened.readRecent(3);
+    Assertions.assertEquals("mensaje 197", recent.get(0).getContent());
+    Assertions.assertEquals("mensaje 199", recent.get(2).getContent());
+    Assertions.assertEquals(200, reopened.append(new ChatMessage(user, "tras reiniciar")));
+
+    // Retención por tamaño: solo se conservan los segmentos más recientes
+    reopened.setRetention(3 * 1024, 1, TimeUnit.DAYS);
+    for (int i = 0; i < 200; i++) {
+      reopened.append(new ChatMessage(user, "relleno " + i));
+    }
+    Assertions.assertTrue(reopened.getFirstOffset() > 0);
+    Assertions.assertTrue(reopened.getSegmentCount() <= 4);
+    List<ChatMessage> oldest = reopened.read(0, 1);
+    Assertions.assertEquals(1, oldest.size());
+    reopened.close();
+
+    // Integración con el registro: el historial sobrevive a la sala
+    RoomRegistry registry = new RoomRegistry(2, 1, TimeUnit.MINUTES);
+    registry.setMessageLogDirectory(dataDir.resolve("salas"));
+    ChatRoom room = registry.join("persistente", user, null);
+    room.addMessage(new ChatMessage(user, "hola desde antes"));
+    registry.shutdown();
+
+    RoomRegistry restarted = new RoomRegistry(2, 1, TimeUnit.MINUTES);
+    restarted.setMessageLogDirectory(dataDir.resolve("salas"));
+    ChatRoom recovered = restarted.join(
+      "persistente",
+      new ChatUser("u-8", "Leo"),
+      null
+    );
+    // Entrada de Eva, su mensaje y entrada de Leo
+    List<ChatMessage> history = recovered.getRecentMessages(10);
+    Assertions.assertEquals(3, history.size());
+    Assertions.assertEquals("hola desde antes", history.get(1).getContent());
+    Assertions.assertEquals("u-7", history.get(1).getUserId());
+    Assertions.assertEquals(1, recovered.searchMessages("antes").size());
+    restarted.shutdown();
+
+    logger.info("✓ Log persistente validado");
+  }
+
+  @Test
+  @Order(14)
+  @DisplayName("Páginas de historial serializadas una sola vez")
+  void testHistoryPageCache() throws Exception {
+    ChatRoom room = new ChatRoom("paginas", "Páginas");
+    ChatUser user = new ChatUser("p-1", "Paco");
+    for (int i = 0; i < 120; i++) {
+      room.addMessage(new ChatMessage(user, "m" + i));
+    }
+
+    HistoryPageCache.HistoryPage newest = room.getHistoryPage(
+      HistoryPageCache.NO_CURSOR,
+      HistoryPageCache.PAGE_SIZE
+    );
+    Assertions.assertEquals(20, newest.getMessageCount());
+    Assertions.assertEquals("m100", newest.getMessages().get(0).getContent());
+    // Las secuencias de la sala parten de una base alineada a página
+    long base = newest.getNextBefore() - 100;
+    Assertions.assertEquals(0, base % HistoryPageCache.PAGE_SIZE);
+    Assertions.assertEquals(base + 100, newest.getSequence(0));
+
+    // Peticiones concurrentes de la misma página comparten el cuerpo
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<byte[]>> bodies = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      bodies.add(
+        executor.submit(() ->
+          room
+            .getHistoryPage(base + 100, HistoryPageCache.PAGE_SIZE)
+            .getBody()
+        )
+      );
+    }
+    byte[] first = bodies.get(0).get();
+    for (Future<byte[]> body : bodies) {
+      Assertions.assertSame(first, body.get());
+    }
+    executor.shutdown();
+    Assertions.assertEquals(1, room.getHistoryPageCache().getCachedPageCount());
+
+    HistoryPageCache.HistoryPage oldest = room.getHistoryPage(
+      base + 50,
+      HistoryPageCache.PAGE_SIZE
+    );
+    Assertions.assertEquals("m0", oldest.getMessages().get(0).getContent());
+    Assertions.assertEquals(HistoryPageCache.NO_CURSOR, oldest.getNextBefore());
+
+    // Límite no alineado: página dinámica
+    HistoryPageCache.HistoryPage custom = room.getHistoryPage(
+      base + 110,
+      5
+    );
+    Assertions.assertEquals("m105", custom.getMessages().get(0).getContent());
+    Assertions.assertEquals(2, room.getHistoryPageCache().getCachedPageCount());
+
+    // Cuando sus mensajes salen del historial la página se retira
+    for (int i = 0; i < 1000; i++) {
+      room.addMessage(new ChatMessage(user, "n" + i));
+    }
+    room.getHistoryPage(base + 1100, HistoryPageCache.PAGE_SIZE);
+    Assertions.assertEquals(1, room.getHistoryPageCache().getCachedPageCount());
+
+    room.cleanup();
+    logger.info("✓ Caché de páginas de historial validada");
+  }
+
+  @Test
+  @Order(15)
+  @DisplayName("Reproducción desde secuencia al reconectar")
+  void testReplayFromSequence() {
+    ChatRoom room = new ChatRoom("reanudar", "Reanudar");
+    ChatUser user = new ChatUser("r-1", "Rosa");
+
+    // Una sala sin mensajes se presenta con una única página vacía
+    List<ServerEvent> empty = room.getSnapshot();
+    Assertions.assertEquals(1, empty.size());
+    Assertions.assertEquals(0, empty.get(0).getHistoryPage().getMessageCount());
+
+    long lastSeen = -1;
+    for (int i = 0; i < 10; i++) {
+      ChatMessage message = new ChatMessage(user, "m" + i);
+      room.postMessage(message);
+      if (i == 6) {
+        lastSeen = room.getHistoryPage(HistoryPageCache.NO_CURSOR, 1)
+          .getSequence(0);
+      }
+    }
+
+    // Solo llegan los mensajes posteriores a la última secuencia vista
+    List<ServerEvent> replay = room.getReplay(lastSeen);
+    Assertions.assertNotNull(replay);
+    Assertions.assertEquals(3, replay.size());
+    for (int i = 0; i < replay.size(); i++) {
+      ServerEvent event = replay.get(i);
+      Assertions.assertEquals(ServerEvent.Type.MESSAGE, event.getType());
+      Assertions.assertEquals("m" + (7 + i), event.getMessage().getContent());
+      Assertions.assertEquals(lastSeen + 1 + i, event.getMessageSequence());
+    }
+    // Al día: nada que reproducir; secuencia de otra instancia: null
+    Assertions.assertTrue(room.getReplay(lastSeen + 3).isEmpty());
+    Assertions.assertNull(room.getReplay(lastSeen + 100));
+
+    // Cuando el hueco ya salió del historial hay que enviar instantánea
+    for (int i = 0; i < 1000; i++) {
+      room.addMessage(new ChatMessage(user, "n" + i));
+    }
+    Assertions.assertNull(room.getReplay(lastSeen));
+
+    List<ServerEvent> snapshot = room.getSnapshot();
+    Assertions.assertFalse(snapshot.isEmpty());
+    int total = 0;
+    for (ServerEvent event : snapshot) {
+      Assertions.assertEquals(ServerEvent.Type.HISTORY, event.getType());
+      total += event.getHistoryPage().getMessageCount();
+    }
+    Assertions.assertTrue(total >= HistoryPageCache.PAGE_SIZE / 2);
+    HistoryPageCache.HistoryPage last = snapshot
+      .get(snapshot.size() - 1)
+      .getHistoryPage();
+    Assertions.assertEquals(
+      "n999",
+      last.getMessages().get(last.getMessageCount() - 1).getContent()
+    );
+
+    room.cleanup();
+    logger.info("✓ Reproducción desde secuencia validada");
+  }
+
+  @Test
+  @Order(16)
+  @DisplayName("Joins concurrentes con la retirada de salas y su log")
+  void testJoinRacesRoomRetirement(@TempDir Path dataDir) throws Exception {
+    RoomRegistry registry = new RoomRegistry(1, 0, TimeUnit.MILLISECONDS);
+    registry.setMessageLogDirectory(dataDir);
+    int threads = 4;
+    int rounds = 200;
+    ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+    AtomicInteger joins = new AtomicInteger();
+    List<String> failures = new CopyOnWriteArrayList<>();
+    try {
+      CountDownLatch done = new CountDownLatch(threads);
+      for (int t = 0; t < threads; t++) {
+        ChatUser user = new ChatUser("c-" + t, "Usuario" + t);
+        executor.submit(() -> {
+          try {
+            for (int i = 0; i < rounds; i++) {
+              ChatRoom room = registry.join("efimera", user, null);
+              if (room == null || room.isRetired()) {
+                failures.add("join en una sala retirada");
+              } else if (registry.getRoom("efimera") != room) {
+                failures.add("la sala con usuarios no está publicada");
+              } else {
+                joins.incrementAndGet();
+              }
+              if (room != null) {
+                registry.leave(room, user);
+              }
+            }
+          } finally {
+            done.countDown();
+          }
+        });
+      }
+      // Retiradas continuas mientras los usuarios entran y salen
+      Future<?> sweeper = executor.submit(() -> {
+        while (done.getCount() > 0) {
+          registry.retireIdleRooms();
+        }
+      });
+      Assertions.assertTrue(done.await(30, TimeUnit.SECONDS));
+      sweeper.get(5, TimeUnit.SECONDS);
+
+      Assertions.assertEquals(List.of(), failures);
+      Assertions.assertEquals(threads * rounds, joins.get());
+      logger.info(
+        "Salas creadas: {}, retiradas: {}",
+        registry.getCreatedRoomCount(),
+        registry.getRetiredRoomCount()
+      );
+      Assertions.assertTrue(registry.getRetiredRoomCount() > 0);
+
+      // El log, cerrado y reabierto en cada retirada, conserva las entradas
+      ChatRoom last = registry.join("efimera", new ChatUser("c-x", "Final"), null);
+      Assertions.assertTrue(last.getRecentMessages(0).size() > 1);
+    } finally {
+      executor.shutdownNow();
+      registry.shutdown();
+    }
+  }
+
+  @Test
+  @Order(17)
+  @DisplayName("Log persistente: nombres largos y registros ilegibles")
+  void testMessageLogRecordLimits(@TempDir Path logDir) throws IOException {
+    // Un nombre de más de 32767 bytes no desborda la longitud del registro
+    String longName = "ñ".repeat(20_000);
+    MessageLog log = new MessageLog(logDir);
+    log.open();
+    log.append(new ChatMessage(new ChatUser("l-1", longName), "largo"));
+    log.close();
+
+    // Un registro con CRC válido que no es un mensaje se trata como cola
+    // corrupta al reabrir
+    byte[] body = ByteBuffer.allocate(9).putLong(7).put((byte) 0).array();
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+    record.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+    try (
+      FileChannel channel = FileChannel.open(
+        logDir.resolve(String.format("%020d.log", 0)),
+        StandardOpenOption.APPEND
+      )
+    ) {
+      channel.write(record);
+    }
+
+    MessageLog reopened = new MessageLog(logDir);
+    reopened.open();
+    Assertions.assertEquals(1, reopened.getNextOffset());
+    List<ChatMessage> recent = reopened.readRecent(10);
+    Assertions.assertEquals(1, recent.size());
+    Assertions.assertEquals(longName, recent.get(0).getUsername());
+    Assertions.assertEquals("largo", recent.get(0).getContent());
+    reopened.close();
+
+    logger.info("✓ Límites de registro del log validados");
+  }
 }
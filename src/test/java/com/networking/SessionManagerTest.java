@@ -0,0 +1,622 @@
+package com.networking;
+
+import com.networking.session.InMemoryReplicationBus;
+import com.networking.session.ReplicationTransport;
+import com.networking.session.SessionExpiryWheel;
+import com.networking.session.SessionIdGenerator;
+import com.networking.session.SessionManager;
+import com.networking.session.SessionReplicator;
+import com.networking.session.SessionStore;
+import com.networking.session.TcpReplicationTransport;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pruebas del gestor de sesiones
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class SessionManagerTest {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+    SessionManagerTest.class
+  );
+
+  private static final byte[] REPLICATION_SECRET = "secreto-de-replicacion-de-al-menos-32-bytes".getBytes(
+    StandardCharsets.UTF_8
+  );
+
+  @Test
+  @Order(1)
+  @DisplayName("La rueda de expiración solo retira sesiones vencidas")
+  void testExpiryWheel() {
+    long start = 1_000_000;
+    SessionExpiryWheel wheel = new SessionExpiryWheel(100, 16, start);
+    List<SessionManager.SessionData> sessions = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      // Vencimientos escalonados: 1 s, 1.5 s, 2 s...
+      SessionManager.SessionData session = new SessionManager.SessionData(
+        "s" + i,
+        start,
+        1000 + i * 500L
+      );
+      sessions.add(session);
+      wheel.schedule(session);
+    }
+
+    List<String> expired = new ArrayList<>();
+    Assertions.assertEquals(
+      0,
+      wheel.advance(start + 999, s -> expired.add(s.getSessionId()))
+    );
+    Assertions.assertEquals(
+      1,
+      wheel.advance(start + 1000, s -> expired.add(s.getSessionId()))
+    );
+    Assertions.assertEquals(List.of("s0"), expired);
+
+    // Una sesión renovada se reprograma en lugar de expirar
+    // (con el reloj real, muy posterior a start)
+    sessions.get(1).updateLastAccess();
+    Assertions.assertEquals(
+      1,
+      wheel.advance(start + 2000, s -> expired.add(s.getSessionId()))
+    );
+    Assertions.assertEquals(List.of("s0", "s2"), expired);
+
+    // Los vencimientos más allá de una vuelta (1.6 s) no se adelantan y
+    // una sesión cancelada no llega a expirar. Tras más de una vuelta sin
+    // avanzar, el orden dentro de la pasada no está garantizado.
+    wheel.cancel(sessions.get(5));
+    wheel.advance(start + 4499, s -> expired.add(s.getSessionId()));
+    Collections.sort(expired);
+    Assertions.assertEquals(List.of("s0", "s2", "s3", "s4", "s6"), expired);
+    wheel.advance(start + 6000, s -> expired.add(s.getSessionId()));
+    Assertions.assertEquals(
+      List.of("s0", "s2", "s3", "s4", "s6", "s7", "s8", "s9"),
+      expired
+    );
+    logger.info("✓ Rueda de expiración validada");
+  }
+
+  @Test
+  @Order(2)
+  @DisplayName("Las sesiones inactivas se retiran al vencer")
+  void testSessionsExpire() throws Exception {
+    SessionManager manager = new SessionManager(300, TimeUnit.MILLISECONDS);
+    try {
+      String idle = manager.createSession();
+      String active = manager.createSession("activo");
+      Assertions.assertEquals(2, manager.getActiveSessionCount());
+
+      // La sesión que se sigue usando no expira
+      long deadline = System.currentTimeMillis() + 2000;
+      while (
+        manager.getActiveSessionCount() > 1 &&
+        System.currentTimeMillis() < deadline
+      ) {
+        Assertions.assertTrue(manager.isValidSession(active));
+        Thread.sleep(50);
+      }
+
+      Assertions.assertEquals(1, manager.getActiveSessionCount());
+      Assertions.assertFalse(manager.isValidSession(idle));
+      Assertions.assertEquals(
+        "activo",
+        manager.getSessionData(active).getUsername()
+      );
+      Assertions.assertEquals(1, manager.getExpiredSessionCount());
+
+      manager.invalidateSession(active);
+      Assertions.assertFalse(manager.isValidSession(active));
+      Assertions.assertEquals(0, manager.getActiveSessionCount());
+    } finally {
+      manager.cleanup();
+    }
+  }
+
+  @Test
+  @Order(3)
+  @DisplayName("La capacidad del almacén acota sesiones y memoria")
+  void testCapacityEviction() {
+    SessionManager manager = new SessionManager();
+    try {
+      manager.setCapacity(1600, Long.MAX_VALUE);
+      String first = manager.createSession();
+      List<String> ids = new ArrayList<>();
+      for (int i = 0; i < 20_000; i++) {
+        ids.add(manager.createSession());
+        // La primera sesión se sigue usando: nunca es la menos usada
+        Assertions.assertTrue(manager.isValidSession(first));
+      }
+
+      SessionStore.Stats stats = manager.getStoreStats();
+      logger.info("Almacén tras 20k creaciones: {}", stats);
+      Assertions.assertTrue(stats.size <= 1600);
+      Assertions.assertEquals(20_001 - stats.size, stats.evictions);
+      Assertions.assertTrue(manager.isValidSession(ids.get(ids.size() - 1)));
+      Assertions.assertFalse(manager.isValidSession(ids.get(0)));
+
+      // Límite por bytes estimados
+      manager.setCapacity(1600, 64 * 1024);
+      for (int i = 0; i < 1000; i++) {
+        manager.createSession("usuario-" + i);
+      }
+      stats = manager.getStoreStats();
+      Assertions.assertTrue(stats.estimatedBytes <= 64 * 1024);
+      Assertions.assertTrue(stats.size < 1600);
+    } finally {
+      manager.cleanup();
+    }
+  }
+
+  @Test
+  @Order(4)
+  @DisplayName("Tokens firmados válidos en cualquier nodo con el mismo secreto")
+  void testSignedTokens() throws Exception {
+    byte[] secret = "secreto-compartido-de-al-menos-32-bytes".getBytes(
+      StandardCharsets.UTF_8
+    );
+    SessionManager nodeA = new SessionManager(300, TimeUnit.MILLISECONDS);
+    SessionManager nodeB = new SessionManager();
+    SessionManager other = new SessionManager();
+    try {
+      nodeA.enableSignedTokens(secret);
+      nodeB.enableSignedTokens(secret);
+      other.enableSignedTokens(
+        "otro-secreto-distinto-de-al-menos-32-bytes".getBytes(
+          StandardCharsets.UTF_8
+        )
+      );
+
+      String token = nodeA.createSession("Ñandú");
+      Assertions.assertTrue(nodeA.isValidSession(token));
+      Assertions.assertTrue(nodeB.isValidSession(token));
+      Assertions.assertEquals(
+        "Ñandú",
+        nodeB.getSessionData(token).getUsername()
+      );
+      Assertions.assertFalse(other.isValidSession(token));
+      // No ocupa memoria en el nodo
+      Assertions.assertEquals(0, nodeA.getActiveSessionCount());
+
+      // Cualquier byte alterado invalida la firma
+      char[] tampered = token.toCharArray();
+      tampered[5] = tampered[5] == 'A' ? 'B' : 'A';
+      Assertions.assertFalse(nodeA.isValidSession(new String(tampered)));
+      Assertions.assertFalse(nodeA.isValidSession("sin-punto"));
+      Assertions.assertFalse(nodeA.isValidSession("a.b"));
+
+      // Cierre de sesión: revocación local al nodo que lo atiende
+      String revoked = nodeA.createSession("Revocado");
+      nodeA.invalidateSession(revoked);
+      Assertions.assertFalse(nodeA.isValidSession(revoked));
+
+      // Los tokens expiran el timeout después de emitirse
+      Thread.sleep(400);
+      Assertions.assertFalse(nodeA.isValidSession(token));
+      Assertions.assertFalse(nodeB.isValidSession(token));
+    } finally {
+      nodeA.cleanup();
+      nodeB.cleanup();
+      other.cleanup();
+    }
+  }
+
+  @Test
+  @Order(5)
+  @DisplayName("Ids de sesión base64url únicos desde varios hilos")
+  void testSessionIdGeneration() throws Exception {
+    int threads = 8;
+    int perThread = 10_000;
+    Set<String> ids = ConcurrentHashMap.newKeySet();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(
+        executor.submit(() -> {
+          for (int i = 0; i < perThread; i++) {
+            ids.add(SessionIdGenerator.nextId());
+          }
+        })
+      );
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    Assertions.assertEquals(threads * perThread, ids.size());
+    for (String id : ids) {
+      Assertions.assertTrue(id.matches("[A-Za-z0-9_-]{32}"), id);
+    }
+  }
+
+  @Test
+  @Order(6)
+  @DisplayName("Las sesiones persistidas sobreviven a un reinicio")
+  void testSessionPersistence(@TempDir Path directory) throws Exception {
+    SessionManager first = new SessionManager();
+    first.enablePersistence(directory);
+    String kept = first.createSession("Persistente");
+    first
+      .getSessionData(kept)
+      .setAttribute("carrito", new ArrayList<>(List.of("a", "b")));
+    String removed = first.createSession("Efimera");
+    first.invalidateSession(removed);
+    first.cleanup();
+
+    // Arranque limpio: instantánea escrita al cerrar
+    SessionManager second = new SessionManager();
+    Assertions.assertEquals(1, second.enablePersistence(directory));
+    Assertions.assertTrue(second.isValidSession(kept));
+    Assertions.assertFalse(second.isValidSession(removed));
+    SessionManager.SessionData restored = second.getSessionData(kept);
+    Assertions.assertEquals("Persistente", restored.getUsername());
+    Assertions.assertEquals(List.of("a", "b"), restored.getAttribute("carrito"));
+
+    // Solo se deserializan tipos de java.base: un atributo de otra clase
+    // invalida el bloque entero, que se descarta al restaurar
+    String foreign = second.createSession("Ajena");
+    SessionManager.SessionData foreignData = second.getSessionData(foreign);
+    foreignData.setAttribute("tema", "claro");
+    foreignData.setAttribute("ajeno", new ForeignAttribute());
+
+    // Caída sin instantánea: los cambios se recuperan del log
+    String afterSnapshot = second.createSession("Nueva");
+    SessionManager.SessionData changed = second.getSessionData(afterSnapshot);
+    changed.setUsername("Renombrada");
+    changed.setAttribute("tema", "oscuro");
+    second.invalidateSession(kept);
+    second.cleanupExpiredSessions();
+
+    SessionManager third = new SessionManager();
+    try {
+      Assertions.assertEquals(2, third.enablePersistence(directory));
+      Assertions.assertTrue(third.isValidSession(afterSnapshot));
+      Assertions.assertFalse(third.isValidSession(kept));
+      SessionManager.SessionData recovered = third.getSessionData(
+        afterSnapshot
+      );
+      Assertions.assertEquals("Renombrada", recovered.getUsername());
+      Assertions.assertEquals("oscuro", recovered.getAttribute("tema"));
+      SessionManager.SessionData filtered = third.getSessionData(foreign);
+      Assertions.assertEquals("Ajena", filtered.getUsername());
+      Assertions.assertNull(filtered.getAttribute("tema"));
+      Assertions.assertNull(filtered.getAttribute("ajeno"));
+    } finally {
+      third.cleanup();
+      second.cleanup();
+    }
+  }
+
+  @Test
+  @Order(7)
+  @DisplayName("Los cambios de sesión se replican en lotes con accesos fusionados")
+  void testSessionReplication() throws Exception {
+    InMemoryReplicationBus bus = new InMemoryReplicationBus();
+    SessionManager first = new SessionManager();
+    SessionManager second = new SessionManager();
+    // Cada acceso renueva la sesión, para que la fusión sea del replicador
+    first.setTouchGranularity(0, TimeUnit.MILLISECONDS);
+    // Lotes enviados por el primero y receptor del segundo, para reenviarlos
+    List<byte[]> captured = new CopyOnWriteArrayList<>();
+    AtomicReference<Consumer<byte[]>> secondReceiver = new AtomicReference<>();
+    ReplicationTransport firstEndpoint = bus.connect();
+    ReplicationTransport secondEndpoint = bus.connect();
+    first.enableReplication(
+      new ReplicationTransport() {
+        @Override
+        public void start(Consumer<byte[]> receiver) throws IOException {
+          firstEndpoint.start(receiver);
+        }
+
+        @Override
+        public void publish(byte[] batch) throws IOException {
+          captured.add(batch);
+          firstEndpoint.publish(batch);
+        }
+
+        @Override
+        public void close() {
+          firstEndpoint.close();
+        }
+      },
+      REPLICATION_SECRET
+    );
+    second.enableReplication(
+      new ReplicationTransport() {
+        @Override
+        public void start(Consumer<byte[]> receiver) throws IOException {
+          secondReceiver.set(receiver);
+          secondEndpoint.start(receiver);
+        }
+
+        @Override
+        public void publish(byte[] batch) throws IOException {
+          secondEndpoint.publish(batch);
+        }
+
+        @Override
+        public void close() {
+          secondEndpoint.close();
+        }
+      },
+      REPLICATION_SECRET
+    );
+    try {
+      String sessionId = first.createSession("Replicada");
+      waitUntil(() -> second.getActiveSessionCount() == 1, 2000);
+      Assertions.assertEquals(1, second.getActiveSessionCount());
+
+      // Muchos accesos seguidos viajan como uno por lote
+      for (int i = 0; i < 1000; i++) {
+        Assertions.assertTrue(first.isValidSession(sessionId));
+      }
+      long lastAccess = first.getSessionData(sessionId).getLastAccessedAt();
+      SessionManager.SessionData replica = second.getSessionData(sessionId);
+      Assertions.assertEquals("Replicada", replica.getUsername());
+      waitUntil(() -> replica.getLastAccessedAt() >= lastAccess, 2000);
+      Assertions.assertTrue(replica.getLastAccessedAt() >= lastAccess);
+
+      SessionReplicator.Stats published = first.getReplicationStats();
+      Assertions.assertTrue(published.coalescedDeltas > 900);
+      Assertions.assertTrue(published.publishedDeltas < 100);
+
+      // El usuario y los atributos puestos tras crearla también viajan
+      SessionManager.SessionData original = first.getSessionData(sessionId);
+      original.setUsername("Renombrada");
+      original.setAttribute("sala", "lobby");
+      waitUntil(() -> "lobby".equals(replica.getAttribute("sala")), 2000);
+      Assertions.assertEquals("Renombrada", replica.getUsername());
+      Assertions.assertEquals("lobby", replica.getAttribute("sala"));
+
+      // Invalidar en cualquier nodo la retira de todos
+      second.invalidateSession(sessionId);
+      waitUntil(() -> first.getActiveSessionCount() == 0, 2000);
+      Assertions.assertFalse(first.isValidSession(sessionId));
+      Assertions.assertTrue(second.getReplicationStats().lastLagMillis >= 0);
+
+      // Reenviar lotes capturados, aunque estén firmados, no revive la
+      // sesión cerrada
+      Assertions.assertEquals(0, second.getReplicationStats().rejectedBatches);
+      for (byte[] batch : captured) {
+        secondReceiver.get().accept(batch);
+      }
+      Assertions.assertFalse(second.isValidSession(sessionId));
+      Assertions.assertEquals(
+        captured.size(),
+        second.getReplicationStats().rejectedBatches
+      );
+      logger.info("Replicación en memoria: {}", published);
+    } finally {
+      first.cleanup();
+      second.cleanup();
+    }
+  }
+
+  @Test
+  @Order(8)
+  @DisplayName("Replicación de sesiones por TCP en loopback")
+  void testTcpSessionReplication() throws Exception {
+    TcpReplicationTransport firstTransport = new TcpReplicationTransport(0);
+    TcpReplicationTransport secondTransport = new TcpReplicationTransport(0);
+    SessionManager first = new SessionManager();
+    SessionManager second = new SessionManager();
+    first.enableReplication(firstTransport, REPLICATION_SECRET);
+    second.enableReplication(secondTransport, REPLICATION_SECRET);
+    firstTransport.addPeer(
+      new InetSocketAddress(
+        InetAddress.getLoopbackAddress(),
+        secondTransport.getLocalPort()
+      )
+    );
+    secondTransport.addPeer(
+      new InetSocketAddress(
+        InetAddress.getLoopbackAddress(),
+        firstTransport.getLocalPort()
+      )
+    );
+    try {
+      List<String> created = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        created.add(first.createSession("usuario" + i));
+      }
+      waitUntil(() -> second.getActiveSessionCount() == 100, 5000);
+      Assertions.assertEquals(100, second.getActiveSessionCount());
+      for (String sessionId : created) {
+        Assertions.assertTrue(second.isValidSession(sessionId));
+      }
+
+      first.invalidateSession(created.get(0));
+      waitUntil(() -> second.getActiveSessionCount() == 99, 5000);
+      Assertions.assertFalse(second.isValidSession(created.get(0)));
+      Assertions.assertEquals(0, firstTransport.getDroppedBatchCount());
+
+      // Un nodo con otro secreto no puede invalidar sesiones ajenas
+      TcpReplicationTransport intruderTransport = new TcpReplicationTransport(
+        0
+      );
+      SessionManager intruder = new SessionManager();
+      intruder.enableReplication(
+        intruderTransport,
+        "otro-secreto-de-replicacion-de-32-bytes".getBytes(
+          StandardCharsets.UTF_8
+        )
+      );
+      intruderTransport.addPeer(
+        new InetSocketAddress(
+          InetAddress.getLoopbackAddress(),
+          secondTransport.getLocalPort()
+        )
+      );
+      try {
+        intruder.createSession("intruso");
+        waitUntil(
+          () -> second.getReplicationStats().rejectedBatches > 0,
+          5000
+        );
+        Assertions.assertEquals(
+          1,
+          second.getReplicationStats().rejectedBatches
+        );
+      } finally {
+        intruder.cleanup();
+      }
+
+      // Ni nadie sin secreto que escriba un lote a mano en el puerto
+      ByteArrayOutputStream forged = new ByteArrayOutputStream();
+      DataOutputStream batch = new DataOutputStream(forged);
+      batch.writeByte(3);
+      batch.writeLong(42);
+      batch.writeLong(1);
+      batch.writeLong(System.currentTimeMillis());
+      batch.writeInt(1);
+      batch.writeByte(3);
+      batch.writeUTF(created.get(1));
+      batch.write(new byte[16]);
+      try (
+        Socket socket = new Socket(
+          InetAddress.getLoopbackAddress(),
+          secondTransport.getLocalPort()
+        )
+      ) {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(forged.size());
+        out.write(forged.toByteArray());
+        out.flush();
+        waitUntil(
+          () -> second.getReplicationStats().rejectedBatches == 2,
+          5000
+        );
+      }
+      Assertions.assertEquals(2, second.getReplicationStats().rejectedBatches);
+      Assertions.assertTrue(second.isValidSession(created.get(1)));
+      Assertions.assertEquals(99, second.getActiveSessionCount());
+      logger.info("Replicación TCP: {}", second.getReplicationStats());
+
+      // Un par que acepta la conexión pero no lee no bloquea al que
+      // publica: su cola acotada descarta los lotes más antiguos
+      try (
+        ServerSocket stalled = new ServerSocket(
+          0,
+          50,
+          InetAddress.getLoopbackAddress()
+        )
+      ) {
+        TcpReplicationTransport publisher = new TcpReplicationTransport(0);
+        publisher.start(received -> {});
+        publisher.addPeer(
+          new InetSocketAddress(
+            InetAddress.getLoopbackAddress(),
+            stalled.getLocalPort()
+          )
+        );
+        try {
+          long start = System.nanoTime();
+          for (int i = 0; i < 200; i++) {
+            publisher.publish(new byte[256 * 1024]);
+          }
+          Assertions.assertTrue(
+            System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1)
+          );
+          Assertions.assertTrue(publisher.getDroppedBatchCount() > 0);
+        } finally {
+          publisher.close();
+        }
+      }
+    } finally {
+      first.cleanup();
+      second.cleanup();
+    }
+  }
+
+  @Test
+  @Order(9)
+  @DisplayName("Los accesos seguidos no renuevan la sesión hasta la granularidad")
+  void testTouchGranularity() throws Exception {
+    InMemoryReplicationBus bus = new InMemoryReplicationBus();
+    SessionManager manager = new SessionManager();
+    SessionManager replica = new SessionManager();
+    manager.setTouchGranularity(200, TimeUnit.MILLISECONDS);
+    manager.enableReplication(bus.connect(), REPLICATION_SECRET);
+    replica.enableReplication(bus.connect(), REPLICATION_SECRET);
+    try {
+      Assertions.assertThrows(
+        IllegalArgumentException.class,
+        () -> manager.setTouchGranularity(30, TimeUnit.MINUTES)
+      );
+      String sessionId = manager.createSession("Frecuente");
+      SessionManager.SessionData session = manager.getSessionData(sessionId);
+      long created = session.getLastAccessedAt();
+
+      for (int i = 0; i < 1000; i++) {
+        Assertions.assertSame(session, manager.getSessionData(sessionId));
+        Assertions.assertTrue(manager.isValidSession(sessionId));
+      }
+      Assertions.assertEquals(created, session.getLastAccessedAt());
+
+      Thread.sleep(250);
+      Assertions.assertTrue(manager.isValidSession(sessionId));
+      long renewed = session.getLastAccessedAt();
+      Assertions.assertTrue(renewed >= created + 200);
+
+      // Solo se replican los accesos que se han escrito
+      waitUntil(
+        () -> {
+          SessionManager.SessionData copy = replica.getSessionData(sessionId);
+          return copy != null && copy.getLastAccessedAt() == renewed;
+        },
+        2000
+      );
+      Assertions.assertEquals(
+        renewed,
+        replica.getSessionData(sessionId).getLastAccessedAt()
+      );
+      Assertions.assertEquals(0, manager.getReplicationStats().coalescedDeltas);
+    } finally {
+      manager.cleanup();
+      replica.cleanup();
+    }
+  }
+
+  /**
+   * Atributo serializable fuera de java.base
+   */
+  private static class ForeignAttribute implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static void waitUntil(BooleanSupplier condition, long timeoutMillis)
+    throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+}
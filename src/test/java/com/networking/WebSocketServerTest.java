@@ -0,0 +1,985 @@
+package com.networking;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.networking.chat.ChatMessage;
+import com.networking.chat.ChatRoom;
+import com.networking.chat.ChatUser;
+import com.networking.server.FrameWriter;
+import com.networking.server.HttpServer;
+import com.networking.server.ThreadPoolManager;
+import com.networking.server.WebSocketServer;
+import com.networking.session.CookieHandler;
+import com.networking.session.SessionManager;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pruebas del ciclo de vida de conexiones del servidor WebSocket
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class WebSocketServerTest {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+    WebSocketServerTest.class
+  );
+
+  private WebSocketServer server;
+  private int port;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    port = findFreePort();
+    server = new WebSocketServer(port);
+    server.setHeartbeat(300, 300, TimeUnit.MILLISECONDS);
+
+    Thread serverThread = new Thread(server::start, "WebSocket-Test-Server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+    waitForPort(port);
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test
+  @Order(1)
+  @DisplayName("Expulsión de conexiones que no responden a los pings")
+  void testHeartbeatEvictsSilentPeers() throws Exception {
+    try (
+      TestClient silent = TestClient.connect(port, null);
+      TestClient responsive = TestClient.connect(port, null)
+    ) {
+      silent.sendText("{\"type\":\"join\",\"username\":\"Silencioso\"}");
+      responsive.sendText("{\"type\":\"join\",\"username\":\"Atento\"}");
+      waitUntil(() -> server.getOpenConnectionCount() == 2, 2000);
+
+      // El cliente atento responde a cada ping; el silencioso nunca lo hace
+      long deadline = System.currentTimeMillis() + 3000;
+      int pingsAnswered = 0;
+      while (System.currentTimeMillis() < deadline) {
+        TestClient.Frame frame = responsive.readFrame();
+        if (frame.opcode == 0x9) {
+          responsive.send(0xA, frame.payload);
+          pingsAnswered++;
+        }
+        if (server.getEvictedConnectionCount() > 0 && pingsAnswered > 2) {
+          break;
+        }
+      }
+
+      logger.info(
+        "Pings respondidos: {}, conexiones expulsadas: {}",
+        pingsAnswered,
+        server.getEvictedConnectionCount()
+      );
+      Assertions.assertEquals(1, server.getEvictedConnectionCount());
+      waitUntil(() -> server.getOpenConnectionCount() == 1, 2000);
+      Assertions.assertEquals(1, server.getOpenConnectionCount());
+
+      // La conexión que sigue viva continúa recibiendo mensajes
+      responsive.sendText("{\"type\":\"message\",\"content\":\"sigo aquí\"}");
+      String received;
+      do {
+        received = responsive.readDataFrame().text();
+      } while (!received.contains("\"type\":\"message\""));
+      Assertions.assertTrue(received.contains("sigo aquí"));
+    }
+  }
+
+  @Test
+  @Order(2)
+  @DisplayName("Un cierre del cliente libera la conexión de inmediato")
+  void testClientCloseReleasesConnection() throws Exception {
+    TestClient client = TestClient.connect(port, null);
+    client.sendText("{\"type\":\"join\",\"username\":\"Efimero\"}");
+    waitUntil(() -> server.getOpenConnectionCount() == 1, 2000);
+
+    client.close();
+    waitUntil(() -> server.getOpenConnectionCount() == 0, 2000);
+    Assertions.assertEquals(0, server.getOpenConnectionCount());
+    Assertions.assertEquals(0, server.getEvictedConnectionCount());
+  }
+
+  @Test
+  @Order(3)
+  @DisplayName("La coalescencia de escrituras conserva el orden de los mensajes")
+  void testWriteCoalescingPreservesOrder() throws Exception {
+    final int MESSAGES = 30;
+    int coalescingPort = findFreePort();
+    WebSocketServer coalescing = new WebSocketServer(coalescingPort);
+    coalescing.setWriteCoalescing(5, TimeUnit.MILLISECONDS, 16 * 1024);
+    Thread serverThread = new Thread(coalescing::start, "WebSocket-Test-Coalescing");
+    serverThread.setDaemon(true);
+    serverThread.start();
+    waitForPort(coalescingPort);
+
+    try (TestClient client = TestClient.connect(coalescingPort, null)) {
+      client.sendText("{\"type\":\"join\",\"username\":\"Rafaga\"}");
+      for (int i = 0; i < MESSAGES; i++) {
+        client.sendText("{\"type\":\"message\",\"content\":\"m" + i + "\"}");
+      }
+
+      int expected = 0;
+      while (expected < MESSAGES) {
+        String text = client.readDataFrame().text();
+        if (text.contains("\"type\":\"message\"")) {
+          Assertions.assertTrue(
+            text.contains("\"content\":\"m" + expected + "\""),
+            "Mensaje fuera de orden: " + text
+          );
+          expected++;
+        }
+      }
+
+      FrameWriter.Stats stats = coalescing.getWriteStats();
+      logger.info(
+        "Frames: {}, escrituras: {}",
+        stats.getFramesWritten(),
+        stats.getSocketWrites()
+      );
+      Assertions.assertTrue(stats.getSocketWrites() <= stats.getFramesWritten());
+    } finally {
+      coalescing.stop();
+    }
+  }
+
+  @Test
+  @Order(4)
+  @DisplayName("Upgrade a WebSocket en el puerto del servidor HTTP")
+  void testSinglePortUpgrade() throws Exception {
+    int httpPort = findFreePort();
+    ThreadPoolManager sharedPool = new ThreadPoolManager();
+    HttpServer httpServer = new HttpServer(httpPort, sharedPool);
+    WebSocketServer engine = new WebSocketServer(httpPort, sharedPool);
+    httpServer.enableWebSocketUpgrade("/ws", engine);
+    Thread serverThread = new Thread(httpServer::start, "HTTP-Test-Server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+    waitForPort(httpPort);
+
+    boolean poolOpenAfterHttpStop;
+    try (
+      TestClient client = TestClient.connect(httpPort, "/ws?v=1", null)
+    ) {
+      client.sendText("{\"type\":\"join\",\"username\":\"Unico\"}");
+      client.sendText("{\"type\":\"message\",\"content\":\"mismo puerto\"}");
+      String received;
+      do {
+        received = client.readDataFrame().text();
+      } while (!received.contains("\"type\":\"message\""));
+      Assertions.assertTrue(received.contains("mismo puerto"));
+      Assertions.assertEquals(1, engine.getOpenConnectionCount());
+
+      // El mismo listener sigue sirviendo HTTP normal
+      try (Socket http = new Socket("localhost", httpPort)) {
+        http.setSoTimeout(5000);
+        http
+          .getOutputStream()
+          .write(
+            "GET /api/stats HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(
+                StandardCharsets.US_ASCII
+              )
+          );
+        BufferedReader reader = new BufferedReader(
+          new InputStreamReader(http.getInputStream())
+        );
+        Assertions.assertTrue(reader.readLine().contains("200"));
+      }
+
+      // Un upgrade fuera de la ruta configurada no llega al motor WebSocket
+      Assertions.assertThrows(
+        IOException.class,
+        () -> TestClient.connect(httpPort, "/otra", null)
+      );
+    } finally {
+      httpServer.stop();
+      // El pool compartido sigue abierto para el motor WebSocket
+      poolOpenAfterHttpStop = sharedPool.executeWrite(() -> {});
+      engine.stop();
+      sharedPool.shutdown();
+    }
+    Assertions.assertTrue(poolOpenAfterHttpStop);
+  }
+
+  @Test
+  @Order(5)
+  @DisplayName("Los broadcasts solo llegan a los usuarios de la misma sala")
+  void testBroadcastIsScopedToRoom() throws Exception {
+    try (
+      TestClient lobbyA = TestClient.connect(port, null);
+      TestClient lobbyB = TestClient.connect(port, null);
+      TestClient other = TestClient.connect(port, null)
+    ) {
+      lobbyA.sendText("{\"type\":\"join\",\"username\":\"A\",\"room\":\"lobby\"}");
+      lobbyB.sendText("{\"type\":\"join\",\"username\":\"B\",\"room\":\"lobby\"}");
+      other.sendText("{\"type\":\"join\",\"username\":\"C\",\"room\":\"otra\"}");
+      waitUntil(
+        () -> {
+          ChatRoom lobby = server.getRoomRegistry().getRoom("lobby");
+          ChatRoom otra = server.getRoomRegistry().getRoom("otra");
+          return (
+            lobby != null &&
+            otra != null &&
+            lobby.getActiveUserCount() == 2 &&
+            otra.getActiveUserCount() == 1
+          );
+        },
+        2000
+      );
+
+      lobbyA.sendText("{\"type\":\"message\",\"content\":\"para lobby\"}");
+      other.sendText("{\"type\":\"message\",\"content\":\"para otra\"}");
+
+      String received;
+      do {
+        received = lobbyB.readDataFrame().text();
+      } while (!received.contains("\"type\":\"message\""));
+      Assertions.assertTrue(received.contains("para lobby"));
+
+      do {
+        received = other.readDataFrame().text();
+      } while (!received.contains("\"type\":\"message\""));
+      Assertions.assertTrue(received.contains("para otra"));
+    }
+  }
+
+  @Test
+  @Order(6)
+  @DisplayName("API HTTP de historial paginado con ETag")
+  void testHistoryApi() throws Exception {
+    int httpPort = findFreePort();
+    HttpServer httpServer = new HttpServer(httpPort);
+    WebSocketServer engine = new WebSocketServer(findFreePort());
+    httpServer.enableWebSocketUpgrade("/ws", engine);
+    Thread serverThread = new Thread(httpServer::start, "HTTP-Test-Server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+    waitForPort(httpPort);
+
+    try {
+      ChatUser user = new ChatUser("h-1", "Historia");
+      ChatRoom room = engine.getRoomRegistry().join("historial", user, null);
+      // El join añade un mensaje de sistema: 120 mensajes en total
+      for (int i = 1; i < 120; i++) {
+        room.addMessage(new ChatMessage(user, "mensaje " + i));
+      }
+
+      // Página en curso: mensajes 100..119, dinámica
+      HttpResult newest = httpGet(httpPort, "/api/rooms/historial/messages", null);
+      Assertions.assertEquals(200, newest.status);
+      Assertions.assertTrue(newest.body.contains("mensaje 119"));
+      Assertions.assertFalse(newest.body.contains("mensaje 99\""));
+      long nextBefore = new ObjectMapper()
+        .readTree(newest.body)
+        .get("nextBefore")
+        .asLong();
+
+      // Página completa anterior: cacheada y revalidable con su ETag
+      String path =
+        "/api/rooms/historial/messages?before=" + nextBefore + "&limit=50";
+      HttpResult full = httpGet(httpPort, path, null);
+      Assertions.assertEquals(200, full.status);
+      Assertions.assertTrue(full.body.contains("mensaje 50\""));
+      Assertions.assertTrue(full.body.contains("mensaje 99\""));
+      Assertions.assertTrue(
+        full.body.contains("\"nextBefore\":" + (nextBefore - 50))
+      );
+      String etag = full.headers.get("etag");
+      Assertions.assertNotNull(etag);
+
+      HttpResult revalidated = httpGet(
+        httpPort,
+        path,
+        "If-None-Match: " + etag + "\r\n"
+      );
+      Assertions.assertEquals(304, revalidated.status);
+      Assertions.assertEquals(1, room.getHistoryPageCache().getCachedPageCount());
+
+      // El ETag no vale para otro límite ni para otra sala
+      HttpResult otherLimit = httpGet(
+        httpPort,
+        "/api/rooms/historial/messages?before=" + nextBefore + "&limit=49",
+        "If-None-Match: " + etag + "\r\n"
+      );
+      Assertions.assertEquals(200, otherLimit.status);
+      Assertions.assertNotEquals(etag, otherLimit.headers.get("etag"));
+      engine.getRoomRegistry().join("vacia-1", new ChatUser("h-2", "Uno"), null);
+      engine.getRoomRegistry().join("vacia-2", new ChatUser("h-3", "Dos"), null);
+      Assertions.assertNotEquals(
+        engine.getRoomRegistry().getRoom("vacia-1").getHistoryPage(0, 1).getEtag(),
+        engine.getRoomRegistry().getRoom("vacia-2").getHistoryPage(0, 1).getEtag()
+      );
+
+      // Sala inexistente: historial vacío; id inválido: 400
+      HttpResult missing = httpGet(httpPort, "/api/rooms/nadie/messages", null);
+      Assertions.assertEquals(200, missing.status);
+      Assertions.assertTrue(missing.body.contains("\"messages\":[]"));
+      Assertions.assertEquals(
+        400,
+        httpGet(httpPort, "/api/rooms/..%2F/messages", null).status
+      );
+      Assertions.assertEquals(
+        400,
+        httpGet(httpPort, "/api/rooms/historial/messages?limit=x", null).status
+      );
+    } finally {
+      httpServer.stop();
+      engine.stop();
+    }
+  }
+
+  @Test
+  @Order(7)
+  @DisplayName("Al reconectar con lastSeenSeq solo llegan los mensajes perdidos")
+  void testReconnectReplaysMissedMessages() throws Exception {
+    ObjectMapper mapper = new ObjectMapper();
+    long lastSeen;
+    try (TestClient writer = TestClient.connect(port, null)) {
+      String received;
+      // El lector se desconecta a mitad de la prueba
+      try (TestClient reader = TestClient.connect(port, null)) {
+        writer.sendText("{\"type\":\"join\",\"username\":\"Escritor\",\"room\":\"eco\"}");
+        waitUntil(
+          () -> {
+            ChatRoom eco = server.getRoomRegistry().getRoom("eco");
+            return eco != null && eco.getActiveUserCount() == 1;
+          },
+          2000
+        );
+        reader.sendText("{\"type\":\"join\",\"username\":\"Lector\",\"room\":\"eco\"}");
+
+        // Un join sin secuencia recibe una instantánea del historial
+        do {
+          received = reader.readDataFrame().text();
+        } while (!received.contains("\"type\":\"history\""));
+        Assertions.assertEquals(2, server.getSnapshotJoinCount());
+
+        writer.sendText("{\"type\":\"message\",\"content\":\"visto\"}");
+        do {
+          received = reader.readDataFrame().text();
+        } while (!received.contains("visto"));
+        lastSeen = mapper.readTree(received).get("seq").asLong();
+      }
+      waitUntil(
+        () -> server.getRoomRegistry().getRoom("eco").getActiveUserCount() == 1,
+        2000
+      );
+
+      for (int i = 0; i < 3; i++) {
+        writer.sendText(
+          "{\"type\":\"message\",\"content\":\"perdido " + i + "\"}"
+        );
+      }
+      waitUntil(
+        () ->
+          server
+            .getRoomRegistry()
+            .getRoom("eco")
+            .getRecentMessages(1)
+            .get(0)
+            .getContent()
+            .equals("perdido 2"),
+        2000
+      );
+
+      try (TestClient resumed = TestClient.connect(port, null)) {
+        resumed.sendText(
+          "{\"type\":\"join\",\"username\":\"Lector\",\"room\":\"eco\"," +
+          "\"lastSeenSeq\":" +
+          lastSeen +
+          "}"
+        );
+        int expected = 0;
+        long previous = lastSeen;
+        while (expected < 3) {
+          received = resumed.readDataFrame().text();
+          Assertions.assertFalse(received.contains("\"type\":\"history\""));
+          Assertions.assertFalse(received.contains("visto"));
+          if (!received.contains("\"seq\"")) {
+            continue;
+          }
+          long seq = mapper.readTree(received).get("seq").asLong();
+          Assertions.assertTrue(seq > previous, "Secuencia fuera de orden");
+          previous = seq;
+          if (received.contains("perdido")) {
+            Assertions.assertTrue(received.contains("perdido " + expected));
+            expected++;
+          }
+        }
+        Assertions.assertEquals(1, server.getReplayedJoinCount());
+      }
+    }
+  }
+
+  @Test
+  @Order(8)
+  @DisplayName("La cookie JSESSIONID reutiliza la sesión existente")
+  void testSessionCookieReuse() throws Exception {
+    Assertions.assertEquals(
+      "abc",
+      CookieHandler.findCookie(
+        "tema=oscuro; JSESSIONIDX=no; JSESSIONID = \"abc\" ;x=1",
+        CookieHandler.SESSION_COOKIE
+      )
+    );
+    Assertions.assertNull(
+      CookieHandler.findCookie("a=1; JSESSIONID=", CookieHandler.SESSION_COOKIE)
+    );
+    Assertions.assertEquals(
+      "2",
+      CookieHandler.parseCookies("a=1; b = 2 ;c").get("b")
+    );
+
+    int httpPort = findFreePort();
+    HttpServer httpServer = new HttpServer(httpPort);
+    Thread serverThread = new Thread(httpServer::start, "HTTP-Test-Server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+    waitForPort(httpPort);
+
+    try {
+      SessionManager sessions = httpServer.getSessionManager();
+      Assertions.assertEquals(
+        404,
+        httpGet(httpPort, "/api/session", null).status
+      );
+
+      HttpResult created = httpRequest(httpPort, "POST", "/api/session", null);
+      Assertions.assertEquals(200, created.status);
+      Assertions.assertTrue(created.body.contains("\"created\":true"));
+      String cookie = created.headers.get("set-cookie");
+      Assertions.assertNotNull(cookie);
+      String sessionId = CookieHandler.findCookie(
+        cookie,
+        CookieHandler.SESSION_COOKIE
+      );
+      Assertions.assertEquals(1, sessions.getActiveSessionCount());
+
+      // Con la cookie, POST devuelve la misma sesión sin crear otra
+      String cookieHeader =
+        "Cookie: tema=claro; JSESSIONID=" + sessionId + "\r\n";
+      HttpResult reused = httpRequest(
+        httpPort,
+        "POST",
+        "/api/session",
+        cookieHeader
+      );
+      Assertions.assertEquals(200, reused.status);
+      Assertions.assertTrue(reused.body.contains(sessionId));
+      Assertions.assertTrue(reused.body.contains("\"created\":false"));
+      Assertions.assertNull(reused.headers.get("set-cookie"));
+      Assertions.assertEquals(1, sessions.getActiveSessionCount());
+
+      HttpResult current = httpGet(httpPort, "/api/session", cookieHeader);
+      Assertions.assertEquals(200, current.status);
+      Assertions.assertTrue(current.body.contains(sessionId));
+
+      // Sesión invalidada: la cookie ya no vale y POST crea otra
+      sessions.invalidateSession(sessionId);
+      HttpResult replaced = httpRequest(
+        httpPort,
+        "POST",
+        "/api/session",
+        cookieHeader
+      );
+      Assertions.assertTrue(replaced.body.contains("\"created\":true"));
+      Assertions.assertFalse(replaced.body.contains(sessionId));
+    } finally {
+      httpServer.stop();
+    }
+  }
+
+  @Test
+  @Order(9)
+  @DisplayName("Una conexión con sesión reanuda su usuario al reconectar")
+  void testSessionResumeWithinGracePeriod() throws Exception {
+    SessionManager sessions = new SessionManager();
+    server.setSessionManager(sessions);
+    server.setResumeGracePeriod(1, TimeUnit.SECONDS);
+    String sessionId = sessions.createSession();
+    String cookie = "Cookie: tema=oscuro; JSESSIONID=" + sessionId + "\r\n";
+    String join = "{\"type\":\"join\",\"username\":\"Inestable\",\"room\":\"red\"}";
+
+    try (TestClient observer = TestClient.connect(port, null)) {
+      observer.sendText(
+        "{\"type\":\"join\",\"username\":\"Observador\",\"room\":\"red\"}"
+      );
+      waitUntil(() -> server.getRoomRegistry().getRoom("red") != null, 2000);
+      ChatRoom room = server.getRoomRegistry().getRoom("red");
+
+      TestClient first = TestClient.connect(port, cookie);
+      first.sendText(join);
+      waitUntil(
+        () -> sessions.getSessionData(sessionId).getUsername() != null,
+        2000
+      );
+      Assertions.assertEquals(2, room.getActiveUserCount());
+      Assertions.assertEquals(
+        "Inestable",
+        sessions.getSessionData(sessionId).getUsername()
+      );
+
+      // Caída: el usuario sigue en la sala durante el plazo de gracia
+      first.close();
+      waitUntil(() -> server.getOpenConnectionCount() == 1, 2000);
+      Assertions.assertEquals(2, room.getActiveUserCount());
+
+      try (TestClient second = TestClient.connect(port, cookie)) {
+        second.sendText(join);
+        waitUntil(() -> server.getResumedJoinCount() == 1, 2000);
+        Assertions.assertEquals(1, server.getResumedJoinCount());
+
+        // Una tercera conexión de la sesión toma el usuario y cierra la
+        // anterior, que aún no había detectado la caída
+        try (TestClient third = TestClient.connect(port, cookie)) {
+          third.sendText(join);
+          waitUntil(() -> server.getResumedJoinCount() == 2, 2000);
+          Assertions.assertEquals(2, server.getResumedJoinCount());
+          Assertions.assertThrows(
+            IOException.class,
+            () -> {
+              while (true) {
+                second.readDataFrame();
+              }
+            }
+          );
+
+          third.sendText("{\"type\":\"message\",\"content\":\"sigo aquí\"}");
+          String received;
+          do {
+            received = observer.readDataFrame().text();
+          } while (!received.contains("sigo aquí"));
+        }
+      }
+      Assertions.assertEquals(3, server.getSessionBoundConnectionCount());
+
+      long notifications = room
+        .getRecentMessages(0)
+        .stream()
+        .filter(m -> m.getContent().startsWith("Inestable"))
+        .count();
+      Assertions.assertEquals(1, notifications, "Solo la entrada inicial");
+
+      // Sin reconexión, el usuario sale al vencer el plazo
+      waitUntil(() -> !room.isUsernameTaken("Inestable"), 3000);
+      Assertions.assertFalse(room.isUsernameTaken("Inestable"));
+      Assertions.assertTrue(
+        room
+          .getRecentMessages(0)
+          .stream()
+          .anyMatch(m -> m.getContent().equals("Inestable abandonó el chat"))
+      );
+    } finally {
+      sessions.cleanup();
+    }
+  }
+
+  @Test
+  @Order(10)
+  @DisplayName("Los envíos asíncronos no esperan a un cliente que no lee")
+  void testAsyncFramesDoNotBlockOnStalledClient() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    OutputStream stalled = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        synchronized (written) {
+          written.write(b, off, len);
+        }
+      }
+    };
+
+    ThreadPoolManager pool = new ThreadPoolManager();
+    try {
+      FrameWriter writer = new FrameWriter(
+        stalled,
+        pool,
+        0,
+        TimeUnit.NANOSECONDS,
+        16 * 1024,
+        new FrameWriter.Stats(),
+        null
+      );
+
+      // Con el socket bloqueado, encolar no espera
+      final int FRAMES = 100;
+      long start = System.nanoTime();
+      for (int i = 0; i < FRAMES; i++) {
+        byte[] payload = new byte[1000];
+        payload[0] = (byte) i;
+        writer.writeFrameAsync(0x2, payload);
+      }
+      Assertions.assertTrue(
+        System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1)
+      );
+
+      // Los pings y los frames encolados mientras tanto no ocupan más hilos
+      // del pool de escrituras: los escribe la tarea ya bloqueada
+      for (int i = 0; i < 10; i++) {
+        writer.writeControlFrameAsync(0x9, new byte[0]);
+        writer.writeFrameAsync(0x2, new byte[10]);
+      }
+      Thread.sleep(100);
+      long blockedWriters = Thread
+        .getAllStackTraces()
+        .keySet()
+        .stream()
+        .filter(t -> t.getName().startsWith("SocketWriter"))
+        .filter(t -> t.getState() == Thread.State.BLOCKED)
+        .count();
+      Assertions.assertEquals(0, blockedWriters);
+
+      // Un cliente que no lee acaba rechazado en lugar de acumular sin límite
+      Assertions.assertThrows(
+        IOException.class,
+        () -> {
+          while (true) {
+            writer.writeFrameAsync(0x2, new byte[60000]);
+          }
+        }
+      );
+
+      release.countDown();
+      waitUntil(
+        () -> {
+          synchronized (written) {
+            return written.size() >= FRAMES * 1004;
+          }
+        },
+        2000
+      );
+      byte[] bytes;
+      synchronized (written) {
+        bytes = written.toByteArray();
+      }
+      for (int i = 0; i < FRAMES; i++) {
+        Assertions.assertEquals((byte) 0x82, bytes[i * 1004]);
+        Assertions.assertEquals((byte) i, bytes[i * 1004 + 4], "Orden");
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  @Order(11)
+  @DisplayName("Un join durante un envío de mensajes no los repite")
+  void testJoinDuringTrafficHasNoDuplicates() throws Exception {
+    ObjectMapper mapper = new ObjectMapper();
+    final int MESSAGES = 300;
+    try (
+      TestClient writer = TestClient.connect(port, null);
+      TestClient joiner = TestClient.connect(port, null)
+    ) {
+      writer.sendText(
+        "{\"type\":\"join\",\"username\":\"Emisor\",\"room\":\"carrera\"}"
+      );
+      writer.sendText("{\"type\":\"message\",\"content\":\"inicio\"}");
+      String received;
+      do {
+        received = writer.readDataFrame().text();
+      } while (!received.contains("inicio"));
+      long lastSeen = mapper.readTree(received).get("seq").asLong();
+
+      // El join llega al servidor mientras el emisor sigue enviando
+      Thread sender = new Thread(() -> {
+        try {
+          for (int i = 0; i < MESSAGES; i++) {
+            writer.sendText(
+              "{\"type\":\"message\",\"content\":\"m" + i + "\"}"
+            );
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      sender.start();
+      joiner.sendText(
+        "{\"type\":\"join\",\"username\":\"Tardío\",\"room\":\"carrera\"," +
+        "\"lastSeenSeq\":" +
+        lastSeen +
+        "}"
+      );
+
+      // Cada mensaje llega una sola vez, por la puesta al día o en vivo
+      Set<Long> sequences = new HashSet<>();
+      Set<String> contents = new HashSet<>();
+      while (contents.size() < MESSAGES) {
+        com.fasterxml.jackson.databind.JsonNode event = mapper.readTree(
+          joiner.readDataFrame().text()
+        );
+        if (!event.has("seq")) {
+          continue;
+        }
+        long seq = event.get("seq").asLong();
+        Assertions.assertTrue(seq > lastSeen);
+        Assertions.assertTrue(sequences.add(seq), "Mensaje repetido");
+        if ("message".equals(event.path("type").asText())) {
+          contents.add(event.get("content").asText());
+        }
+      }
+      sender.join();
+    }
+  }
+
+  /**
+   * Respuesta HTTP leída por httpGet
+   */
+  private static class HttpResult {
+
+    int status;
+    final Map<String, String> headers = new HashMap<>();
+    String body;
+  }
+
+  private static HttpResult httpGet(int port, String path, String extraHeaders)
+    throws IOException {
+    return httpRequest(port, "GET", path, extraHeaders);
+  }
+
+  private static HttpResult httpRequest(
+    int port,
+    String method,
+    String path,
+    String extraHeaders
+  ) throws IOException {
+    try (Socket socket = new Socket("localhost", port)) {
+      socket.setSoTimeout(5000);
+      socket
+        .getOutputStream()
+        .write(
+          (
+            method +
+            " " +
+            path +
+            " HTTP/1.1\r\nHost: localhost\r\n" +
+            (extraHeaders != null ? extraHeaders : "") +
+            "\r\n"
+          ).getBytes(StandardCharsets.US_ASCII)
+        );
+
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      HttpResult result = new HttpResult();
+      String statusLine = readLine(in);
+      result.status = Integer.parseInt(statusLine.split(" ")[1]);
+      String line;
+      while (!(line = readLine(in)).isEmpty()) {
+        int colon = line.indexOf(':');
+        result.headers.put(
+          line.substring(0, colon).trim().toLowerCase(),
+          line.substring(colon + 1).trim()
+        );
+      }
+      byte[] body = new byte[Integer.parseInt(
+        result.headers.getOrDefault("content-length", "0")
+      )];
+      in.readFully(body);
+      result.body = new String(body, StandardCharsets.UTF_8);
+      return result;
+    }
+  }
+
+  private static String readLine(DataInputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != -1 && b != '\n') {
+      if (b != '\r') {
+        line.append((char) b);
+      }
+    }
+    return line.toString();
+  }
+
+  private static int findFreePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static void waitForPort(int port) throws InterruptedException {
+    for (int attempt = 0; attempt < 50; attempt++) {
+      try {
+        new Socket("localhost", port).close();
+        return;
+      } catch (IOException e) {
+        Thread.sleep(100);
+      }
+    }
+    throw new IllegalStateException("El servidor no abrió el puerto " + port);
+  }
+
+  private static void waitUntil(
+    java.util.function.BooleanSupplier condition,
+    long timeoutMillis
+  ) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+  }
+
+  /**
+   * Cliente WebSocket mínimo que envía frames enmascarados como un navegador
+   */
+  static class TestClient implements Closeable {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final String handshakeResponse;
+
+    private TestClient(Socket socket, String handshakeResponse)
+      throws IOException {
+      this.socket = socket;
+      this.in = new DataInputStream(socket.getInputStream());
+      this.out = socket.getOutputStream();
+      this.handshakeResponse = handshakeResponse;
+    }
+
+    static TestClient connect(int port, String extraHeaders)
+      throws IOException {
+      return connect(port, "/", extraHeaders);
+    }
+
+    static TestClient connect(int port, String path, String extraHeaders)
+      throws IOException {
+      Socket socket = new Socket("localhost", port);
+      socket.setSoTimeout(5000);
+
+      OutputStream out = socket.getOutputStream();
+      String request =
+        "GET " +
+        path +
+        " HTTP/1.1\r\n" +
+        "Host: localhost\r\n" +
+        "Upgrade: websocket\r\n" +
+        "Connection: Upgrade\r\n" +
+        "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+        "Sec-WebSocket-Version: 13\r\n" +
+        (extraHeaders != null ? extraHeaders : "") +
+        "\r\n";
+      out.write(request.getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+
+      // Leer la respuesta byte a byte para no consumir frames posteriores
+      InputStream in = socket.getInputStream();
+      StringBuilder response = new StringBuilder();
+      int newlines = 0;
+      while (newlines < 2) {
+        int c = in.read();
+        if (c == -1) {
+          throw new EOFException("Handshake incompleto");
+        }
+        if (c == '\n') {
+          newlines++;
+        } else if (c != '\r') {
+          newlines = 0;
+        }
+        response.append((char) c);
+      }
+
+      if (!response.toString().contains("101")) {
+        socket.close();
+        throw new IOException("Handshake rechazado: " + response);
+      }
+      return new TestClient(socket, response.toString());
+    }
+
+    String getHandshakeResponse() {
+      return handshakeResponse;
+    }
+
+    void sendText(String text) throws IOException {
+      send(0x1, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void send(int opcode, byte[] payload) throws IOException {
+      byte[] mask = { 0x11, 0x22, 0x33, 0x44 };
+      ByteArrayOutputStream frame = new ByteArrayOutputStream();
+      frame.write(0x80 | opcode);
+      if (payload.length < 126) {
+        frame.write(0x80 | payload.length);
+      } else {
+        frame.write(0x80 | 126);
+        frame.write(payload.length >> 8);
+        frame.write(payload.length & 0xFF);
+      }
+      frame.write(mask);
+      for (int i = 0; i < payload.length; i++) {
+        frame.write(payload[i] ^ mask[i % 4]);
+      }
+      out.write(frame.toByteArray());
+      out.flush();
+    }
+
+    Frame readFrame() throws IOException {
+      int first = in.readUnsignedByte();
+      int second = in.readUnsignedByte();
+      int length = second & 0x7F;
+      if (length == 126) {
+        length = in.readUnsignedShort();
+      }
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      return new Frame(first & 0x0F, payload);
+    }
+
+    /**
+     * Lee frames hasta encontrar uno de datos, respondiendo a los pings
+     */
+    Frame readDataFrame() throws IOException {
+      while (true) {
+        Frame frame = readFrame();
+        if (frame.opcode == 0x9) {
+          send(0xA, frame.payload);
+        } else {
+          return frame;
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+
+    static class Frame {
+
+      final int opcode;
+      final byte[] payload;
+
+      Frame(int opcode, byte[] payload) {
+        this.opcode = opcode;
+        this.payload = payload;
+      }
+
+      String text() {
+        return new String(payload, StandardCharsets.UTF_8);
+      }
+    }
+  }
+}